@@ -0,0 +1,158 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.lambda.AWSLambdaAsync;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.model.InvokeResult;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Chooses the number of frames per worker invocation for the fan-out driver.
+ * <p>
+ * The cost per frame comes from the job statistics stored with the dataset or,
+ * for a dataset without statistics, from a short synchronous probe
+ * invocation. Batches are sized so a worker uses only a fraction of its
+ * timeout, and grown if needed so the number of invocations stays within the
+ * concurrency limit; the time budget takes precedence if both cannot be met.
+ * <p>
+ * Settings come from the environment: WORKER_TIMEOUT_SECONDS (default 60),
+ * MAX_CONCURRENCY (default and upper limit the concurrent invocations of the
+ * shared Lambda client) and BUDGET_FRACTION (default 0.5).
+ */
+public class JscBatchSizer {
+  public static final String STATS_KEY = "JobStats/JscLambdaFanoutWorker.json";
+  /** Minimum worker time per batch, so invocation overhead stays small */
+  public static final double MIN_BATCH_SECONDS = 1.0;
+  long workerTimeoutMs;
+  int maxConcurrency;
+  double budgetFraction;
+
+  public JscBatchSizer(long workerTimeoutMs, int maxConcurrency, double budgetFraction) {
+    this.workerTimeoutMs = workerTimeoutMs;
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.budgetFraction = budgetFraction;
+  }
+
+  public static JscBatchSizer fromEnvironment() {
+    // More batches than the client can run at once only wait in its queue
+    int maxConcurrency = Math.min((int) getEnv("MAX_CONCURRENCY", JscLambdaRuntime.MAX_INVOCATIONS),
+        JscLambdaRuntime.MAX_INVOCATIONS);
+    return new JscBatchSizer((long) (1000 * getEnv("WORKER_TIMEOUT_SECONDS", 60)), maxConcurrency,
+        getEnv("BUDGET_FRACTION", 0.5));
+  }
+
+  static double getEnv(String name, double defaultValue) {
+    String str = System.getenv(name);
+    return str == null ? defaultValue : Double.parseDouble(str);
+  }
+
+  /**
+   * Return the batch size for a job
+   *
+   * @param nframe          - number of frames in the job
+   * @param secondsPerFrame - estimated worker seconds per frame
+   * @param maxBatch        - largest allowed batch
+   * @return - frames per invocation
+   */
+  public int getBatchSize(int nframe, double secondsPerFrame, int maxBatch) {
+    double budget = 0.001 * workerTimeoutMs * budgetFraction;
+    int budgetBatch = secondsPerFrame > 0 ? (int) (budget / secondsPerFrame) : maxBatch;
+    budgetBatch = Math.max(1, Math.min(budgetBatch, maxBatch));
+    // Fewest frames per batch that keeps the invocation count within the limit
+    int concurrencyBatch = (nframe + maxConcurrency - 1) / maxConcurrency;
+    // Enough frames per batch to amortize the cost of an invocation
+    int minBatch = secondsPerFrame > 0 ? (int) Math.ceil(MIN_BATCH_SECONDS / secondsPerFrame) : 1;
+    return Math.min(budgetBatch, Math.max(concurrencyBatch, minBatch));
+  }
+
+  /** @return - stored statistics for a dataset, or null if there are none */
+  public static JscJobStatistics loadStatistics(AmazonS3 s3, String bucket, String prefix) {
+    String key = prefix + "/" + STATS_KEY;
+    try {
+      if (!s3.doesObjectExist(bucket, key))
+        return null;
+      return (JscJobStatistics) JsAwsS3.getJsonObject(s3, bucket, key, JscJobStatistics.class);
+    } catch (SeisException e) {
+      return null;
+    }
+  }
+
+  /** Store the statistics for a dataset */
+  public static void saveStatistics(AmazonS3 s3, String bucket, String prefix, JscJobStatistics stats)
+      throws SeisException {
+    JsAwsS3.putJsonObject(s3, bucket, prefix + "/" + STATS_KEY, stats, true);
+  }
+
+  /**
+   * Process the first frames of a job with synchronous invocations and
+   * measure the cost per frame. The first frame is processed on its own to
+   * warm a worker, so the cold start does not inflate the estimate, and the
+   * remaining frames are timed.
+   *
+   * @param lambda       - Lambda client
+   * @param functionName - worker function
+   * @param probe        - input restricted to the probe frames
+   * @param outputList   - receives the probe results
+   * @param logger       - Lambda logger
+   * @return - observed seconds per frame, including invocation overhead, or 0
+   *         if the probe failed and no estimate is available
+   */
+  public static double probe(AWSLambdaAsync lambda, String functionName, JscLambdaInput probe,
+      JscLambdaOutputList outputList, LambdaLogger logger) {
+    JscLambdaInput timed = probe;
+    if (probe.frmn > probe.frm0) {
+      JscLambdaInput warm = new JscLambdaInput(probe);
+      warm.setRange(probe.frm0, probe.frm0, probe.frmi, probe.vol0, probe.voln, probe.voli);
+      timed = rest(probe);
+      if (!invoke(lambda, functionName, warm, outputList, logger)) {
+        // Still process the remaining probe frames, but give no estimate
+        invoke(lambda, functionName, timed, outputList, logger);
+        return 0;
+      }
+    }
+    long t0 = System.currentTimeMillis();
+    if (!invoke(lambda, functionName, timed, outputList, logger))
+      return 0;
+    double seconds = 0.001 * (System.currentTimeMillis() - t0);
+    int nframe = (1 + (timed.voln - timed.vol0) / timed.voli) * (1 + (timed.frmn - timed.frm0) / timed.frmi);
+    logger.log("Probe of " + nframe + " frames took " + seconds + " sec");
+    return seconds / nframe;
+  }
+
+  /** @return - the probe input without its first frame */
+  static JscLambdaInput rest(JscLambdaInput probe) {
+    JscLambdaInput rest = new JscLambdaInput(probe);
+    rest.setRange(probe.frm0 + probe.frmi, probe.frmn, probe.frmi, probe.vol0, probe.voln, probe.voli);
+    return rest;
+  }
+
+  /**
+   * Invoke a worker synchronously and add its results to a list
+   *
+   * @return - true if the invocation returned a result; failed frames are
+   *         reported in the result
+   */
+  static boolean invoke(AWSLambdaAsync lambda, String functionName, JscLambdaInput input,
+      JscLambdaOutputList outputList, LambdaLogger logger) {
+    String error;
+    try {
+      InvokeRequest req = new InvokeRequest().withFunctionName(functionName).withPayload(JsonUtil.toJsonString(input));
+      InvokeResult result = InvokeUtil.waitForResult(lambda.invokeAsync(req));
+      if (result.getFunctionError() == null) {
+        outputList.add(JscLambdaOutputList.fromPayload(result));
+        return true;
+      }
+      error = result.getFunctionError();
+    } catch (Exception e) {
+      error = e.getMessage();
+    }
+    logger.log("Probe failed: " + error);
+    outputList.addFromInput(input, "Failure: " + error);
+    return false;
+  }
+}
@@ -1,15 +1,11 @@
 package org.momacmo.aws.lambda.jscio.demo;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Future;
-
+import org.momacmo.aws.lambda.tools.InvokeCollector;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.services.lambda.AWSLambdaAsync;
 import com.amazonaws.services.lambda.AWSLambdaAsyncClientBuilder;
 import com.amazonaws.services.lambda.model.InvokeRequest;
-import com.amazonaws.services.lambda.model.InvokeResult;
 
 public class JscIOBenchmark {
 
@@ -23,7 +19,8 @@ public class JscIOBenchmark {
 
     AWSLambdaAsync lambda = AWSLambdaAsyncClientBuilder.defaultClient();
 
-    List<Future<InvokeResult>> futureList = new ArrayList<Future<InvokeResult>>();
+    InvokeCollector collector = new InvokeCollector(lambda);
+    JscLambdaAsyncResponse response = new JscLambdaAsyncResponse();
     System.out.println("Begin submission");
     int count = 864;
     int size = 10;
@@ -35,24 +32,20 @@ public class JscIOBenchmark {
       tmp.setRange(frm0,frmn,1,11,11,1);
       InvokeRequest req = new InvokeRequest().withFunctionName("mmm-lambda-java")
           .withPayload(JsonUtil.toJsonString(tmp));
-      futureList.add(lambda.invokeAsync(req, new JscLambdaAsyncResponse()));
+      collector.submit(req);
     }
     System.out.println("Waiting for async callback");
-    boolean notDone;
-    do {
-      notDone = false;
-      for (Future<InvokeResult> f : futureList) {
-        if (!f.isDone() && !f.isCancelled())
-          notDone = true;
-      }
-      // perform some other tasks...
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {
-        System.err.println("Thread.sleep() was interrupted!");
-        System.exit(1);
-      }
-    } while (notDone);
+    try {
+      collector.collect(Long.MAX_VALUE, (index, request, result, error) -> {
+        if (error != null)
+          response.onError(error);
+        else
+          response.onSuccess(request, result);
+      });
+    } catch (InterruptedException e) {
+      System.err.println("Collection was interrupted!");
+      System.exit(1);
+    }
     System.out.println("\nCompleted");
     System.exit(0);
   }
@@ -6,18 +6,21 @@ import java.util.Map;
 import org.javaseis.compress.TraceCompressor;
 import org.javaseis.properties.DataFormat;
 import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 
 // Handler value: example.Handler
 public class JscJavaLambdaHandler implements RequestHandler<Map<String, String>, String> {
+  static {
+    JscLambdaRuntime.prime(JscLambdaInput.class, JscLambdaOutputList.class);
+  }
 
   @Override
   public String handleRequest(Map<String, String> event, Context context) {
@@ -28,7 +31,7 @@ public class JscJavaLambdaHandler implements RequestHandler<Map<String, String>,
     JscLambdaOutputList outputList = new JscLambdaOutputList(input);
     AmazonS3 s3 = null;
     try {
-      s3 = AmazonS3ClientBuilder.standard().build();
+      s3 = JscLambdaRuntime.getS3();
     } catch (Exception e) {
       e.printStackTrace();
       logger.log("Could not obtain S3 client");
@@ -36,13 +39,17 @@ public class JscJavaLambdaHandler implements RequestHandler<Map<String, String>,
     }
     byte[] trcBytes = null;
     try {
-      trcBytes = new byte[input.ntrace * TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp)];
+      trcBytes = JscLambdaRuntime.takeBuffer(input.ntrace * TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp));
     } catch (SeisException e) {
       e.printStackTrace();
       logger.log("Could not allocate trace buffer");
       return outputList.toString();
     }
-    getFrameRange( s3, input, outputList, trcBytes );
+    try {
+      getFrameRange( s3, input, outputList, trcBytes );
+    } finally {
+      JscLambdaRuntime.releaseBuffer(trcBytes);
+    }
     logger.log("Lambda Function Completed: " + this.getClass().getCanonicalName() + "::handleRequest");
     logger.log("JscLambdaOutputList:\n" + JsonUtil.toJsonString(outputList));
     return outputList.toString();
@@ -51,7 +58,7 @@ public class JscJavaLambdaHandler implements RequestHandler<Map<String, String>,
   public static JscLambdaOutput getFrameTraces(AmazonS3 s3, JscLambdaInput input, int frame, int volume,
       byte[] trcBytes) {
     JscLambdaOutput output = new JscLambdaOutput(frame, volume);
-    String key = input.prefix + "/Traces" + "/V" + volume + "/F" + frame;
+    String key = JscLambdaRuntime.getFrameKey(input.bucket, input.prefix, "Traces", frame, volume);
     if (s3.doesObjectExist(input.bucket, key) == false) {
       output.setStatus("Failure: Object not found: " + input.bucket + "/" + key);
       return output;
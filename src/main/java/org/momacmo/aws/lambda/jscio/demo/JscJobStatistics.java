@@ -0,0 +1,30 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+/**
+ * Per-dataset record of observed worker cost, stored as json with the dataset
+ * (prefix/JobStats/JscLambdaFanoutWorker.json) and used to size the batches of
+ * later jobs.
+ */
+public class JscJobStatistics {
+  // Weight given to the newest job in the running estimate
+  static final double WEIGHT = 0.5;
+  public double secondsPerFrame;
+  public long frames;
+  public int jobs;
+  public String updated;
+
+  /**
+   * Blend the cost observed in a job into the running estimate
+   *
+   * @param observed - observed worker seconds per frame
+   * @param nframes  - number of frames processed by the job
+   */
+  public void update(double observed, long nframes) {
+    if (nframes < 1 || observed <= 0)
+      return;
+    secondsPerFrame = jobs == 0 ? observed : WEIGHT * observed + (1 - WEIGHT) * secondsPerFrame;
+    frames += nframes;
+    jobs++;
+    updated = java.time.Instant.now().toString();
+  }
+}
@@ -1,13 +1,13 @@
 package org.momacmo.aws.lambda.jscio.demo;
 
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
 
+import org.momacmo.aws.lambda.tools.InvokeCollector;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.services.lambda.AWSLambdaAsync;
@@ -18,6 +18,8 @@ import com.amazonaws.services.lambda.model.ServiceException;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 
 /**
  * JavaSeis Cloud Driver for lambda "fan-out" pattern
@@ -28,19 +30,61 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
  */
 public class JscLambdaFanoutDriver implements RequestHandler<Map<String, String>, String> {
   public static final int MAX_BATCH_SIZE = 1000;
+  /** Time reserved to return partial results before this function times out */
+  public static final long DEADLINE_MARGIN_MS = 5000;
+  /** Frames processed by the probe invocations of an adaptive job, the first only warms a worker */
+  public static final int PROBE_FRAMES = 4;
+  /** Frames per batch when the batch size is not set or cannot be estimated */
+  public static final int DEFAULT_BATCH_SIZE = 10;
+  public static final String WORKER_FUNCTION = "JscProcessingWorker";
   @Override
   public String handleRequest(Map<String, String> event, Context context) {
     // Get logger and input for the request
     LambdaLogger logger = context.getLogger();
     logger.log(JsonUtil.toJsonString(event));    
     JscLambdaInput input = new JscLambdaInput(event);
-    // Set batch size to 10 if it is zero or smaller, and restrict to a max value
-    int batchSize = Math.min((input.batchSize < 1 ? 10 : input.batchSize),MAX_BATCH_SIZE);
     // Log info about the request
     logger.log(this.getClass().getCanonicalName() + "::handleRequest\n" + Instant.now());
     logger.log("Input request:\n" + JsonUtil.toJsonString(input));
+    // Get the shared async lambda client and the list that collects results
+    AWSLambdaAsync lambda = JscLambdaRuntime.getLambda();
+    JscLambdaOutputList outputList = new JscLambdaOutputList(input);
+    int nvol = 1 + (input.voln - input.vol0) / input.voli;
+    int start = input.frm0;
+    AmazonS3 s3 = null;
+    JscJobStatistics stats = null;
+    // Set batch size to 10 if it is zero or smaller, and restrict to a max value
+    int batchSize = Math.min((input.batchSize < 1 ? DEFAULT_BATCH_SIZE : input.batchSize),MAX_BATCH_SIZE);
+    if (input.adaptiveBatch) {
+      // Size batches from the stored cost per frame, or from a short probe
+      s3 = AmazonS3ClientBuilder.defaultClient();
+      stats = JscBatchSizer.loadStatistics(s3, input.bucket, input.prefix);
+      if (stats == null) {
+        stats = new JscJobStatistics();
+        JscLambdaInput probe = new JscLambdaInput(input);
+        int probeEnd = Math.min(input.frmn, input.frm0 + (PROBE_FRAMES - 1) * input.frmi);
+        probe.setRange(input.frm0, probeEnd, input.frmi, input.vol0, input.voln, input.voli);
+        double observed = JscBatchSizer.probe(lambda, WORKER_FUNCTION, probe, outputList, logger);
+        // The probe frames are in the output list whether or not they succeeded
+        start = probeEnd + input.frmi;
+        if (observed > 0) {
+          stats.update(observed, (long) nvol * Math.max(1, (probeEnd - input.frm0) / input.frmi));
+        } else {
+          // No estimate, keep the fixed batch size and store nothing
+          stats = null;
+        }
+      }
+      if (stats != null) {
+        int remaining = Math.max(0, 1 + (input.frmn - start) / input.frmi);
+        batchSize = JscBatchSizer.fromEnvironment().getBatchSize(remaining, nvol * stats.secondsPerFrame,
+            MAX_BATCH_SIZE);
+        logger.log("Adaptive batch size " + batchSize + " from " + stats.secondsPerFrame + " sec per frame");
+      } else {
+        logger.log("Probe failed, using fixed batch size " + batchSize);
+      }
+    }
     // Calculate the total number of frameArrays in the request
-    int nframe = 1 + (input.frmn - input.frm0) / input.frmi;
+    int nframe = start > input.frmn ? 0 : 1 + (input.frmn - start) / input.frmi;
     // Set the number of batches
     int nbatch = nframe / batchSize;
     if (batchSize * nbatch != nframe)
@@ -55,22 +99,22 @@ public class JscLambdaFanoutDriver implements RequestHandler<Map<String, String>
     logger.log("Wait for completion: " + str);
     if (str != null && str.equals("false")) waitForCompletion = false;   
     logger.log("Begin submission ... ");
-    // Get an async lambda client and create array of futures to track results
-    AWSLambdaAsync lambda = AWSLambdaAsyncClientBuilder.defaultClient();
-    List<Future<InvokeResult>> futureList = new ArrayList<Future<InvokeResult>>();
-    JscLambdaOutputList outputList = new JscLambdaOutputList(input);
+    // Track each batch
+    InvokeCollector collector = new InvokeCollector(lambda);
+    List<JscLambdaInput> batches = new ArrayList<JscLambdaInput>();
     StringBuffer buf = new StringBuffer();
     // Loop over the number of batches
     for (int i = 0; i < nbatch; i++) {
       // Set the frame range for this submission
-      frm0 = input.frm0 + batchSize * frmi * i;
+      frm0 = start + batchSize * frmi * i;
       frmn = Math.min(input.frmn, frm0 + (batchSize - 1) * frmi);
       JscLambdaInput tmp = new JscLambdaInput(input);
       tmp.setRange(frm0, frmn, frmi, input.vol0, input.voln, input.voli);
       // Submit the request
-      InvokeRequest req = new InvokeRequest().withFunctionName("JscProcessingWorker")
+      InvokeRequest req = new InvokeRequest().withFunctionName(WORKER_FUNCTION)
         .withPayload(JsonUtil.toJsonString(tmp));
-      futureList.add(lambda.invokeAsync(req));
+      collector.submit(req);
+      batches.add(tmp);
       if (waitForCompletion == false) outputList.addFromInput(tmp,"Submitted"); 
       String msg = (" Batch " + (i + 1) + " Frame Range: " + frm0 + ", " + frmn + ", " + frmi);
       logger.log("Submitted: " + msg);
@@ -78,17 +122,56 @@ public class JscLambdaFanoutDriver implements RequestHandler<Map<String, String>
     }
     // Wait for completion if requested
     
-    if (waitForCompletion == false) return(JsonUtil.toJsonString(outputList));
+    if (waitForCompletion == false) return(outputList.encode());
     
-    List<InvokeResult> resultList = InvokeUtil.waitForResults(futureList, logger);
-    for (InvokeResult result : resultList ) {
-      String outputString = new String(result.getPayload().array(), StandardCharsets.UTF_8).replaceAll("\\\\n","").replaceAll("\\\\",""); 
-      logger.log("Completed:\n" + outputString);
-      JscLambdaOutputList partialList = (JscLambdaOutputList) JsonUtil.fromJsonString(JscLambdaOutputList.class, outputString.substring(1, outputString.length()-1));
-      outputList.add(partialList);       
+    // Handle each batch as it completes, stopping short of this function's own
+    // timeout so that the partial results can still be returned
+    long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis() - DEADLINE_MARGIN_MS;
+    boolean finished;
+    // Worker seconds and frames of the successful batches. The time is the one
+    // reported by the workers, as batches wait in the client queue and complete
+    // while others are still being submitted
+    double[] observed = new double[2];
+    try {
+      finished = collector.collect(deadline, (index, request, result, error) -> {
+        if (error != null || result.getFunctionError() != null) {
+          String msg = error != null ? error.getMessage() : result.getFunctionError();
+          logger.log("Failed batch " + (index + 1) + ": " + msg);
+          outputList.addFromInput(batches.get(index), "Failure: " + msg);
+          return;
+        }
+        JscLambdaOutputList partialList = JscLambdaOutputList.fromPayload(result);
+        outputList.add(partialList);
+        observed[0] += partialList.getIoTime();
+        observed[1] += partialList.size();
+        logger.log("Completed batch " + (index + 1) + ", " + collector.getCompleted() + " of " + batches.size()
+            + ", I/O Rate (KiB/s) " + 1e-3*outputList.getIoRate());
+      });
+    } catch (InterruptedException e) {
+      finished = false;
+    }
+    if (!finished) {
+      for (int index : collector.getPending())
+        outputList.addFromInput(batches.get(index), "Timeout");
+      logger.log("Deadline reached with " + collector.getPending().size() + " batches pending");
+    }
+    // Record the observed cost for sizing later jobs on this dataset
+    if (observed[1] > 0) {
+      try {
+        if (s3 == null)
+          s3 = AmazonS3ClientBuilder.defaultClient();
+        if (stats == null)
+          stats = JscBatchSizer.loadStatistics(s3, input.bucket, input.prefix);
+        if (stats == null)
+          stats = new JscJobStatistics();
+        stats.update(observed[0] / observed[1], (long) observed[1]);
+        JscBatchSizer.saveStatistics(s3, input.bucket, input.prefix, stats);
+      } catch (Exception e) {
+        logger.log("Could not save job statistics: " + e.getMessage());
+      }
     }
     
-    return(JsonUtil.toJsonString(outputList));
+    return(outputList.encode());
   }
   
   public static void main(String[] args) {
@@ -108,11 +191,7 @@ public class JscLambdaFanoutDriver implements RequestHandler<Map<String, String>
       Future<InvokeResult> future = lambda.invokeAsync(invokeRequest);
       InvokeResult result = InvokeUtil.waitForResult( future );
       // write out the return value
-      String rawOutput = Charset.defaultCharset().decode(result.getPayload()).toString();     
-      System.out.println("Raw output:\n" + rawOutput);
-      String outputString = rawOutput.replaceAll("\\\\n","").replaceAll("\\\\","");
-      System.out.println("Processed output:\n" + outputString);
-      JscLambdaOutputList output = (JscLambdaOutputList) JsonUtil.fromJsonString(JscLambdaOutputList.class, outputString.substring(1,outputString.length()-1));
+      JscLambdaOutputList output = JscLambdaOutputList.fromPayload(result);
       System.out.println("JscLambdaOutputList:\n" + JsonUtil.toJsonString(output));
       System.out.println("I/O Rate (KiB/s) " + 1e-3*output.getIoRate());
       System.exit(200);
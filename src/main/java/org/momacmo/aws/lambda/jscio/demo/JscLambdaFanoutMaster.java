@@ -1,15 +1,11 @@
 package org.momacmo.aws.lambda.jscio.demo;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Future;
-
+import org.momacmo.aws.lambda.tools.InvokeCollector;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.services.lambda.AWSLambdaAsync;
-import com.amazonaws.services.lambda.AWSLambdaAsyncClientBuilder;
 import com.amazonaws.services.lambda.model.InvokeRequest;
-import com.amazonaws.services.lambda.model.InvokeResult;
 import com.amazonaws.services.lambda.model.ServiceException;
 
 public class JscLambdaFanoutMaster {
@@ -23,25 +19,37 @@ public class JscLambdaFanoutMaster {
     inputFull.setNtrace(380);
     inputFull.setBatchSize(8);
 
-    AWSLambdaAsync lambda = AWSLambdaAsyncClientBuilder.defaultClient();
-    List<Future<InvokeResult>> futureList = new ArrayList<Future<InvokeResult>>();
+    // Long socket timeout, the root runs until the whole tree has finished
+    AWSLambdaAsync lambda = JscLambdaRuntime.getLambda();
+    InvokeCollector collector = new InvokeCollector(lambda);
+    JscLambdaAsyncResponse response = new JscLambdaAsyncResponse();
 
+    // Depth 3 tree: the root and its children split the range, so the leaf
+    // workers are started by many concurrent invokers instead of one loop
+    inputFull.maxLevels = 3;
+    inputFull.targetConcurrency = 1080;
     long t0 = System.currentTimeMillis();
-    for (int i=0; i<40; i++) {
-      JscLambdaInput input = new JscLambdaInput(inputFull);
-      input.setRange((216*i)+1, 216*(i+1), 1, 11, 11, 1 );
-      InvokeRequest invokeRequest = new InvokeRequest()
-          .withFunctionName("JscLambdaFanoutDriver")
-          .withPayload(JsonUtil.toJsonString(input));
-      System.out.println("Submit " + i);
-      try {
-        futureList.add(lambda.invokeAsync(invokeRequest,new JscLambdaAsyncResponse()));
-      } catch (ServiceException e) {
-        System.out.println(e);
-        System.exit(500);
-      }
+    InvokeRequest invokeRequest = new InvokeRequest()
+        .withFunctionName(JscLambdaTreeFanout.FUNCTION_NAME)
+        .withPayload(JsonUtil.toJsonString(inputFull));
+    System.out.println("Submit tree root");
+    try {
+      collector.submit(invokeRequest);
+    } catch (ServiceException e) {
+      System.out.println(e);
+      System.exit(500);
+    }
+    try {
+      collector.collect(Long.MAX_VALUE, (index, request, result, error) -> {
+        if (error != null)
+          response.onError(error);
+        else
+          response.onSuccess(request, result);
+      });
+    } catch (InterruptedException e) {
+      System.out.println(e);
+      System.exit(500);
     }
-    InvokeUtil.waitForResults(futureList);
     long t1 = System.currentTimeMillis();
     double iorate = 969760.0 * 8640.0 / (t1-t0) / 1024.0;
     System.out.println("Processed 1 day of DAS data in " + 0.001*(t1-t0) + " sec");
@@ -1,13 +1,15 @@
 package org.momacmo.aws.lambda.jscio.demo;
 
 import java.io.InputStream;
-import java.nio.charset.Charset;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.javaseis.compress.TraceCompressor;
 import org.javaseis.properties.DataFormat;
 import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.services.lambda.AWSLambdaAsync;
@@ -19,12 +21,20 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 
 // Lambda handler for Fanout Worker pattern
 public class JscLambdaFanoutWorker implements RequestHandler<Map<String, String>, String> {
+  /** Concurrent reads per processor; reads mostly wait on the network */
+  public static final int READS_PER_CPU = 8;
+  public static final int MAX_READ_THREADS = 64;
+  /** Fraction of the heap that in-flight read buffers may use */
+  public static final double READ_MEMORY_FRACTION = 0.5;
+  static {
+    JscLambdaRuntime.prime(JscLambdaInput.class, JscLambdaOutputList.class);
+  }
+
   @Override
   public String handleRequest(Map<String, String> event, Context context) {
     LambdaLogger logger = context.getLogger();
@@ -34,33 +44,31 @@ public class JscLambdaFanoutWorker implements RequestHandler<Map<String, String>
     JscLambdaOutputList outputList = new JscLambdaOutputList(input);
     AmazonS3 s3 = null;
     try {
-      s3 = AmazonS3ClientBuilder.standard().build();
+      s3 = JscLambdaRuntime.getS3();
     } catch (Exception e) {
       e.printStackTrace();
       String msg = "Failure:\n" + "Could not obtain S3 client\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
       logger.log(msg);
       throw new IllegalStateException(msg);
     }
-    byte[] trcBytes = null;
     try {
-      trcBytes = new byte[input.ntrace * TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp)];
+      processRange( s3, input, outputList );
     } catch (SeisException e) {
       e.printStackTrace();
       String msg = "Failure:\n" + "Could allocate trace buffers\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
       logger.log(msg);
       throw new IllegalStateException(msg);
     }
-    getFrameRange( s3, input, outputList, trcBytes );
     logger.log("Lambda Function Completed: " + this.getClass().getCanonicalName() + "::handleRequest");
-    String outputString = JsonUtil.toJsonString(outputList);
-    logger.log("JscLambdaOutputList:\n" + outputString);
-    return outputString;
+    logger.log("Frames: " + outputList.size() + " Failures: " + outputList.getFailureCount()
+        + " I/O Rate (KiB/s): " + 1e-3*outputList.getIoRate());
+    return outputList.encode();
   }
 
   public static JscLambdaOutput getFrameTraces(AmazonS3 s3, JscLambdaInput input, int frame, int volume,
       byte[] trcBytes) {
     JscLambdaOutput output = new JscLambdaOutput(frame, volume);
-    String key = input.prefix + "/Traces" + "/V" + volume + "/F" + frame;
+    String key = JscLambdaRuntime.getFrameKey(input.bucket, input.prefix, "Traces", frame, volume);
     if (s3.doesObjectExist(input.bucket, key) == false) {
       output.setStatus("Failure: Object not found: " + input.bucket + "/" + key);
       return output;
@@ -93,10 +101,116 @@ public class JscLambdaFanoutWorker implements RequestHandler<Map<String, String>
     return output;
   }
   
+  /**
+   * Allocate buffers and read every frame in the input range, concurrently
+   * when the container allows more than one read in flight
+   */
+  public static void processRange(AmazonS3 s3, JscLambdaInput input, JscLambdaOutputList outputList)
+      throws SeisException {
+    int bufferSize = getTraceBufferSize(input);
+    int nframe = (1 + (input.voln - input.vol0) / input.voli) * (1 + (input.frmn - input.frm0) / input.frmi);
+    int threads = Math.min(nframe, getReadThreads(input, bufferSize));
+    if (threads > 1) {
+      getFrameRange( s3, input, outputList, bufferSize, threads );
+      return;
+    }
+    byte[] trcBytes = JscLambdaRuntime.takeBuffer(bufferSize);
+    try {
+      getFrameRange( s3, input, outputList, trcBytes );
+    } finally {
+      JscLambdaRuntime.releaseBuffer(trcBytes);
+    }
+  }
+  
+  /**
+   * Number of concurrent frame reads: the requested count, or READS_PER_CPU per
+   * available processor, limited so the read buffers use at most
+   * READ_MEMORY_FRACTION of the heap
+   */
+  public static int getReadThreads(JscLambdaInput input, int bufferSize) {
+    int threads = input.readThreads > 0 ? input.readThreads
+        : Math.min(MAX_READ_THREADS, READS_PER_CPU * Runtime.getRuntime().availableProcessors());
+    long memory = (long) (READ_MEMORY_FRACTION * Runtime.getRuntime().maxMemory());
+    return (int) Math.max(1, Math.min(threads, memory / Math.max(1, bufferSize)));
+  }
+  
+  /**
+   * Read every frame in the input range with a bounded number of reads in
+   * flight, each into its own buffer. Results are added in frame order.
+   */
+  public static void getFrameRange(AmazonS3 s3, JscLambdaInput input, JscLambdaOutputList outputList,
+      int bufferSize, int threads) {
+    int nfrm = 1 + (input.frmn - input.frm0) / input.frmi;
+    int nvol = 1 + (input.voln - input.vol0) / input.voli;
+    JscLambdaOutput[] outputs = new JscLambdaOutput[nfrm * nvol];
+    Future<?>[] futures = new Future<?>[outputs.length];
+    ExecutorService pool = JscLambdaRuntime.getIoPool();
+    Semaphore inFlight = new Semaphore(threads);
+    for (int i = 0; i < outputs.length; i++) {
+      int index = i;
+      int frame = input.frm0 + (i % nfrm) * input.frmi;
+      int volume = input.vol0 + (i / nfrm) * input.voli;
+      if (isPastDeadline(input)) {
+        outputs[i] = getTimeout(frame, volume);
+        continue;
+      }
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        outputs[i] = new JscLambdaOutput(frame, volume);
+        outputs[i].setStatus("Failure: interrupted");
+        continue;
+      }
+      futures[i] = pool.submit(() -> {
+        byte[] trcBytes = JscLambdaRuntime.takeBuffer(bufferSize);
+        try {
+          outputs[index] = getFrameTraces(s3, input, frame, volume, trcBytes);
+        } finally {
+          JscLambdaRuntime.releaseBuffer(trcBytes);
+          inFlight.release();
+        }
+      });
+    }
+    for (int i = 0; i < outputs.length; i++) {
+      try {
+        if (futures[i] != null)
+          futures[i].get();
+      } catch (Exception e) {
+        outputs[i] = new JscLambdaOutput(input.frm0 + (i % nfrm) * input.frmi, input.vol0 + (i / nfrm) * input.voli);
+        outputs[i].setStatus("Failure: " + e.getMessage());
+      }
+      outputList.add(outputs[i]);
+    }
+  }
+  
+  /** @return - true if the input carries a deadline that has passed */
+  static boolean isPastDeadline(JscLambdaInput input) {
+    return input.deadline > 0 && System.currentTimeMillis() >= input.deadline;
+  }
+
+  /** @return - result for a frame that was not read before the deadline */
+  static JscLambdaOutput getTimeout(int frame, int volume) {
+    JscLambdaOutput output = new JscLambdaOutput(frame, volume);
+    output.setStatus("Timeout");
+    return output;
+  }
+  
+  /**
+   * @return - bytes needed to hold the packed traces of one frame
+   */
+  public static int getTraceBufferSize(JscLambdaInput input) throws SeisException {
+    return input.ntrace * TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp);
+  }
+  
   public static void getFrameRange(AmazonS3 s3, JscLambdaInput input, JscLambdaOutputList outputList,
       byte[] trcBytes) {
     for (int volume = input.vol0; volume <= input.voln; volume += input.voli) {
       for (int frame = input.frm0; frame <= input.frmn; frame += input.frmi) {
+        if (isPastDeadline(input)) {
+          outputList.add(getTimeout(frame, volume));
+          continue;
+        }
         JscLambdaOutput output = getFrameTraces(s3, input, frame, volume, trcBytes);
         outputList.add(output);
       }
@@ -119,11 +233,7 @@ public class JscLambdaFanoutWorker implements RequestHandler<Map<String, String>
       Future<InvokeResult> future = lambda.invokeAsync(invokeRequest);
       InvokeResult result = InvokeUtil.waitForResult( future );
       // write out the return value
-      String rawOutput = Charset.defaultCharset().decode(result.getPayload()).toString();     
-      System.out.println("Raw output:\n" + rawOutput);
-      String outputString = rawOutput.replaceAll("\\\\n","").replaceAll("\\\\","");
-      System.out.println("Processed output:\n" + outputString);
-      JscLambdaOutputList output = (JscLambdaOutputList) JsonUtil.fromJsonString(JscLambdaOutputList.class, outputString.substring(1,outputString.length()-1));
+      JscLambdaOutputList output = JscLambdaOutputList.fromPayload(result);
       System.out.println("JscLambdaOutputList:\n" + JsonUtil.toJsonString(output));
       System.out.println("I/O Rate (KiB/s) " + 1e-3*output.getIoRate());
       System.exit(200);
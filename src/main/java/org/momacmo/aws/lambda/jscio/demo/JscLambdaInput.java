@@ -11,6 +11,26 @@ public class JscLambdaInput {
   public int ntrace;
   public int nhdr;
   public int batchSize;
+  // Let the fan-out driver choose batchSize from measured worker cost
+  public boolean adaptiveBatch;
+  // Tree fan-out: depth of this node, maximum depth, children per node (zero
+  // to derive it from the work), and the target number of leaf workers
+  public int level;
+  public int maxLevels = 2;
+  public int branching;
+  public int targetConcurrency;
+  // Absolute time in milliseconds by which this node must return, zero for
+  // none; passed down so deep leaves stop before their ancestors time out
+  public long deadline;
+  // Return a JscLambdaSummary instead of one result per frame
+  public boolean summaryOnly;
+  // Concurrent frame reads in one worker, zero to size from the container
+  public int readThreads;
+  // Frame pipeline: output dataset prefix and JscFrameOperator class name
+  public String outputPrefix;
+  public String operator;
+  // Reduction: JscFrameAggregate class name
+  public String aggregate;
   
   public JscLambdaInput() {
     this.bucket = "bucket";
@@ -42,6 +62,28 @@ public class JscLambdaInput {
     nhdr = Integer.parseInt(eventMap.get("nhdr"));
     if (eventMap.containsKey("batchSize"))
     batchSize = Integer.parseInt(eventMap.get("batchSize"));
+    if (eventMap.containsKey("adaptiveBatch"))
+    adaptiveBatch = Boolean.parseBoolean(eventMap.get("adaptiveBatch"));
+    if (eventMap.containsKey("level"))
+    level = Integer.parseInt(eventMap.get("level"));
+    if (eventMap.containsKey("maxLevels"))
+    maxLevels = Integer.parseInt(eventMap.get("maxLevels"));
+    if (eventMap.containsKey("branching"))
+    branching = Integer.parseInt(eventMap.get("branching"));
+    if (eventMap.containsKey("targetConcurrency"))
+    targetConcurrency = Integer.parseInt(eventMap.get("targetConcurrency"));
+    if (eventMap.containsKey("deadline"))
+    deadline = Long.parseLong(eventMap.get("deadline"));
+    if (eventMap.containsKey("summaryOnly"))
+    summaryOnly = Boolean.parseBoolean(eventMap.get("summaryOnly"));
+    if (eventMap.containsKey("readThreads"))
+    readThreads = Integer.parseInt(eventMap.get("readThreads"));
+    if (eventMap.containsKey("outputPrefix"))
+    outputPrefix = eventMap.get("outputPrefix");
+    if (eventMap.containsKey("operator"))
+    operator = eventMap.get("operator");
+    if (eventMap.containsKey("aggregate"))
+    aggregate = eventMap.get("aggregate");
   }
   
   public JscLambdaInput( JscLambdaInput in ) {
@@ -57,6 +99,17 @@ public class JscLambdaInput {
     ntrace = in.ntrace;
     nhdr = in.nhdr;
     batchSize = in.batchSize;
+    adaptiveBatch = in.adaptiveBatch;
+    level = in.level;
+    maxLevels = in.maxLevels;
+    branching = in.branching;
+    targetConcurrency = in.targetConcurrency;
+    deadline = in.deadline;
+    summaryOnly = in.summaryOnly;
+    readThreads = in.readThreads;
+    outputPrefix = in.outputPrefix;
+    operator = in.operator;
+    aggregate = in.aggregate;
   }
   
   public void setRange( int frm0, int frmn, int frmi, int vol0, int voln, int voli ) {
@@ -0,0 +1,278 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+/**
+ * Compact encoding of a JscLambdaOutputList for worker to driver payloads.
+ * <p>
+ * The list is written column by column: frame, volume, trace count and byte
+ * count as zigzag varint deltas from the previous record, I/O time as a float,
+ * and status as an index into a table of the distinct status strings. For a
+ * batch of consecutive frames most records take a few bytes. The binary form
+ * is Base64 encoded, so a handler can return it as its String result without
+ * any json escaping.
+ * <p>
+ * Layout, version 2:
+ * <code>
+ * int magic "JSLO", byte version, utf input (compact json), varint count,
+ * varint nstatus, status strings (varint length, utf-8 bytes), columns,
+ * byte hasSummary, [summary counters, histogram as (index delta, count) pairs]
+ * </code>
+ * Version 1 is the same without the summary.
+ */
+public class JscLambdaOutputCodec {
+  public static final int MAGIC = 0x4A534C4F;
+  public static final int VERSION = 2;
+  static final Gson compact = new Gson();
+
+  /**
+   * @param outputList - results to encode
+   * @return - Base64 encoded binary form
+   */
+  public static String encode(JscLambdaOutputList outputList) {
+    List<JscLambdaOutput> list = outputList.outputList;
+    int n = list.size();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 12 * n);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeUTF(compact.toJson(outputList.input));
+      writeVarint(out, n);
+      Map<String, Integer> statusIndex = new HashMap<String, Integer>();
+      List<String> statuses = new ArrayList<String>();
+      int[] status = new int[n];
+      for (int i = 0; i < n; i++) {
+        String s = list.get(i).status == null ? "" : list.get(i).status;
+        Integer index = statusIndex.get(s);
+        if (index == null) {
+          index = statuses.size();
+          statusIndex.put(s, index);
+          statuses.add(s);
+        }
+        status[i] = index;
+      }
+      writeVarint(out, statuses.size());
+      for (String s : statuses)
+        writeString(out, s);
+      int prev = 0;
+      for (JscLambdaOutput o : list) {
+        writeVarint(out, zigzag(o.frame - prev));
+        prev = o.frame;
+      }
+      prev = 0;
+      for (JscLambdaOutput o : list) {
+        writeVarint(out, zigzag(o.volume - prev));
+        prev = o.volume;
+      }
+      prev = 0;
+      for (JscLambdaOutput o : list) {
+        writeVarint(out, zigzag(o.traceCount - prev));
+        prev = o.traceCount;
+      }
+      prev = 0;
+      for (JscLambdaOutput o : list) {
+        writeVarint(out, zigzag(o.iobytes - prev));
+        prev = o.iobytes;
+      }
+      for (JscLambdaOutput o : list)
+        out.writeFloat(o.iotime);
+      for (int i = 0; i < n; i++)
+        writeVarint(out, status[i]);
+      JscLambdaSummary summary = outputList.summary;
+      out.writeBoolean(summary != null);
+      if (summary != null)
+        writeSummary(out, summary);
+    } catch (IOException e) {
+      throw new IllegalStateException("JscLambdaOutputCodec encode failed", e);
+    }
+    return Base64.getEncoder().encodeToString(bytes.toByteArray());
+  }
+
+  /**
+   * @param encoded - Base64 string produced by encode
+   * @return - decoded results
+   * @throws IllegalArgumentException - if the string is not a supported encoding
+   */
+  public static JscLambdaOutputList decode(String encoded) {
+    byte[] bytes = Base64.getDecoder().decode(encoded.trim());
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      if (in.readInt() != MAGIC)
+        throw new IllegalArgumentException("Not a JscLambdaOutputList encoding");
+      int version = in.readByte();
+      if (version < 1 || version > VERSION)
+        throw new IllegalArgumentException("Unsupported JscLambdaOutputList encoding version " + version);
+      JscLambdaInput input = compact.fromJson(in.readUTF(), JscLambdaInput.class);
+      int n = readVarint(in);
+      String[] statuses = new String[readVarint(in)];
+      for (int i = 0; i < statuses.length; i++)
+        statuses[i] = readString(in);
+      JscLambdaOutput[] outputs = new JscLambdaOutput[n];
+      int prev = 0;
+      for (int i = 0; i < n; i++) {
+        prev += unzigzag(readVarint(in));
+        outputs[i] = new JscLambdaOutput(prev, 0);
+      }
+      prev = 0;
+      for (int i = 0; i < n; i++) {
+        prev += unzigzag(readVarint(in));
+        outputs[i].volume = prev;
+      }
+      prev = 0;
+      for (int i = 0; i < n; i++) {
+        prev += unzigzag(readVarint(in));
+        outputs[i].traceCount = prev;
+      }
+      prev = 0;
+      for (int i = 0; i < n; i++) {
+        prev += unzigzag(readVarint(in));
+        outputs[i].iobytes = prev;
+      }
+      for (int i = 0; i < n; i++)
+        outputs[i].iotime = in.readFloat();
+      JscLambdaOutputList outputList = new JscLambdaOutputList(input);
+      for (int i = 0; i < n; i++) {
+        outputs[i].status = statuses[readVarint(in)];
+        outputList.outputList.add(outputs[i]);
+      }
+      if (version > 1 && in.readBoolean())
+        outputList.summary = readSummary(in);
+      else
+        outputList.summary = null;
+      return outputList;
+    } catch (IOException | RuntimeException e) {
+      throw new IllegalArgumentException("JscLambdaOutputCodec decode failed", e);
+    }
+  }
+
+  static void writeSummary(DataOutputStream out, JscLambdaSummary summary) throws IOException {
+    writeVarlong(out, summary.frames);
+    writeVarlong(out, summary.failures);
+    writeVarlong(out, summary.traces);
+    writeVarlong(out, summary.bytes);
+    out.writeDouble(summary.ioSeconds);
+    writeVarlong(out, summary.exceptionsDropped);
+    JscLatencyHistogram h = summary.latency;
+    writeVarlong(out, h.count);
+    writeVarlong(out, h.count > 0 ? h.min : 0);
+    writeVarlong(out, h.max);
+    int nonzero = 0;
+    for (long c : h.counts)
+      if (c > 0)
+        nonzero++;
+    writeVarint(out, nonzero);
+    int prev = 0;
+    for (int i = 0; i < h.counts.length; i++) {
+      if (h.counts[i] == 0)
+        continue;
+      writeVarint(out, i - prev);
+      writeVarlong(out, h.counts[i]);
+      prev = i;
+    }
+  }
+
+  static JscLambdaSummary readSummary(DataInputStream in) throws IOException {
+    JscLambdaSummary summary = new JscLambdaSummary();
+    summary.frames = readVarlong(in);
+    summary.failures = readVarlong(in);
+    summary.traces = readVarlong(in);
+    summary.bytes = readVarlong(in);
+    summary.ioSeconds = in.readDouble();
+    summary.exceptionsDropped = readVarlong(in);
+    JscLatencyHistogram h = summary.latency;
+    h.count = readVarlong(in);
+    long min = readVarlong(in);
+    h.min = h.count > 0 ? min : Long.MAX_VALUE;
+    h.max = readVarlong(in);
+    int nonzero = readVarint(in);
+    int[] index = new int[nonzero];
+    long[] counts = new long[nonzero];
+    int prev = 0;
+    for (int i = 0; i < nonzero; i++) {
+      prev += readVarint(in);
+      index[i] = prev;
+      counts[i] = readVarlong(in);
+    }
+    h.counts = new long[nonzero > 0 ? index[nonzero - 1] + 1 : 0];
+    for (int i = 0; i < nonzero; i++)
+      h.counts[index[i]] = counts[i];
+    return summary;
+  }
+
+  static void writeVarlong(DataOutputStream out, long v) throws IOException {
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  static long readVarlong(DataInputStream in) throws IOException {
+    long v = 0;
+    for (int shift = 0; shift < 70; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return v;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /** @return - true if a handler result string looks like an encoded list */
+  public static boolean isEncoded(String str) {
+    // Base64 of the magic bytes
+    return str.startsWith("SlNMT");
+  }
+
+  static int zigzag(int v) {
+    return (v << 1) ^ (v >> 31);
+  }
+
+  static int unzigzag(int v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  static void writeVarint(DataOutputStream out, int v) throws IOException {
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  static int readVarint(DataInputStream in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return v;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  // Status strings can exceed the 64k limit of writeUTF when they carry
+  // exception messages
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, b.length);
+    out.write(b);
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[readVarint(in)];
+    in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
@@ -1,39 +1,130 @@
 package org.momacmo.aws.lambda.jscio.demo;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
+import com.amazonaws.services.lambda.model.InvokeResult;
+
 public class JscLambdaOutputList {
   JscLambdaInput input;
   List<JscLambdaOutput> outputList;
+  // Counters for summaryOnly inputs, outputList then holds only failures
+  JscLambdaSummary summary;
   
   public JscLambdaOutputList( JscLambdaInput input ) {
     this.input = input;
     outputList = new ArrayList<JscLambdaOutput>();
+    if (input != null && input.summaryOnly)
+      summary = new JscLambdaSummary();
   }
   
   public void add( JscLambdaOutput output ) {
-    outputList.add(output);
+    if (summary == null) {
+      outputList.add(output);
+      return;
+    }
+    summary.add(output);
+    if (!"Success".equals(output.status))
+      addException(output);
+  }
+  
+  void addException( JscLambdaOutput output ) {
+    if (outputList.size() < JscLambdaSummary.MAX_EXCEPTIONS)
+      outputList.add(output);
+    else
+      summary.exceptionsDropped++;
   }
   
   public void add( JscLambdaOutputList addList ) {
-    outputList.addAll(addList.outputList);
+    if (summary == null) {
+      outputList.addAll(addList.outputList);
+      return;
+    }
+    if (addList.summary == null) {
+      for (JscLambdaOutput output : addList.outputList)
+        add(output);
+      return;
+    }
+    summary.merge(addList.summary);
+    for (JscLambdaOutput output : addList.outputList)
+      addException(output);
+  }
+  
+  /** @return - summary of the results, null if results are kept per frame */
+  public JscLambdaSummary getSummary() {
+    return summary;
   }
   
+  /**
+   * Add one output with the same status for every frame of an input, as for
+   * a batch that failed or timed out before returning its own list
+   */
   public void addFromInput( JscLambdaInput input, String status ) {
     for (int ivol = input.vol0; ivol <= input.voln; ivol += input.voli) {
       for (int ifrm = input.frm0; ifrm <= input.frmn; ifrm += input.frmi) {
-        this.add(new JscLambdaOutput(ifrm, ivol, status, input));
+        // Loop values are frame and volume numbers, not indexes into the input
+        JscLambdaOutput output = new JscLambdaOutput(ifrm, ivol);
+        output.setStatus(status);
+        this.add(output);
       }
     }
   }
   
+  /**
+   * Decode the output list returned by a worker invocation. Handlers return
+   * the list as a JscLambdaOutputCodec string; older handlers return json,
+   * which arrives as a quoted, escaped string.
+   */
+  public static JscLambdaOutputList fromPayload( InvokeResult result ) {
+    return fromResultString(new String(result.getPayload().array(), StandardCharsets.UTF_8));
+  }
+  
+  /**
+   * Decode a handler result string, as returned in an invocation payload
+   */
+  public static JscLambdaOutputList fromResultString( String payload ) {
+    String str = payload.trim();
+    if (str.startsWith("\"") && str.endsWith("\""))
+      str = str.substring(1, str.length()-1);
+    if (JscLambdaOutputCodec.isEncoded(str))
+      return JscLambdaOutputCodec.decode(str);
+    String outputString = payload.replaceAll("\\\\n","").replaceAll("\\\\","");
+    return (JscLambdaOutputList) JsonUtil.fromJsonString(JscLambdaOutputList.class, outputString.substring(1, outputString.length()-1));
+  }
+  
+  /** @return - compact encoding for returning the list from a handler */
+  public String encode() {
+    return JscLambdaOutputCodec.encode(this);
+  }
+  
+  /** @return - number of frames whose status is not Success */
+  public int getFailureCount() {
+    if (summary != null)
+      return (int) summary.failures;
+    int count = 0;
+    for (JscLambdaOutput output : outputList) {
+      if (!"Success".equals(output.status))
+        count++;
+    }
+    return count;
+  }
+  
+  /** @return - number of frames in the list */
+  public int size() {
+    if (summary != null)
+      return (int) summary.frames;
+    return outputList.size();
+  }
+  
   public String toString() {
     return JsonUtil.toJsonString(this);
   }
   public double getIoTime() {
+    if (summary != null)
+      return summary.ioSeconds;
     double iotime = 0;
     for (JscLambdaOutput output : outputList) {
       iotime += output.iotime;
@@ -41,6 +132,8 @@ public class JscLambdaOutputList {
     return iotime;
   }
   public long getIoCount() {
+    if (summary != null)
+      return summary.bytes;
     long iocount = 0;
     for (JscLambdaOutput output : outputList) {
       iocount += output.iobytes;
@@ -48,6 +141,8 @@ public class JscLambdaOutputList {
     return iocount;
   }
   public double getIoRate() {
+    if (summary != null)
+      return summary.getIoRate();
     double iotime = 0;
     double iocount = 0;
     for (JscLambdaOutput output : outputList) {
@@ -0,0 +1,96 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.operator.JscFrameOperator;
+import org.momacmo.aws.s3.jscio.operator.JscFramePipeline;
+import org.momacmo.aws.s3.jscio.operator.JscPipelineStatistics;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+// Lambda handler that applies a JscFrameOperator to a range of frames,
+// writing the results to outputPrefix in the same bucket. The event map also
+// carries the operator parameters. Input and output datasets are opened once
+// per container and reused by warm invocations.
+public class JscLambdaPipelineWorker implements RequestHandler<Map<String, String>, String> {
+  // Open output datasets by bucket/prefix; inputs share JscLambdaReduction's
+  static final Map<String, JsAwsS3> outputs = new ConcurrentHashMap<String, JsAwsS3>();
+  static {
+    JscLambdaRuntime.prime(JscLambdaInput.class, JscPipelineStatistics.class);
+  }
+
+  @Override
+  public String handleRequest(Map<String, String> event, Context context) {
+    LambdaLogger logger = context.getLogger();
+    JscLambdaInput input = new JscLambdaInput(event);
+    logger.log("Lambda Function Inovked: " + this.getClass().getCanonicalName() + "::handleRequest");
+    logger.log(JsonUtil.toJsonString(input));
+    if (input.operator == null || input.outputPrefix == null)
+      throw new IllegalArgumentException("Failure:\n" + "operator and outputPrefix are required\n"
+          + JsonUtil.toJsonString(input));
+    input.deadline = JscLambdaTreeFanout.getDeadline(input, context);
+    JscPipelineStatistics stats;
+    try {
+      stats = process(input, event);
+    } catch (SeisException e) {
+      e.printStackTrace();
+      String msg = "Failure:\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
+      logger.log(msg);
+      throw new IllegalStateException(msg);
+    }
+    logger.log("Lambda Function Completed: " + this.getClass().getCanonicalName() + "::handleRequest");
+    logger.log(stats.toString());
+    if (stats.framesSkipped > 0)
+      logger.log("Deadline reached with " + stats.framesSkipped + " frames not processed");
+    return JsonUtil.toJsonString(stats);
+  }
+
+  /**
+   * Run the frame pipeline over the range of an input
+   *
+   * @param input      - dataset, output prefix, operator, frame range and
+   *                   deadline
+   * @param parameters - operator parameters
+   * @return - pipeline statistics, frames left at the deadline are counted as
+   *         skipped
+   * @throws SeisException - on operator or AWS errors
+   */
+  public static JscPipelineStatistics process(JscLambdaInput input, Map<String, String> parameters)
+      throws SeisException {
+    JsAwsS3 in = JscLambdaReduction.getDataset(input.bucket, input.prefix);
+    JscFrameOperator op = JscFramePipeline.createOperator(input.operator);
+    JsAwsS3 out = getOutput(in, input.bucket, input.outputPrefix, op);
+    JscFramePipeline pipeline = new JscFramePipeline(in, out, op, parameters);
+    if (input.readThreads > 0)
+      pipeline.setThreads(input.readThreads, Runtime.getRuntime().availableProcessors(), input.readThreads);
+    pipeline.setDeadline(input.deadline);
+    int[] vrange = in.getVolumeRange();
+    int[] frange = in.getFrameRange();
+    if (input.voli > 0)
+      vrange = new int[] { input.vol0, input.voln, input.voli };
+    if (input.frmi > 0)
+      frange = new int[] { input.frm0, input.frmn, input.frmi };
+    // The pipeline flushes the header summaries of the output at the end of
+    // each run, so the cached output stays open
+    pipeline.run(vrange, frange);
+    return pipeline.getStatistics();
+  }
+
+  /** @return - the output dataset, opened or created once per container */
+  static JsAwsS3 getOutput(JsAwsS3 in, String bucket, String prefix, JscFrameOperator op) throws SeisException {
+    String key = bucket + "/" + prefix;
+    JsAwsS3 out = outputs.get(key);
+    if (out == null) {
+      out = JscFramePipeline.openOutput(in, new JsAwsS3(), bucket, prefix, op);
+      outputs.put(key, out);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,256 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.InvokeCollector;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.operator.JscFrameAggregate;
+import org.momacmo.aws.s3.jscio.operator.JscFrameReducer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.lambda.AWSLambdaAsync;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * JavaSeis Cloud dataset-wide reduction on a tree fan-out.
+ * <p>
+ * Splits a frame range over the same tree as JscLambdaTreeFanout. A leaf
+ * reduces its frames to a JscFrameAggregate with a JscFrameReducer; every
+ * other node merges the partial aggregates of its children as they complete,
+ * so the result reaches the root after one merge per level. The aggregate
+ * class is named by the "aggregate" field of the event, and the other event
+ * entries are passed to it as parameters.
+ * <p>
+ * Partial aggregates larger than JscReductionResult.SPILL_BYTES are written to
+ * S3 under SPILL_BUCKET/SPILL_PREFIX/job from the environment, defaulting to
+ * the dataset bucket and "jsc-reductions", where job is the request id of the
+ * root. They are deleted by the node that merges them, and the root deletes
+ * anything left under its job prefix when its children are done, see
+ * JscReductionResult.
+ * @author chuck@momacmo.org
+ *
+ */
+public class JscLambdaReduction implements RequestHandler<Map<String, String>, String> {
+  public static final String FUNCTION_NAME = "JscLambdaReduction";
+  public static final String DEFAULT_SPILL_PREFIX = "jsc-reductions";
+  // Open datasets by bucket/prefix, reused by warm invocations
+  static final Map<String, JsAwsS3> datasets = new ConcurrentHashMap<String, JsAwsS3>();
+  static {
+    JscLambdaRuntime.prime(JscLambdaInput.class, JscReductionResult.class);
+  }
+
+  @Override
+  public String handleRequest(Map<String, String> event, Context context) {
+    LambdaLogger logger = context.getLogger();
+    JscLambdaInput input = new JscLambdaInput(event);
+    logger.log(this.getClass().getCanonicalName() + "::handleRequest level " + input.level);
+    logger.log("Input request:\n" + JsonUtil.toJsonString(input));
+    if (input.aggregate == null || input.frmi < 1 || input.voli < 1)
+      throw new IllegalArgumentException("Failure:\n" + "aggregate and frame and volume increments are required\n"
+          + JsonUtil.toJsonString(input));
+    int batchSize = JscLambdaTreeFanout.getBatchSize(input);
+    int nframe = 1 + (input.frmn - input.frm0) / input.frmi;
+    input.deadline = JscLambdaTreeFanout.getDeadline(input, context);
+    // The root names the job, children inherit it with the rest of the event
+    boolean root = !event.containsKey("job");
+    if (root) {
+      event = new HashMap<String, String>(event);
+      event.put("job", context.getAwsRequestId());
+    }
+    String spillBucket = System.getenv("SPILL_BUCKET");
+    String spillPrefix = System.getenv("SPILL_PREFIX");
+    spillBucket = spillBucket == null ? input.bucket : spillBucket;
+    String jobPrefix = (spillPrefix == null ? DEFAULT_SPILL_PREFIX : spillPrefix) + "/" + event.get("job");
+    JscReductionResult result;
+    try {
+      if (nframe <= batchSize || input.level >= input.maxLevels) {
+        result = reduceRange(input, event);
+      } else {
+        result = split(input, event, batchSize, input.deadline, logger);
+      }
+    } catch (SeisException e) {
+      e.printStackTrace();
+      String msg = "Failure:\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
+      logger.log(msg);
+      throw new IllegalStateException(msg);
+    } finally {
+      if (root)
+        deleteSpills(spillBucket, jobPrefix, logger);
+    }
+    result.spill(JscLambdaRuntime.getS3(), spillBucket, jobPrefix + "/" + context.getAwsRequestId() + ".json");
+    logger.log("Level " + input.level + " result: " + result);
+    return result.toResultString();
+  }
+
+  /** Delete the spilled results a job left behind, a failure here only leaks objects */
+  static void deleteSpills(String bucket, String jobPrefix, LambdaLogger logger) {
+    try {
+      int n = JscReductionResult.deleteSpills(JscLambdaRuntime.getS3(), bucket, jobPrefix);
+      if (n > 0)
+        logger.log("Deleted " + n + " unmerged results under s3://" + bucket + "/" + jobPrefix);
+    } catch (Exception e) {
+      logger.log("Could not delete spilled results under s3://" + bucket + "/" + jobPrefix + ": " + e.getMessage());
+    }
+  }
+
+  /** @return - the dataset, opened once per container */
+  static JsAwsS3 getDataset(String bucket, String prefix) throws SeisException {
+    String key = bucket + "/" + prefix;
+    JsAwsS3 jsc = datasets.get(key);
+    if (jsc == null) {
+      jsc = new JsAwsS3();
+      jsc.openRemote(bucket, prefix);
+      datasets.put(key, jsc);
+    }
+    return jsc;
+  }
+
+  /**
+   * Reduce the frames of a leaf with concurrent reads
+   *
+   * @param input      - dataset, aggregate and frame range
+   * @param parameters - aggregate parameters
+   * @return - result for the range
+   * @throws SeisException - if a read fails
+   */
+  public static JscReductionResult reduceRange(JscLambdaInput input, Map<String, String> parameters)
+      throws SeisException {
+    JsAwsS3 jsc = getDataset(input.bucket, input.prefix);
+    JscFileProperties props = jsc.getFileProperties();
+    // Unpacked floats plus packed bytes, at most 4 bytes per sample
+    long frameBytes = 8L * props.gridDefinition.getNumTracesPerFrame() * props.gridDefinition.getNumSamplesPerTrace();
+    JscFrameReducer reducer = new JscFrameReducer(jsc, input.aggregate, parameters);
+    reducer.setThreads(JscLambdaFanoutWorker.getReadThreads(input, (int) Math.min(Integer.MAX_VALUE, frameBytes)));
+    reducer.setDeadline(input.deadline);
+    JscFrameAggregate aggregate = reducer.run(new int[] { input.vol0, input.voln, input.voli },
+        new int[] { input.frm0, input.frmn, input.frmi });
+    return JscReductionResult.create(aggregate, reducer.getFramesRead(), reducer.getFramesMissing(),
+        reducer.getFramesSkipped());
+  }
+
+  /** @return - number of frames in the range of an input */
+  static long getFrameCount(JscLambdaInput input) {
+    return (long) (1 + (input.voln - input.vol0) / input.voli) * (1 + (input.frmn - input.frm0) / input.frmi);
+  }
+
+  /**
+   * Divide the frame range over child nodes and merge their partial
+   * aggregates as they complete
+   */
+  static JscReductionResult split(JscLambdaInput input, Map<String, String> event, int batchSize, long deadline,
+      LambdaLogger logger) throws SeisException {
+    int nframe = 1 + (input.frmn - input.frm0) / input.frmi;
+    int leaves = (nframe + batchSize - 1) / batchSize;
+    int branching = input.branching > 1 ? input.branching
+        : JscLambdaTreeFanout.getBranching(leaves, input.maxLevels - input.level);
+    branching = Math.min(branching, leaves);
+    int batchesPerChild = (leaves + branching - 1) / branching;
+    AWSLambdaAsync lambda = JscLambdaRuntime.getLambda();
+    InvokeCollector collector = new InvokeCollector(lambda);
+    List<JscLambdaInput> children = new ArrayList<JscLambdaInput>();
+    for (int i = 0; i < leaves; i += batchesPerChild) {
+      int frm0 = input.frm0 + i * batchSize * input.frmi;
+      int frmn = Math.min(input.frmn, frm0 + (batchesPerChild * batchSize - 1) * input.frmi);
+      JscLambdaInput child = new JscLambdaInput(input);
+      child.setRange(frm0, frmn, input.frmi, input.vol0, input.voln, input.voli);
+      // Children get the whole event so aggregate parameters reach the leaves
+      Map<String, String> childEvent = new HashMap<String, String>(event);
+      childEvent.put("frm0", Integer.toString(frm0));
+      childEvent.put("frmn", Integer.toString(frmn));
+      childEvent.put("level", Integer.toString(input.level + 1));
+      childEvent.put("batchSize", Integer.toString(batchSize));
+      childEvent.put("branching", "0");
+      childEvent.put("targetConcurrency", "0");
+      // Leave the child time to return its result before this node's deadline
+      childEvent.put("deadline", Long.toString(deadline - JscLambdaTreeFanout.DEADLINE_MARGIN_MS));
+      collector.submit(new InvokeRequest().withFunctionName(FUNCTION_NAME).withPayload(JsonUtil.toJsonString(childEvent)));
+      children.add(child);
+    }
+    logger.log("Level " + input.level + ": " + children.size() + " children, " + leaves + " leaf batches of "
+        + batchSize + " frames");
+    AmazonS3 s3 = JscLambdaRuntime.getS3();
+    JscFileProperties props = getDataset(input.bucket, input.prefix).getFileProperties();
+    JscFrameAggregate aggregate = JscFrameReducer.createAggregate(input.aggregate, props, event);
+    long[] counts = new long[3];
+    boolean finished;
+    try {
+      finished = collector.collect(deadline, (index, request, result, error) -> {
+        JscLambdaInput child = children.get(index);
+        try {
+          if (error != null || result.getFunctionError() != null)
+            throw new SeisException(error != null ? error.getMessage() : result.getFunctionError());
+          JscReductionResult partial = JscReductionResult.fromPayload(result);
+          aggregate.merge(partial.getAggregate(s3, true));
+          counts[0] += partial.frames;
+          counts[1] += partial.missing;
+          counts[2] += partial.failures;
+        } catch (Exception e) {
+          logger.log("Child " + index + " failed: " + e.getMessage());
+          counts[2] += getFrameCount(child);
+        }
+      });
+    } catch (InterruptedException e) {
+      throw new SeisException("JscLambdaReduction interrupted", e);
+    }
+    if (!finished) {
+      for (int index : collector.getPending())
+        counts[2] += getFrameCount(children.get(index));
+    }
+    return JscReductionResult.create(aggregate, counts[0], counts[1], counts[2]);
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 3) {
+      System.out.println("Usage: JscLambdaReduction bucket prefix aggregateClass [name=value ...]");
+      return;
+    }
+    try {
+      JsAwsS3 jsc = new JsAwsS3();
+      jsc.openRemote(args[0], args[1]);
+      int[] vrange = jsc.getVolumeRange();
+      int[] frange = jsc.getFrameRange();
+      Map<String, String> event = new HashMap<String, String>();
+      event.put("bucket", args[0]);
+      event.put("prefix", args[1]);
+      event.put("aggregate", args[2]);
+      event.put("frm0", Integer.toString(frange[0]));
+      event.put("frmn", Integer.toString(frange[1]));
+      event.put("frmi", Integer.toString(frange[2]));
+      event.put("vol0", Integer.toString(vrange[0]));
+      event.put("voln", Integer.toString(vrange[1]));
+      event.put("voli", Integer.toString(vrange[2]));
+      event.put("maxLevels", "3");
+      event.put("targetConcurrency", "1000");
+      for (int i = 3; i < args.length; i++) {
+        String[] kv = args[i].split("=", 2);
+        if (kv.length == 2)
+          event.put(kv[0], kv[1]);
+      }
+      AWSLambdaAsync lambda = JscLambdaRuntime.getLambda();
+      long t0 = System.currentTimeMillis();
+      InvokeRequest request = new InvokeRequest().withFunctionName(FUNCTION_NAME)
+          .withPayload(JsonUtil.toJsonString(event));
+      JscReductionResult result = JscReductionResult.fromPayload(InvokeUtil.waitForResult(lambda.invokeAsync(request)));
+      JscFrameAggregate aggregate = result.getAggregate(jsc.getS3Client(), true);
+      System.out.println(result);
+      System.out.println(aggregate);
+      System.out.println("Reduction completed in " + 0.001 * (System.currentTimeMillis() - t0) + " sec");
+      jsc.shutdown();
+      System.exit(result.failures == 0 ? 0 : 1);
+    } catch (Exception e) {
+      System.out.println(e);
+      System.exit(500);
+    }
+  }
+}
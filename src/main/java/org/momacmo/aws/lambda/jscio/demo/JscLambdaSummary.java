@@ -0,0 +1,60 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+/**
+ * Mergeable summary of the results of a frame range: frame, failure, trace
+ * and byte counters, total I/O time and a latency histogram.
+ * <p>
+ * A JscLambdaOutputList created for an input with summaryOnly set keeps one of
+ * these in place of per-frame records, and lists individually only the frames
+ * that did not succeed, up to MAX_EXCEPTIONS. Summaries merge at every level
+ * of a fan-out, so payload size and aggregation cost do not grow with the
+ * number of frames.
+ */
+public class JscLambdaSummary {
+  /** Largest number of unsuccessful frames listed individually */
+  public static final int MAX_EXCEPTIONS = 100;
+  public long frames;
+  public long failures;
+  public long traces;
+  public long bytes;
+  public double ioSeconds;
+  // Unsuccessful frames counted but not listed
+  public long exceptionsDropped;
+  public JscLatencyHistogram latency = new JscLatencyHistogram();
+
+  /** Add the result for one frame */
+  public void add(JscLambdaOutput output) {
+    frames++;
+    if (!"Success".equals(output.status)) {
+      failures++;
+      return;
+    }
+    traces += output.traceCount;
+    bytes += output.iobytes;
+    ioSeconds += output.iotime;
+    latency.record(Math.round(1e6 * output.iotime));
+  }
+
+  /** Add the counters and histogram of another summary */
+  public void merge(JscLambdaSummary other) {
+    frames += other.frames;
+    failures += other.failures;
+    traces += other.traces;
+    bytes += other.bytes;
+    ioSeconds += other.ioSeconds;
+    exceptionsDropped += other.exceptionsDropped;
+    latency.merge(other.latency);
+  }
+
+  /** @return - bytes per second of I/O time, 0 if no I/O was timed */
+  public double getIoRate() {
+    return ioSeconds > 0 ? bytes / ioSeconds : 0;
+  }
+
+  public String toString() {
+    return "Frames: " + frames + " Failures: " + failures + " Traces: " + traces + " Bytes: " + bytes
+        + " I/O Rate (KiB/s): " + 1e-3 * getIoRate() + " Latency (ms) p50: "
+        + 1e-3 * latency.getValueAtPercentile(50) + " p99: " + 1e-3 * latency.getValueAtPercentile(99) + " max: "
+        + 1e-3 * latency.max;
+  }
+}
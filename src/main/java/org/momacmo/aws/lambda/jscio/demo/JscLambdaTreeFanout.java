@@ -0,0 +1,148 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.InvokeCollector;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.lambda.AWSLambdaAsync;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * JavaSeis Cloud recursive "tree" fan-out.
+ * <p>
+ * Every node runs this same function. A node whose range fits in one batch is a
+ * leaf and reads its frames directly, using the worker read path. Any other
+ * node is a splitter: it divides its frame range over a number of children
+ * and invokes this function for each of them at the next level, then merges
+ * their results. The branching factor is chosen per level from the number of
+ * leaf batches and the levels remaining, so the tree reaches thousands of
+ * concurrent workers in a few rounds of invocations instead of one long
+ * serial submission loop.
+ * @author chuck@momacmo.org
+ *
+ */
+public class JscLambdaTreeFanout implements RequestHandler<Map<String, String>, String> {
+  public static final String FUNCTION_NAME = "JscLambdaTreeFanout";
+  /** Largest number of children for one node */
+  public static final int MAX_BRANCHING = 200;
+  /** Time reserved to return partial results before this function times out */
+  public static final long DEADLINE_MARGIN_MS = 5000;
+
+  @Override
+  public String handleRequest(Map<String, String> event, Context context) {
+    LambdaLogger logger = context.getLogger();
+    JscLambdaInput input = new JscLambdaInput(event);
+    logger.log(this.getClass().getCanonicalName() + "::handleRequest level " + input.level);
+    logger.log("Input request:\n" + JsonUtil.toJsonString(input));
+    JscLambdaOutputList outputList = new JscLambdaOutputList(input);
+    int batchSize = getBatchSize(input);
+    int nframe = 1 + (input.frmn - input.frm0) / input.frmi;
+    input.deadline = getDeadline(input, context);
+    try {
+      if (nframe <= batchSize || input.level >= input.maxLevels) {
+        JscLambdaFanoutWorker.processRange(JscLambdaRuntime.getS3(), input, outputList);
+      } else {
+        split(input, batchSize, outputList, input.deadline, logger);
+      }
+    } catch (SeisException e) {
+      e.printStackTrace();
+      String msg = "Failure:\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
+      logger.log(msg);
+      throw new IllegalStateException(msg);
+    }
+    return outputList.encode();
+  }
+
+  /**
+   * Absolute time by which a node must return: its own remaining time less
+   * DEADLINE_MARGIN_MS, and no later than the deadline set by its parent
+   */
+  public static long getDeadline(JscLambdaInput input, Context context) {
+    long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis() - DEADLINE_MARGIN_MS;
+    return input.deadline > 0 ? Math.min(deadline, input.deadline) : deadline;
+  }
+
+  /**
+   * Frames per leaf: the requested batch size, grown if needed so the number
+   * of leaves does not exceed the target concurrency
+   */
+  static int getBatchSize(JscLambdaInput input) {
+    int batchSize = Math.min((input.batchSize < 1 ? 10 : input.batchSize), JscLambdaFanoutDriver.MAX_BATCH_SIZE);
+    int nframe = 1 + (input.frmn - input.frm0) / input.frmi;
+    if (input.targetConcurrency > 0 && input.level == 0)
+      batchSize = Math.max(batchSize, (nframe + input.targetConcurrency - 1) / input.targetConcurrency);
+    return batchSize;
+  }
+
+  /**
+   * Number of children for a node: the root of the remaining levels of the
+   * number of leaf batches below it, so every level has a similar fan-out
+   *
+   * @param leaves          - number of leaf batches below the node
+   * @param levelsRemaining - number of levels below the node
+   * @return - branching factor
+   */
+  public static int getBranching(int leaves, int levelsRemaining) {
+    if (levelsRemaining <= 1)
+      return Math.min(leaves, MAX_BRANCHING);
+    int branching = (int) Math.ceil(Math.pow(leaves, 1.0 / levelsRemaining) - 1e-9);
+    return Math.max(2, Math.min(branching, MAX_BRANCHING));
+  }
+
+  /**
+   * Divide the frame range over child nodes and merge their results
+   */
+  static void split(JscLambdaInput input, int batchSize, JscLambdaOutputList outputList, long deadline,
+      LambdaLogger logger) throws SeisException {
+    int nframe = 1 + (input.frmn - input.frm0) / input.frmi;
+    int leaves = (nframe + batchSize - 1) / batchSize;
+    int branching = input.branching > 1 ? input.branching : getBranching(leaves, input.maxLevels - input.level);
+    branching = Math.min(branching, leaves);
+    // Whole batches per child, so leaves keep the requested batch size
+    int batchesPerChild = (leaves + branching - 1) / branching;
+    AWSLambdaAsync lambda = JscLambdaRuntime.getLambda();
+    InvokeCollector collector = new InvokeCollector(lambda);
+    List<JscLambdaInput> children = new ArrayList<JscLambdaInput>();
+    for (int i = 0; i < leaves; i += batchesPerChild) {
+      int frm0 = input.frm0 + i * batchSize * input.frmi;
+      int frmn = Math.min(input.frmn, frm0 + (batchesPerChild * batchSize - 1) * input.frmi);
+      JscLambdaInput child = new JscLambdaInput(input);
+      child.setRange(frm0, frmn, input.frmi, input.vol0, input.voln, input.voli);
+      child.level = input.level + 1;
+      child.batchSize = batchSize;
+      child.branching = 0;
+      child.targetConcurrency = 0;
+      // Leave the child time to return its results before this node's deadline
+      child.deadline = deadline - DEADLINE_MARGIN_MS;
+      collector.submit(new InvokeRequest().withFunctionName(FUNCTION_NAME).withPayload(JsonUtil.toJsonString(child)));
+      children.add(child);
+    }
+    logger.log("Level " + input.level + ": " + children.size() + " children, " + leaves + " leaf batches of "
+        + batchSize + " frames");
+    boolean finished;
+    try {
+      finished = collector.collect(deadline, (index, request, result, error) -> {
+        if (error != null || result.getFunctionError() != null) {
+          String msg = error != null ? error.getMessage() : result.getFunctionError();
+          outputList.addFromInput(children.get(index), "Failure: " + msg);
+          return;
+        }
+        outputList.add(JscLambdaOutputList.fromPayload(result));
+      });
+    } catch (InterruptedException e) {
+      throw new SeisException("JscLambdaTreeFanout interrupted", e);
+    }
+    if (!finished) {
+      for (int index : collector.getPending())
+        outputList.addFromInput(children.get(index), "Timeout");
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable latency histogram with log-linear buckets, in the style of
+ * HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds. Values below 32 have their own bucket;
+ * larger values share buckets 1/32 of a power of two wide, so any recorded
+ * value is reported within about 3 percent. Memory and merge cost depend only
+ * on the range of values, not on how many are recorded.
+ */
+public class JscLatencyHistogram {
+  static final int SUB_BITS = 5;
+  static final int SUB_COUNT = 1 << SUB_BITS;
+  public long count;
+  public long min = Long.MAX_VALUE;
+  public long max;
+  public long[] counts = new long[0];
+
+  /** @return - bucket index for a value */
+  static int getIndex(long value) {
+    if (value < SUB_COUNT)
+      return (int) value;
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  /** @return - smallest value in a bucket */
+  static long getLowValue(int index) {
+    if (index < SUB_COUNT)
+      return index;
+    int exp = index / SUB_COUNT + SUB_BITS - 1;
+    int sub = index % SUB_COUNT;
+    return (1L << exp) | ((long) sub << (exp - SUB_BITS));
+  }
+
+  /** @return - middle of the value range of a bucket */
+  static long getMidValue(int index) {
+    if (index < SUB_COUNT)
+      return index;
+    int exp = index / SUB_COUNT + SUB_BITS - 1;
+    return getLowValue(index) + ((1L << (exp - SUB_BITS)) >> 1);
+  }
+
+  /**
+   * Record a value
+   *
+   * @param micros - latency in microseconds
+   */
+  public void record(long micros) {
+    long value = Math.max(0, micros);
+    int index = getIndex(value);
+    if (index >= counts.length)
+      counts = Arrays.copyOf(counts, index + 1);
+    counts[index]++;
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /** Add the counts of another histogram */
+  public void merge(JscLatencyHistogram other) {
+    if (other == null || other.count == 0)
+      return;
+    if (other.counts.length > counts.length)
+      counts = Arrays.copyOf(counts, other.counts.length);
+    for (int i = 0; i < other.counts.length; i++)
+      counts[i] += other.counts[i];
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * @param percentile - percentile, 0 to 100
+   * @return - value at the percentile in microseconds, 0 if empty
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0)
+      return 0;
+    long target = Math.max(1, (long) Math.ceil(0.01 * percentile * count));
+    long sum = 0;
+    for (int i = 0; i < counts.length; i++) {
+      sum += counts[i];
+      if (sum >= target)
+        return Math.max(min, Math.min(max, getMidValue(i)));
+    }
+    return max;
+  }
+
+  /** @return - mean value in microseconds, from the bucket midpoints */
+  public double getMean() {
+    if (count == 0)
+      return 0;
+    double sum = 0;
+    for (int i = 0; i < counts.length; i++)
+      sum += (double) counts[i] * getMidValue(i);
+    return sum / count;
+  }
+}
@@ -0,0 +1,149 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3Tools;
+import org.momacmo.aws.s3.jscio.operator.JscFrameAggregate;
+
+import com.amazonaws.services.lambda.model.InvokeResult;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Partial result of a JscLambdaReduction: a serialized JscFrameAggregate and
+ * frame counters.
+ * <p>
+ * Small aggregates travel inline in the invocation payload. An aggregate
+ * larger than SPILL_BYTES is written to S3 instead and the result carries only
+ * its key, so per-channel or per-volume aggregates are not limited by the
+ * Lambda payload size. The node that merges a spilled result deletes it, and
+ * the root of a reduction deletes whatever its job left below the spill prefix,
+ * such as the results of children that failed after spilling or returned too
+ * late. A lifecycle rule expiring the spill prefix after a day also catches
+ * objects left by a root that did not finish.
+ * <p>
+ * Aggregates may hold NaN or infinite values, for example the peak of data
+ * with bad samples, so they are encoded with the non-finite json literals.
+ */
+public class JscReductionResult {
+  /** Largest aggregate, as json, returned inline */
+  public static final int SPILL_BYTES = 256 * 1024;
+  static final Gson compact = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+  public String aggregate;
+  public long frames;
+  public long missing;
+  public long failures;
+  public String data;
+  public String spillBucket;
+  public String spillKey;
+
+  /**
+   * @param aggregate - partial aggregate
+   * @param frames    - frames accumulated
+   * @param missing   - frames that do not exist in the dataset
+   * @param failures  - frames lost to failed or timed out workers
+   * @return - result holding the aggregate inline
+   */
+  public static JscReductionResult create(JscFrameAggregate aggregate, long frames, long missing, long failures) {
+    JscReductionResult result = new JscReductionResult();
+    result.aggregate = aggregate.getClass().getName();
+    result.frames = frames;
+    result.missing = missing;
+    result.failures = failures;
+    result.data = compact.toJson(aggregate);
+    return result;
+  }
+
+  /**
+   * Move the aggregate to S3 if it is too large to return inline
+   *
+   * @param s3     - S3 client
+   * @param bucket - spill bucket
+   * @param key    - spill object key, unique to the invocation
+   */
+  public void spill(AmazonS3 s3, String bucket, String key) {
+    if (data == null || data.length() <= SPILL_BYTES)
+      return;
+    byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+    ObjectMetadata md = new ObjectMetadata();
+    md.setContentLength(bytes.length);
+    md.setContentType("application/json");
+    s3.putObject(bucket, key, new ByteArrayInputStream(bytes), md);
+    spillBucket = bucket;
+    spillKey = key;
+    data = null;
+  }
+
+  /** @return - true if the aggregate is held in S3 */
+  public boolean isSpilled() {
+    return spillKey != null;
+  }
+
+  /**
+   * Return the aggregate, reading it from S3 if it was spilled
+   *
+   * @param s3     - S3 client
+   * @param delete - true to delete a spilled object once read
+   * @return - the aggregate
+   * @throws SeisException - if the aggregate cannot be read
+   */
+  public JscFrameAggregate getAggregate(AmazonS3 s3, boolean delete) throws SeisException {
+    try {
+      String json = data;
+      if (isSpilled())
+        json = s3.getObjectAsString(spillBucket, spillKey);
+      return (JscFrameAggregate) compact.fromJson(json, Class.forName(aggregate));
+    } catch (Exception e) {
+      throw new SeisException("Could not load " + aggregate + " from reduction result", e);
+    } finally {
+      if (delete && isSpilled()) {
+        try {
+          s3.deleteObject(spillBucket, spillKey);
+        } catch (Exception e) {
+          // Left for the root of the job or the lifecycle rule
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete every spilled result below a prefix, for the root of a reduction
+   * once its children are done
+   *
+   * @param s3     - S3 client
+   * @param bucket - spill bucket
+   * @param prefix - spill prefix of the job
+   * @return - number of objects deleted
+   */
+  public static int deleteSpills(AmazonS3 s3, String bucket, String prefix) {
+    List<String> keys = new ArrayList<String>(JsAwsS3Tools.listKeys(s3, bucket, prefix));
+    for (int i = 0; i < keys.size(); i += JsAwsS3Tools.MAX_DELETE_KEYS)
+      JsAwsS3Tools.deleteKeys(s3, bucket, keys.subList(i, Math.min(keys.size(), i + JsAwsS3Tools.MAX_DELETE_KEYS)));
+    return keys.size();
+  }
+
+  /** @return - handler result string */
+  public String toResultString() {
+    return compact.toJson(this);
+  }
+
+  /** Decode the result of a JscLambdaReduction invocation */
+  public static JscReductionResult fromPayload(InvokeResult result) {
+    String payload = new String(result.getPayload().array(), StandardCharsets.UTF_8).trim();
+    // A String handler result arrives as a json string literal
+    if (payload.startsWith("\""))
+      payload = compact.fromJson(payload, String.class);
+    return compact.fromJson(payload, JscReductionResult.class);
+  }
+
+  public String toString() {
+    return aggregate + " Frames: " + frames + " Missing: " + missing + " Failures: " + failures
+        + (isSpilled() ? " Spilled: s3://" + spillBucket + "/" + spillKey : "");
+  }
+}
@@ -0,0 +1,344 @@
+package org.momacmo.aws.lambda.jscio.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaFanoutWorker;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaInput;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaOutputList;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageSystemAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Long running SQS consumer for EC2 and container workers.
+ * <p>
+ * Drains the same work queue as JscSqsLambdaHandler, with the same message
+ * format, read path and result sink:
+ * <ul>
+ * <li>receiver threads long poll for up to 10 messages at a time, taking only
+ * as many messages as there are free worker slots</li>
+ * <li>a bounded worker pool processes messages, sharing one S3 client and a
+ * pool of trace buffers</li>
+ * <li>a delete thread removes completed messages with DeleteMessageBatch</li>
+ * </ul>
+ * A failed message is retried after a backoff that doubles with its receive
+ * count, from RETRY_SECONDS up to MAX_RETRY_SECONDS, so a message that keeps
+ * failing does not cycle through the workers. Give the queue a redrive policy
+ * to move such messages to a dead-letter queue after a few receives. On
+ * shutdown receivers stop polling, messages already received are finished,
+ * and pending deletes are flushed.
+ */
+public class JscSqsConsumer {
+  /** SQS limits on messages per receive and entries per delete batch */
+  public static final int MAX_MESSAGES = 10;
+  public static final int WAIT_SECONDS = 20;
+  /** Longest time a completed message waits for its delete batch to fill */
+  public static final long DELETE_FLUSH_MS = 1000;
+  /** Visibility of a failed message after its first and later receives */
+  public static final int RETRY_SECONDS = 10;
+  public static final int MAX_RETRY_SECONDS = 900;
+  /** S3 connections beyond one per worker, for the result sink */
+  public static final int EXTRA_CONNECTIONS = 8;
+  AmazonSQS sqs;
+  AmazonS3 s3;
+  String queueUrl;
+  JscSqsResultSink sink;
+  int receivers;
+  int workers;
+  int visibilityTimeout = JscSqsLambdaHandler.VISIBILITY_TIMEOUT;
+  volatile boolean running;
+  Semaphore slots;
+  ExecutorService receiverPool, workerPool;
+  Thread deleter;
+  BlockingQueue<String> deletes = new LinkedBlockingQueue<String>();
+  BlockingQueue<byte[]> buffers;
+  AtomicInteger processed = new AtomicInteger();
+  AtomicInteger failed = new AtomicInteger();
+  AtomicInteger frames = new AtomicInteger();
+
+  /**
+   * @param sqs       - SQS client
+   * @param s3        - S3 client shared by all workers, see createS3Client
+   * @param queueUrl  - URL of the work queue
+   * @param receivers - number of receiver threads
+   * @param workers   - number of worker threads
+   */
+  public JscSqsConsumer(AmazonSQS sqs, AmazonS3 s3, String queueUrl, int receivers, int workers) {
+    this.sqs = sqs;
+    this.s3 = s3;
+    this.queueUrl = queueUrl;
+    this.receivers = Math.max(1, receivers);
+    this.workers = Math.max(1, workers);
+    sink = JscSqsResultSink.fromEnvironment(s3);
+  }
+
+  /**
+   * Create an S3 client with a connection for every worker, the default of 50
+   * would queue the reads of larger pools
+   *
+   * @param workers - number of worker threads
+   * @return - S3 client
+   */
+  public static AmazonS3 createS3Client(int workers) {
+    ClientConfiguration config = new ClientConfiguration()
+        .withMaxConnections(Math.max(workers + EXTRA_CONNECTIONS, 50));
+    return AmazonS3ClientBuilder.standard().withClientConfiguration(config).build();
+  }
+
+  /**
+   * @param receiveCount - number of times a message has been received
+   * @return - visibility timeout in seconds before a failed message is retried
+   */
+  static int getRetrySeconds(int receiveCount) {
+    int shift = Math.min(Math.max(0, receiveCount - 1), 20);
+    return (int) Math.min((long) RETRY_SECONDS << shift, MAX_RETRY_SECONDS);
+  }
+
+  public void setVisibilityTimeout(int visibilityTimeout) {
+    this.visibilityTimeout = visibilityTimeout;
+  }
+
+  /** Start the receiver, worker and delete threads */
+  public synchronized void start() {
+    if (running)
+      return;
+    running = true;
+    // One slot per worker plus a prefetched batch, so messages do not wait
+    // long enough in the pool to need a visibility extension
+    slots = new Semaphore(workers + MAX_MESSAGES);
+    buffers = new ArrayBlockingQueue<byte[]>(workers);
+    for (int i = 0; i < workers; i++)
+      buffers.add(new byte[0]);
+    workerPool = Executors.newFixedThreadPool(workers);
+    receiverPool = Executors.newFixedThreadPool(receivers);
+    for (int i = 0; i < receivers; i++)
+      receiverPool.submit(this::receive);
+    deleter = new Thread(this::deleteLoop, "JscSqsConsumer-delete");
+    deleter.start();
+  }
+
+  /**
+   * Stop receiving, finish the messages already received and flush deletes
+   *
+   * @param timeoutMillis - longest time to wait for messages in progress
+   * @throws InterruptedException - if the calling thread is interrupted
+   */
+  public void shutdown(long timeoutMillis) throws InterruptedException {
+    synchronized (this) {
+      if (!running)
+        return;
+      running = false;
+    }
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    receiverPool.shutdown();
+    receiverPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    workerPool.shutdown();
+    workerPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    deleter.join(Math.max(1, deadline - System.currentTimeMillis()));
+    receiverPool.shutdownNow();
+    workerPool.shutdownNow();
+  }
+
+  /** Receiver loop */
+  void receive() {
+    while (running) {
+      int n = 0;
+      try {
+        slots.acquire();
+        n = 1;
+        while (n < MAX_MESSAGES && slots.tryAcquire())
+          n++;
+        if (!running)
+          break;
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(n)
+            .withWaitTimeSeconds(WAIT_SECONDS).withVisibilityTimeout(visibilityTimeout)
+            .withAttributeNames(MessageSystemAttributeName.ApproximateReceiveCount.toString());
+        List<Message> messages = sqs.receiveMessage(request).getMessages();
+        for (Message msg : messages)
+          workerPool.submit(() -> process(msg));
+        n -= messages.size();
+      } catch (InterruptedException e) {
+        break;
+      } catch (Exception e) {
+        System.out.println("JscSqsConsumer receive failed: " + e.getMessage());
+        sleep(1000);
+      } finally {
+        slots.release(n);
+      }
+    }
+  }
+
+  /** Process one message on a worker thread */
+  void process(Message msg) {
+    byte[] trcBytes = null;
+    JscVisibilityHeartbeat heartbeat = new JscVisibilityHeartbeat(sqs, queueUrl, msg.getReceiptHandle(),
+        visibilityTimeout);
+    try {
+      JscLambdaInput input = JscSqsLambdaHandler.parseMessage(msg.getBody());
+      trcBytes = buffers.take();
+      int size = JscLambdaFanoutWorker.getTraceBufferSize(input);
+      if (trcBytes.length < size)
+        trcBytes = new byte[size];
+      JscLambdaOutputList outputList = new JscLambdaOutputList(input);
+      JscLambdaFanoutWorker.getFrameRange(s3, input, outputList, trcBytes);
+      sink.put(msg.getMessageId(), input, outputList);
+      frames.addAndGet(outputList.size());
+      if (outputList.getFailureCount() > 0)
+        throw new SeisException(outputList.getFailureCount() + " frames failed");
+      deletes.add(msg.getReceiptHandle());
+      processed.incrementAndGet();
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      System.out.println("JscSqsConsumer message " + msg.getMessageId() + " failed: " + e.getMessage());
+      // Stop extending before backing off, or the heartbeat would undo it
+      heartbeat.close();
+      try {
+        sqs.changeMessageVisibility(queueUrl, msg.getReceiptHandle(), getRetrySeconds(getReceiveCount(msg)));
+      } catch (Exception ex) {
+        // Visible again when its timeout expires
+      }
+    } finally {
+      heartbeat.close();
+      if (trcBytes != null)
+        buffers.add(trcBytes);
+      slots.release();
+    }
+  }
+
+  /** @return - approximate receive count of a message, 1 if not reported */
+  static int getReceiveCount(Message msg) {
+    String count = msg.getAttributes().get(MessageSystemAttributeName.ApproximateReceiveCount.toString());
+    try {
+      return count == null ? 1 : Integer.parseInt(count);
+    } catch (NumberFormatException e) {
+      return 1;
+    }
+  }
+
+  /** Delete loop, batches receipt handles until shutdown has drained the workers */
+  void deleteLoop() {
+    List<String> batch = new ArrayList<String>();
+    long first = 0;
+    while (true) {
+      boolean idle = !running && workerPool.isTerminated();
+      String handle = null;
+      try {
+        handle = deletes.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        idle = true;
+      }
+      if (handle != null) {
+        if (batch.isEmpty())
+          first = System.currentTimeMillis();
+        batch.add(handle);
+      }
+      if (batch.size() >= MAX_MESSAGES || (batch.size() > 0
+          && (idle || System.currentTimeMillis() - first >= DELETE_FLUSH_MS))) {
+        deleteBatch(batch);
+        batch.clear();
+      }
+      if (idle && handle == null && batch.isEmpty() && deletes.isEmpty())
+        return;
+    }
+  }
+
+  void deleteBatch(List<String> handles) {
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+    for (int i = 0; i < handles.size(); i++)
+      entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), handles.get(i)));
+    for (int attempt = 0; attempt < 3 && entries.size() > 0; attempt++) {
+      try {
+        DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+        List<DeleteMessageBatchRequestEntry> retry = new ArrayList<DeleteMessageBatchRequestEntry>();
+        for (BatchResultErrorEntry error : result.getFailed()) {
+          if (!error.isSenderFault())
+            retry.add(entries.get(indexOf(entries, error.getId())));
+        }
+        entries = retry;
+      } catch (Exception e) {
+        System.out.println("JscSqsConsumer delete failed: " + e.getMessage());
+        sleep(200);
+      }
+    }
+    // Messages that could not be deleted are redelivered and overwrite their
+    // earlier results
+  }
+
+  static int indexOf(List<DeleteMessageBatchRequestEntry> entries, String id) {
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i).getId().equals(id))
+        return i;
+    }
+    throw new IllegalStateException("Unknown batch entry id " + id);
+  }
+
+  static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** @return - number of messages completed and queued for deletion */
+  public int getProcessed() {
+    return processed.get();
+  }
+
+  /** @return - number of messages that failed */
+  public int getFailed() {
+    return failed.get();
+  }
+
+  /** @return - number of frames read */
+  public int getFrames() {
+    return frames.get();
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.out.println("Usage: JscSqsConsumer queueName [receivers workers]");
+      return;
+    }
+    int receivers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4 * Runtime.getRuntime().availableProcessors();
+    AmazonSQS sqs = JscSqsProducer.createClient(receivers + workers);
+    AmazonS3 s3 = createS3Client(workers);
+    String queueUrl = sqs.getQueueUrl(args[0]).getQueueUrl();
+    JscSqsConsumer consumer = new JscSqsConsumer(sqs, s3, queueUrl, receivers, workers);
+    long t0 = System.currentTimeMillis();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        consumer.shutdown(120000);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+      double sec = 0.001 * (System.currentTimeMillis() - t0);
+      System.out.println("JscSqsConsumer processed " + consumer.getProcessed() + " messages, " + consumer.getFrames()
+          + " frames, " + consumer.getFailed() + " failures in " + sec + " sec");
+      s3.shutdown();
+      sqs.shutdown();
+    }));
+    System.out.println("JscSqsConsumer " + queueUrl + ": " + receivers + " receivers, " + workers + " workers");
+    consumer.start();
+  }
+}
@@ -1,48 +1,41 @@
 package org.momacmo.aws.lambda.jscio.sqs;
+
+import java.util.List;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaInput;
+
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
-import com.amazonaws.services.sqs.model.AmazonSQSException;
-import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.ListQueuesResult;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
-import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
-import com.amazonaws.services.sqs.model.SendMessageResult;
 
+/**
+ * Enqueue one day of DAS data as SQS work messages for JscSqsLambdaHandler
+ */
 public class JscSqsDriver {
-  public static void main(String[] args)
-  {
-      final AmazonSQS sqs = AmazonSQSClientBuilder.defaultClient();
-
+  public static void main(String[] args) {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int framesPerTask = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    final AmazonSQS sqs = JscSqsProducer.createClient(threads);
+    String queueUrl = sqs.getQueueUrl("jsc-io-queue").getQueueUrl();
 
-      String queueUrl = sqs.getQueueUrl("jsc-io-queue").getQueueUrl();
-      ListQueuesResult lq_result = sqs.listQueues();
-      System.out.println("Your SQS Queue URLs:");
-      for (String url : lq_result.getQueueUrls()) {
-          System.out.println(url);
-      }
-      System.out.println("Send message ...");
-      SendMessageRequest send_msg_request = new SendMessageRequest()
-              .withQueueUrl(queueUrl)
-              .withMessageBody("{\"bucket\": \"momacmos3\",\"prefix\": \"momacmo/meagerdas/1432_aws_output_filt_5_50_despike\", \"nsamp\": \"1250\",\"ntrace\": \"380\",\"volume\": \"11\",\"frame\": \"403\"}")
-              .withDelaySeconds(1);
-      SendMessageResult result = sqs.sendMessage(send_msg_request);
-      System.out.println("Result:");
-      System.out.println(result);
+    JscLambdaInput input = new JscLambdaInput();
+    input.setBucket("momacmos3");
+    input.setPrefix("momacmo/meagerdas/1432_aws_output_filt_5_50_despike");
+    input.setRange(1, 8640, 1, 11, 11, 1);
+    input.setNsamp(1250);
+    input.setNtrace(380);
 
-      sqs.shutdown();
-      // Send multiple messages to the queue
-      /*
-      SendMessageBatchRequest send_batch_request = new SendMessageBatchRequest()
-              .withQueueUrl(queueUrl)
-              .withEntries(
-                      new SendMessageBatchRequestEntry(
-                              "msg_1", "Hello from message 1"),
-                      new SendMessageBatchRequestEntry(
-                              "msg_2", "Hello from message 2")
-                              .withDelaySeconds(10));
-      sqs.sendMessageBatch(send_batch_request);
-      */
+    List<JscLambdaInput> tasks = JscSqsProducer.getTasks(input, framesPerTask);
+    JscSqsProducer producer = new JscSqsProducer(sqs, queueUrl, threads);
+    System.out.println("Send " + tasks.size() + " messages to " + queueUrl);
+    long t0 = System.currentTimeMillis();
+    try {
+      producer.sendTasks(tasks);
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+    double sec = 0.001 * (System.currentTimeMillis() - t0);
+    System.out.println("Sent " + producer.getSent() + " messages in " + sec + " sec, " + producer.getRetried()
+        + " entry retries, " + (sec > 0 ? producer.getSent() / sec : 0) + " messages/s");
+    sqs.shutdown();
   }
 }
@@ -1,10 +1,17 @@
 package org.momacmo.aws.lambda.jscio.sqs;
 
-import org.javaseis.compress.TraceCompressor;
-import org.javaseis.properties.DataFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.javaseis.util.SeisException;
 import org.momacmo.aws.lambda.jscio.demo.JscLambdaFanoutWorker;
 import org.momacmo.aws.lambda.jscio.demo.JscLambdaInput;
 import org.momacmo.aws.lambda.jscio.demo.JscLambdaOutput;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaOutputList;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.auth.AWSCredentials;
@@ -13,49 +20,169 @@ import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+
+/**
+ * Pull based worker for JavaSeis Cloud frame ranges delivered through SQS.
+ * <p>
+ * Each message body is a JscLambdaInput in json form describing a range of
+ * frames. Ranges are read with the same path as the fan-out worker, and the
+ * results for each message are written to a JscSqsResultSink. Workers take
+ * messages as they become free, so fast and slow ranges balance across
+ * workers without the static batches of the fan-out driver.
+ * <p>
+ * While a batch is processed the visibility timeout of every message in it
+ * that is not finished is extended by one JscVisibilityHeartbeat per queue,
+ * so neither long ranges nor messages waiting later in the batch are
+ * redelivered mid-way. The
+ * timeout comes from the environment variable VISIBILITY_TIMEOUT_SECONDS
+ * (default 60).
+ * <p>
+ * Failures are reported per message with a partial batch response, so only
+ * the failed messages are redelivered. The event source mapping must enable
+ * ReportBatchItemFailures; large batch sizes and batching windows are then
+ * safe to use. Work stops at the function deadline: frames not read in time
+ * fail their message and messages not started are returned unprocessed.
+ */
+public class JscSqsLambdaHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+  static {
+    JscLambdaRuntime.prime(JscLambdaInput.class, JscLambdaOutputList.class);
+  }
+  static final int VISIBILITY_TIMEOUT = getEnv("VISIBILITY_TIMEOUT_SECONDS", 60);
+  // Queue URLs by queue ARN
+  static Map<String, String> queueUrls = new ConcurrentHashMap<String, String>();
+  /** Time reserved to return the batch response before the function times out */
+  static final long DEADLINE_MARGIN_MS = 5000;
 
-public class JscSqsLambdaHandler implements RequestHandler<SQSEvent, String> {
   @Override
-  public String handleRequest(SQSEvent event, Context context) {
+  public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
     AmazonS3 s3 = null;
+    AmazonSQS sqs = null;
     LambdaLogger logger = context.getLogger();
     try {
       logger.log("Get S3 client ... ");
       System.out.flush();
-      s3 = AmazonS3ClientBuilder.standard().build();
+      s3 = JscLambdaRuntime.getS3();
+      sqs = JscLambdaRuntime.getSqs();
       logger.log("... S3 client found");
     } catch (Exception e) {
       e.printStackTrace();
       throw new IllegalStateException("Failure: Could not connect to S3\n"+e.getMessage(),e.getCause());
     }
-    JscLambdaInput input = null;
-    byte[] trcBytes = null;
-    for (SQSMessage msg : event.getRecords()) {
-      String body = msg.getBody();
-      input = (JscLambdaInput) JsonUtil.fromJsonString(JscLambdaInput.class, body);
-      System.out.println(JsonUtil.toJsonString(input));
-      if (trcBytes == null) {
-        int reclen = 0;
+    JscSqsResultSink sink = JscSqsResultSink.fromEnvironment(s3);
+    List<SQSBatchResponse.BatchItemFailure> failures = new ArrayList<SQSBatchResponse.BatchItemFailure>();
+    int frames = 0;
+    // Messages are processed before this deadline; the rest are returned
+    long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis() - DEADLINE_MARGIN_MS;
+    // Keep every message of the batch invisible, not only the one in progress,
+    // so messages waiting their turn are not delivered a second time
+    Map<String, JscVisibilityHeartbeat> heartbeats = new HashMap<String, JscVisibilityHeartbeat>();
+    try {
+      for (SQSMessage msg : event.getRecords()) {
+        String queueUrl = getQueueUrl(sqs, msg.getEventSourceArn());
+        JscVisibilityHeartbeat heartbeat = heartbeats.get(queueUrl);
+        if (heartbeat == null) {
+          heartbeat = new JscVisibilityHeartbeat(sqs, queueUrl, VISIBILITY_TIMEOUT);
+          heartbeats.put(queueUrl, heartbeat);
+        }
+        heartbeat.add(msg.getMessageId(), msg.getReceiptHandle());
+      }
+      for (SQSMessage msg : event.getRecords()) {
+        // Messages not started before the deadline are returned for redelivery
+        if (System.currentTimeMillis() >= deadline) {
+          failures.add(new SQSBatchResponse.BatchItemFailure(msg.getMessageId()));
+          continue;
+        }
         try {
-          reclen = TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp);
+          // Frames not read by the deadline fail the message, so it is retried
+          JscLambdaOutputList outputList = processMessage(s3, sink, msg.getMessageId(), msg.getBody(), deadline);
+          int failed = outputList.getFailureCount();
+          if (failed > 0) {
+            logger.log("Failure: " + failed + " frames failed for message " + msg.getMessageId());
+            failures.add(new SQSBatchResponse.BatchItemFailure(msg.getMessageId()));
+          }
+          frames += outputList.size();
         } catch (Exception e) {
           e.printStackTrace();
-          throw new IllegalStateException("Failure: Could not connect to S3\n"+e.getMessage(),e.getCause());
+          logger.log("Failure: message " + msg.getMessageId() + "\n" + e.getMessage());
+          failures.add(new SQSBatchResponse.BatchItemFailure(msg.getMessageId()));
         }
-        if (input.ntrace == 0 || reclen == 0) {
-          throw new IllegalStateException("Failure: record length is zero");
-        }
-        trcBytes = new byte[input.ntrace * reclen];
+        heartbeats.get(getQueueUrl(sqs, msg.getEventSourceArn())).remove(msg.getMessageId());
       }
-      //JscLambdaOutput output = JscProcessingWorker.getFrameTraces(s3, input, trcBytes);
-      //outputList.add(output);
+    } finally {
+      for (JscVisibilityHeartbeat heartbeat : heartbeats.values())
+        heartbeat.close();
     }
+    logger.log("Processed " + event.getRecords().size() + " messages, " + frames + " frames, " + failures.size()
+        + " failed messages");
+    return new SQSBatchResponse(failures);
+  }
+
+  /**
+   * Read the frame range described by one message and store the results
+   *
+   * @param s3        - S3 client
+   * @param sink      - destination for the results
+   * @param messageId - SQS message id, names the result object
+   * @param body      - message body, a JscLambdaInput in json form
+   * @param deadline  - absolute time in milliseconds after which no frame is
+   *                  started, zero for none
+   * @return - results for every frame in the range
+   * @throws SeisException - if the message does not describe a valid range
+   */
+  public static JscLambdaOutputList processMessage(AmazonS3 s3, JscSqsResultSink sink, String messageId, String body,
+      long deadline) throws SeisException {
+    JscLambdaInput input = parseMessage(body);
+    input.deadline = deadline;
+    JscLambdaOutputList outputList = new JscLambdaOutputList(input);
+    JscLambdaFanoutWorker.processRange(s3, input, outputList);
+    sink.put(messageId, input, outputList);
+    return outputList;
+  }
+
+  /**
+   * Decode and check the frame range carried by a message
+   *
+   * @param body - message body, a JscLambdaInput in json form
+   * @return - the frame range
+   * @throws SeisException - if the message does not describe a valid range
+   */
+  public static JscLambdaInput parseMessage(String body) throws SeisException {
+    JscLambdaInput input;
+    try {
+      input = (JscLambdaInput) JsonUtil.fromJsonString(JscLambdaInput.class, body);
+    } catch (RuntimeException e) {
+      throw new SeisException("Invalid work message: " + body, e);
+    }
+    if (input == null || input.ntrace < 1 || input.nsamp < 1)
+      throw new SeisException("Invalid work message: " + body);
+    // Single frame messages may omit the increments
+    input.frmi = Math.max(1, input.frmi);
+    input.voli = Math.max(1, input.voli);
+    input.frmn = Math.max(input.frm0, input.frmn);
+    input.voln = Math.max(input.vol0, input.voln);
+    return input;
+  }
+
+  /**
+   * Return the URL of a queue from its ARN, arn:aws:sqs:region:account:name
+   */
+  static String getQueueUrl(AmazonSQS sqs, String arn) {
+    return queueUrls.computeIfAbsent(arn, a -> {
+      String[] parts = a.split(":");
+      return sqs.getQueueUrl(new GetQueueUrlRequest(parts[5]).withQueueOwnerAWSAccountId(parts[4])).getQueueUrl();
+    });
+  }
 
-    return "OogaBooga";
+  static int getEnv(String name, int defaultValue) {
+    String str = System.getenv(name);
+    return str == null ? defaultValue : Integer.parseInt(str);
   }
 
   public static void main(String[] args) {
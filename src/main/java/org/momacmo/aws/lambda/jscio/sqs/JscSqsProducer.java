@@ -0,0 +1,183 @@
+package org.momacmo.aws.lambda.jscio.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaInput;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * High rate producer of JavaSeis Cloud work messages.
+ * <p>
+ * A frame range is split into tasks of a fixed number of frames, each sent as
+ * a JscLambdaInput json message. Messages are packed into SendMessageBatch
+ * calls of up to 10 entries, and batches are sent concurrently from a thread
+ * pool. Entries that fail with a service side error are retried with backoff;
+ * only the failed entries are resent, never the whole batch.
+ */
+public class JscSqsProducer {
+  /** SQS limit on entries per SendMessageBatch call */
+  public static final int MAX_BATCH = 10;
+  public static final int MAX_RETRIES = 5;
+  AmazonSQS sqs;
+  String queueUrl;
+  int threads;
+  AtomicInteger sent = new AtomicInteger();
+  AtomicInteger retried = new AtomicInteger();
+
+  /**
+   * @param sqs      - SQS client, with at least threads connections
+   * @param queueUrl - URL of the work queue
+   * @param threads  - number of concurrent senders
+   */
+  public JscSqsProducer(AmazonSQS sqs, String queueUrl, int threads) {
+    this.sqs = sqs;
+    this.queueUrl = queueUrl;
+    this.threads = Math.max(1, threads);
+  }
+
+  /** @return - SQS client with a connection per sender thread */
+  public static AmazonSQS createClient(int threads) {
+    ClientConfiguration config = new ClientConfiguration().withMaxConnections(Math.max(threads, 50));
+    return AmazonSQSClientBuilder.standard().withClientConfiguration(config).build();
+  }
+
+  /**
+   * Split a frame range into tasks, within one volume each
+   *
+   * @param input         - full range of frames and volumes
+   * @param framesPerTask - frames per task
+   * @return - one input per task
+   */
+  public static List<JscLambdaInput> getTasks(JscLambdaInput input, int framesPerTask) {
+    int frmi = Math.max(1, input.frmi);
+    int voli = Math.max(1, input.voli);
+    int n = Math.max(1, framesPerTask);
+    List<JscLambdaInput> tasks = new ArrayList<JscLambdaInput>();
+    for (int volume = input.vol0; volume <= input.voln; volume += voli) {
+      for (int frame = input.frm0; frame <= input.frmn; frame += n * frmi) {
+        JscLambdaInput task = new JscLambdaInput(input);
+        task.setRange(frame, Math.min(input.frmn, frame + (n - 1) * frmi), frmi, volume, volume, 1);
+        tasks.add(task);
+      }
+    }
+    return tasks;
+  }
+
+  /**
+   * Send one message per task
+   *
+   * @return - number of messages sent
+   * @throws SeisException - if any message could not be sent
+   */
+  public int sendTasks(List<JscLambdaInput> tasks) throws SeisException {
+    List<String> bodies = new ArrayList<String>(tasks.size());
+    for (JscLambdaInput task : tasks)
+      bodies.add(JsonUtil.toJsonString(task));
+    return send(bodies);
+  }
+
+  /**
+   * Send messages in batches of up to 10, from concurrent threads
+   *
+   * @param bodies - message bodies
+   * @return - number of messages sent
+   * @throws SeisException - if any message could not be sent
+   */
+  public int send(List<String> bodies) throws SeisException {
+    sent.set(0);
+    retried.set(0);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+    try {
+      for (int i = 0; i < bodies.size(); i += MAX_BATCH) {
+        List<String> batch = bodies.subList(i, Math.min(bodies.size(), i + MAX_BATCH));
+        futures.add(pool.submit(() -> sendBatch(batch)));
+      }
+      List<String> failures = new ArrayList<String>();
+      for (Future<List<String>> f : futures)
+        failures.addAll(f.get());
+      if (failures.size() > 0)
+        throw new SeisException("JscSqsProducer: " + failures.size() + " of " + bodies.size()
+            + " messages not sent, first error: " + failures.get(0));
+    } catch (SeisException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SeisException("JscSqsProducer failed after " + sent.get() + " messages", e);
+    } finally {
+      pool.shutdownNow();
+    }
+    return sent.get();
+  }
+
+  /**
+   * Send one batch, resending only the entries that failed
+   *
+   * @return - errors for entries that could not be sent
+   */
+  List<String> sendBatch(List<String> batch) throws InterruptedException {
+    List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+    for (int i = 0; i < batch.size(); i++)
+      entries.add(new SendMessageBatchRequestEntry(Integer.toString(i), batch.get(i)));
+    List<String> errors = new ArrayList<String>();
+    for (int attempt = 0; entries.size() > 0; attempt++) {
+      if (attempt > 0)
+        Thread.sleep(Math.min(5000, 50L << attempt));
+      SendMessageBatchResult result;
+      try {
+        result = sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+      } catch (Exception e) {
+        if (attempt >= MAX_RETRIES) {
+          errors.add(e.getMessage());
+          return errors;
+        }
+        retried.addAndGet(entries.size());
+        continue;
+      }
+      sent.addAndGet(result.getSuccessful().size());
+      List<SendMessageBatchRequestEntry> retry = new ArrayList<SendMessageBatchRequestEntry>();
+      for (BatchResultErrorEntry failed : result.getFailed()) {
+        SendMessageBatchRequestEntry entry = entries.get(indexOf(entries, failed.getId()));
+        // Sender faults such as an oversized body fail again on retry
+        if (failed.isSenderFault() || attempt >= MAX_RETRIES)
+          errors.add(failed.getCode() + ": " + failed.getMessage());
+        else
+          retry.add(entry);
+      }
+      retried.addAndGet(retry.size());
+      entries = retry;
+    }
+    return errors;
+  }
+
+  static int indexOf(List<SendMessageBatchRequestEntry> entries, String id) {
+    for (int i = 0; i < entries.size(); i++) {
+      if (entries.get(i).getId().equals(id))
+        return i;
+    }
+    throw new IllegalStateException("Unknown batch entry id " + id);
+  }
+
+  /** @return - number of messages sent by the last call */
+  public int getSent() {
+    return sent.get();
+  }
+
+  /** @return - number of entry retries in the last call */
+  public int getRetried() {
+    return retried.get();
+  }
+}
@@ -0,0 +1,65 @@
+package org.momacmo.aws.lambda.jscio.sqs;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaInput;
+import org.momacmo.aws.lambda.jscio.demo.JscLambdaOutputList;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Stores the results of SQS work messages in S3, one json object per message:
+ * <p>
+ * <code>
+ * resultBucket/resultPrefix/messageId.json
+ * </code>
+ * <p>
+ * The bucket and prefix come from the environment variables RESULT_BUCKET and
+ * RESULT_PREFIX. Without RESULT_BUCKET results go to the dataset bucket.
+ */
+public class JscSqsResultSink {
+  public static final String DEFAULT_PREFIX = "jsc-sqs-results";
+  AmazonS3 s3;
+  String bucket;
+  String prefix;
+
+  /**
+   * @param s3     - S3 client
+   * @param bucket - result bucket, null to use the bucket of each input
+   * @param prefix - result prefix
+   */
+  public JscSqsResultSink(AmazonS3 s3, String bucket, String prefix) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.prefix = prefix;
+  }
+
+  public static JscSqsResultSink fromEnvironment(AmazonS3 s3) {
+    String prefix = System.getenv("RESULT_PREFIX");
+    return new JscSqsResultSink(s3, System.getenv("RESULT_BUCKET"), prefix == null ? DEFAULT_PREFIX : prefix);
+  }
+
+  /** @return - key of the result object for a message */
+  public String getKey(String messageId) {
+    return prefix + "/" + messageId + ".json";
+  }
+
+  /**
+   * Store the results of one message. A redelivered message overwrites its
+   * earlier result.
+   *
+   * @param messageId  - SQS message id
+   * @param input      - work described by the message
+   * @param outputList - results for the work
+   */
+  public void put(String messageId, JscLambdaInput input, JscLambdaOutputList outputList) {
+    byte[] bytes = JsonUtil.toJsonString(outputList).getBytes(StandardCharsets.UTF_8);
+    ObjectMetadata md = new ObjectMetadata();
+    md.setContentLength(bytes.length);
+    md.setContentType("application/json");
+    s3.putObject(bucket == null ? input.bucket : bucket, getKey(messageId), new ByteArrayInputStream(bytes), md);
+  }
+}
@@ -0,0 +1,139 @@
+package org.momacmo.aws.lambda.jscio.sqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+
+/**
+ * Keeps SQS messages invisible while they are being processed.
+ * <p>
+ * The visibility timeout of the messages is extended every half timeout, so a
+ * long frame range is not redelivered to another worker part way through.
+ * One heartbeat covers any number of messages from a queue: they are extended
+ * with batch requests of up to ten messages, sent concurrently on the shared
+ * I/O pool. Remove messages as they are finished; extensions stop when the
+ * heartbeat is closed, so close it in a finally block.
+ */
+public class JscVisibilityHeartbeat implements AutoCloseable {
+  /** Most messages in one ChangeMessageVisibilityBatch request */
+  static final int MAX_BATCH_ENTRIES = 10;
+  /** Threads that start the extensions of the heartbeats due */
+  static final int SCHEDULER_THREADS = 4;
+  static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, r -> {
+    Thread t = new Thread(r, "JscVisibilityHeartbeat");
+    t.setDaemon(true);
+    return t;
+  });
+  AmazonSQS sqs;
+  String queueUrl;
+  int timeoutSeconds;
+  // Receipt handles by message id, for the messages still being processed
+  Map<String, String> handles = new ConcurrentHashMap<String, String>();
+  ScheduledFuture<?> task;
+  volatile boolean closed;
+
+  /**
+   * Start extending the visibility of the messages added to the heartbeat
+   *
+   * @param sqs            - SQS client
+   * @param queueUrl       - URL of the queue holding the messages
+   * @param timeoutSeconds - visibility timeout set by each extension
+   */
+  public JscVisibilityHeartbeat(AmazonSQS sqs, String queueUrl, int timeoutSeconds) {
+    this.sqs = sqs;
+    this.queueUrl = queueUrl;
+    this.timeoutSeconds = timeoutSeconds;
+    long period = Math.max(1, timeoutSeconds / 2);
+    task = scheduler.scheduleAtFixedRate(this::extend, period, period, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Start extending the visibility of a single message
+   *
+   * @param sqs            - SQS client
+   * @param queueUrl       - URL of the queue holding the message
+   * @param receiptHandle  - receipt handle of the message
+   * @param timeoutSeconds - visibility timeout set by each extension
+   */
+  public JscVisibilityHeartbeat(AmazonSQS sqs, String queueUrl, String receiptHandle, int timeoutSeconds) {
+    this(sqs, queueUrl, timeoutSeconds);
+    add("message", receiptHandle);
+  }
+
+  /**
+   * Extend the visibility of a message until it is removed
+   *
+   * @param messageId     - message id, letters, digits, hyphens and underscores
+   * @param receiptHandle - receipt handle of the message
+   */
+  public void add(String messageId, String receiptHandle) {
+    handles.put(messageId, receiptHandle);
+  }
+
+  /** Stop extending the visibility of a message that has been processed */
+  public void remove(String messageId) {
+    handles.remove(messageId);
+  }
+
+  synchronized void extend() {
+    if (closed)
+      return;
+    List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+    for (Map.Entry<String, String> handle : handles.entrySet())
+      entries.add(new ChangeMessageVisibilityBatchRequestEntry(handle.getKey(), handle.getValue())
+          .withVisibilityTimeout(timeoutSeconds));
+    List<Future<?>> requests = new ArrayList<Future<?>>();
+    for (int i = 0; i < entries.size(); i += MAX_BATCH_ENTRIES) {
+      List<ChangeMessageVisibilityBatchRequestEntry> batch = entries.subList(i,
+          Math.min(entries.size(), i + MAX_BATCH_ENTRIES));
+      requests.add(JscLambdaRuntime.getIoPool().submit(() -> extend(batch)));
+    }
+    // Wait for the requests, so none is still in flight once close returns
+    for (Future<?> request : requests) {
+      try {
+        request.get();
+      } catch (Exception e) {
+        System.out.println("JscVisibilityHeartbeat: " + e.getMessage());
+      }
+    }
+  }
+
+  void extend(List<ChangeMessageVisibilityBatchRequestEntry> batch) {
+    try {
+      ChangeMessageVisibilityBatchResult result = sqs
+          .changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, batch));
+      for (BatchResultErrorEntry error : result.getFailed()) {
+        // The message was deleted or its handle expired, nothing left to extend
+        System.out.println("JscVisibilityHeartbeat: " + error.getId() + " " + error.getMessage());
+        handles.remove(error.getId());
+      }
+    } catch (Exception e) {
+      // Try again at the next extension
+      System.out.println("JscVisibilityHeartbeat: " + e.getMessage());
+    }
+  }
+
+  /** Stop the extensions, waiting for one that is in progress */
+  @Override
+  public void close() {
+    closed = true;
+    task.cancel(false);
+    synchronized (this) {
+      handles.clear();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package org.momacmo.aws.lambda.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.lambda.AWSLambdaAsync;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.model.InvokeResult;
+
+/**
+ * Completion driven collection of asynchronous Lambda invocations.
+ * <p>
+ * Each request is submitted with an AsyncHandler that queues its outcome the
+ * moment the invocation finishes, so results are processed in completion
+ * order without polling, partial aggregates can be updated as results arrive,
+ * and collection can stop at an overall deadline.
+ */
+public class InvokeCollector {
+
+  /** Receives each invocation outcome as it arrives */
+  public interface ResultHandler {
+    /**
+     * @param index   - submission index of the request
+     * @param request - the request
+     * @param result  - the result, null if the invocation failed
+     * @param error   - the failure, null if the invocation succeeded
+     */
+    void onResult(int index, InvokeRequest request, InvokeResult result, Exception error);
+  }
+
+  /** Outcome of one invocation */
+  static class Completion {
+    int index;
+    InvokeRequest request;
+    InvokeResult result;
+    Exception error;
+
+    Completion(int index, InvokeRequest request, InvokeResult result, Exception error) {
+      this.index = index;
+      this.request = request;
+      this.result = result;
+      this.error = error;
+    }
+  }
+
+  AWSLambdaAsync lambda;
+  BlockingQueue<Completion> completions = new LinkedBlockingQueue<Completion>();
+  List<InvokeRequest> requests = new ArrayList<InvokeRequest>();
+  boolean[] done = new boolean[0];
+  int completed;
+
+  public InvokeCollector(AWSLambdaAsync lambda) {
+    this.lambda = lambda;
+  }
+
+  /**
+   * Submit a request
+   *
+   * @param request - Lambda invocation
+   * @return - submission index of the request
+   */
+  public synchronized int submit(InvokeRequest request) {
+    int index = requests.size();
+    requests.add(request);
+    lambda.invokeAsync(request, new AsyncHandler<InvokeRequest, InvokeResult>() {
+      @Override
+      public void onSuccess(InvokeRequest req, InvokeResult result) {
+        completions.add(new Completion(index, req, result, null));
+      }
+
+      @Override
+      public void onError(Exception e) {
+        completions.add(new Completion(index, request, null, e));
+      }
+    });
+    return index;
+  }
+
+  /** @return - number of requests submitted */
+  public synchronized int getSubmitted() {
+    return requests.size();
+  }
+
+  /** @return - number of outcomes handed to a handler */
+  public int getCompleted() {
+    return completed;
+  }
+
+  /**
+   * Hand outcomes to a handler as they arrive, until every submitted request has
+   * completed or the deadline passes
+   *
+   * @param deadline - absolute deadline in epoch milliseconds
+   * @param handler  - receives each outcome, on the calling thread
+   * @return - true if every request completed before the deadline
+   * @throws InterruptedException - if the calling thread is interrupted
+   */
+  public boolean collect(long deadline, ResultHandler handler) throws InterruptedException {
+    while (completed < getSubmitted()) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0)
+        return false;
+      Completion c = completions.poll(wait, TimeUnit.MILLISECONDS);
+      if (c == null)
+        return false;
+      synchronized (this) {
+        if (done.length < requests.size())
+          done = Arrays.copyOf(done, requests.size());
+        done[c.index] = true;
+      }
+      completed++;
+      handler.onResult(c.index, c.request, c.result, c.error);
+    }
+    return true;
+  }
+
+  /**
+   * Wait for every result, returned in submission order
+   *
+   * @param timeoutMillis - overall timeout
+   * @return - results, in submission order
+   * @throws IllegalStateException - if an invocation fails or the timeout passes
+   */
+  public List<InvokeResult> collectAll(long timeoutMillis) {
+    InvokeResult[] results = new InvokeResult[getSubmitted()];
+    Exception[] failure = new Exception[1];
+    boolean finished;
+    try {
+      finished = collect(System.currentTimeMillis() + timeoutMillis, (index, request, result, error) -> {
+        results[index] = result;
+        if (error != null && failure[0] == null)
+          failure[0] = error;
+      });
+    } catch (InterruptedException e) {
+      throw new IllegalStateException("Interrupted while collecting results", e);
+    }
+    if (failure[0] != null)
+      throw new IllegalStateException("Invocation failed: " + failure[0].getMessage(), failure[0]);
+    if (!finished)
+      throw new IllegalStateException("Timed out with " + getPending().size() + " invocations pending");
+    List<InvokeResult> list = new ArrayList<InvokeResult>(results.length);
+    for (InvokeResult r : results)
+      list.add(r);
+    return list;
+  }
+
+  /** @return - submission indexes of requests that have not completed */
+  public synchronized List<Integer> getPending() {
+    List<Integer> pending = new ArrayList<Integer>();
+    for (int i = 0; i < requests.size(); i++) {
+      if (i >= done.length || !done[i])
+        pending.add(i);
+    }
+    return pending;
+  }
+
+  /** @return - a submitted request */
+  public synchronized InvokeRequest getRequest(int index) {
+    return requests.get(index);
+  }
+}
@@ -0,0 +1,127 @@
+package org.momacmo.aws.lambda.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * Local measurement of cold and warm handler latency.
+ * <p>
+ * Loads a handler class in a fresh JVM, timing class initialization (which
+ * includes JscLambdaRuntime priming) and the first invocation, then repeats
+ * the invocation to measure warm latency. Run once as is and once with
+ * JSC_PRIME=false to see how much of the first invocation priming moves into
+ * the init phase.
+ */
+public class JscHandlerBenchmark {
+
+  /** Minimal Context for running handlers outside Lambda */
+  static class LocalContext implements Context, LambdaLogger {
+    boolean verbose;
+
+    LocalContext(boolean verbose) {
+      this.verbose = verbose;
+    }
+
+    public String getAwsRequestId() {
+      return "local";
+    }
+
+    public String getLogGroupName() {
+      return "local";
+    }
+
+    public String getLogStreamName() {
+      return "local";
+    }
+
+    public String getFunctionName() {
+      return "JscHandlerBenchmark";
+    }
+
+    public String getFunctionVersion() {
+      return "$LATEST";
+    }
+
+    public String getInvokedFunctionArn() {
+      return "local";
+    }
+
+    public CognitoIdentity getIdentity() {
+      return null;
+    }
+
+    public ClientContext getClientContext() {
+      return null;
+    }
+
+    public int getRemainingTimeInMillis() {
+      return 900000;
+    }
+
+    public int getMemoryLimitInMB() {
+      return (int) (Runtime.getRuntime().maxMemory() >> 20);
+    }
+
+    public LambdaLogger getLogger() {
+      return this;
+    }
+
+    public void log(String message) {
+      if (verbose)
+        System.out.println(message);
+    }
+
+    public void log(byte[] message) {
+      log(new String(message, StandardCharsets.UTF_8));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws Exception {
+    String handlerClass = args.length > 0 ? args[0] : "org.momacmo.aws.lambda.jscio.demo.JscLambdaFanoutWorker";
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    Map<String, String> event = new HashMap<String, String>();
+    event.put("bucket", "momacmos3");
+    event.put("prefix", "momacmo/meagerdas/1432_aws_output_filt_5_50_despike");
+    event.put("frm0", "401");
+    event.put("frmn", "405");
+    event.put("frmi", "1");
+    event.put("vol0", "11");
+    event.put("voln", "11");
+    event.put("voli", "1");
+    event.put("nsamp", "1250");
+    event.put("ntrace", "380");
+    LocalContext context = new LocalContext(false);
+
+    long t0 = System.nanoTime();
+    RequestHandler<Map<String, String>, String> handler = (RequestHandler<Map<String, String>, String>) Class
+        .forName(handlerClass).getDeclaredConstructor().newInstance();
+    long t1 = System.nanoTime();
+    handler.handleRequest(event, context);
+    long t2 = System.nanoTime();
+    double[] warm = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long t = System.nanoTime();
+      handler.handleRequest(event, context);
+      warm[i] = 1e-6 * (System.nanoTime() - t);
+    }
+    Arrays.sort(warm);
+    System.out.println("Handler: " + handlerClass + (("false".equalsIgnoreCase(System.getenv("JSC_PRIME")))
+        ? " (not primed)" : ""));
+    System.out.println("Init (class load and priming): " + 1e-6 * (t1 - t0) + " ms");
+    System.out.println("First invocation: " + 1e-6 * (t2 - t1) + " ms");
+    System.out.println("Cold total: " + 1e-6 * (t2 - t0) + " ms");
+    if (iterations > 0)
+      System.out.println("Warm invocations: min " + warm[0] + " ms, median " + warm[iterations / 2] + " ms, max "
+          + warm[iterations - 1] + " ms");
+    System.exit(0);
+  }
+}
@@ -0,0 +1,213 @@
+package org.momacmo.aws.lambda.tools;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.javaseis.compress.TraceCompressor;
+import org.javaseis.properties.DataFormat;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.lambda.AWSLambdaAsync;
+import com.amazonaws.services.lambda.AWSLambdaAsyncClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+
+/**
+ * State shared by all invocations of the Lambda handlers in one container.
+ * <p>
+ * Lambda reuses a warm container for many invocations, so clients, trace
+ * buffers and dataset properties are created once, on first use, and kept in
+ * static fields instead of being rebuilt in every handleRequest. Handlers call
+ * prime from a static initializer so class loading, Gson type adapters and
+ * TraceCompressor setup run during the init phase rather than in the first
+ * invocation. Priming is skipped when the environment variable JSC_PRIME is
+ * "false".
+ */
+public class JscLambdaRuntime {
+  /** Connections for the shared S3 client, enough for concurrent frame reads */
+  public static final int MAX_CONNECTIONS = 128;
+  /** Concurrent synchronous invocations of the shared Lambda client */
+  public static final int MAX_INVOCATIONS = 256;
+  /**
+   * Socket timeout for synchronous invocations, longer than the 15 minute
+   * Lambda limit so a long running child is never cut off and retried
+   */
+  public static final int INVOKE_SOCKET_TIMEOUT_MS = 16 * 60 * 1000;
+  static volatile AmazonS3 s3;
+  static volatile AmazonSQS sqs;
+  static volatile AWSLambdaAsync lambda;
+  static volatile ExecutorService ioPool;
+  static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+  // Dataset properties by bucket/prefix, empty for datasets without properties
+  static final Map<String, Optional<JscFileProperties>> properties = new ConcurrentHashMap<String, Optional<JscFileProperties>>();
+  static volatile boolean primed;
+
+  /** @return - the shared S3 client */
+  public static AmazonS3 getS3() {
+    if (s3 == null) {
+      synchronized (JscLambdaRuntime.class) {
+        if (s3 == null)
+          s3 = AmazonS3ClientBuilder.standard()
+              .withClientConfiguration(new ClientConfiguration().withMaxConnections(MAX_CONNECTIONS)).build();
+      }
+    }
+    return s3;
+  }
+
+  /**
+   * @return - the shared Lambda client for fan-out, with a connection and a
+   *         thread for each of MAX_INVOCATIONS concurrent invocations
+   */
+  public static AWSLambdaAsync getLambda() {
+    if (lambda == null) {
+      synchronized (JscLambdaRuntime.class) {
+        if (lambda == null)
+          lambda = AWSLambdaAsyncClientBuilder.standard()
+              .withClientConfiguration(new ClientConfiguration().withMaxConnections(MAX_INVOCATIONS)
+                  .withSocketTimeout(INVOKE_SOCKET_TIMEOUT_MS))
+              .withExecutorFactory(() -> Executors.newFixedThreadPool(MAX_INVOCATIONS, r -> {
+                Thread t = new Thread(r, "JscLambdaRuntime-invoke");
+                t.setDaemon(true);
+                return t;
+              })).build();
+      }
+    }
+    return lambda;
+  }
+
+  /** @return - the shared SQS client */
+  public static AmazonSQS getSqs() {
+    if (sqs == null) {
+      synchronized (JscLambdaRuntime.class) {
+        if (sqs == null)
+          sqs = AmazonSQSClientBuilder.defaultClient();
+      }
+    }
+    return sqs;
+  }
+
+  /**
+   * @return - shared pool of daemon threads for blocking I/O; callers bound
+   *         their own number of tasks in flight
+   */
+  public static ExecutorService getIoPool() {
+    if (ioPool == null) {
+      synchronized (JscLambdaRuntime.class) {
+        if (ioPool == null)
+          ioPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "JscLambdaRuntime-io");
+            t.setDaemon(true);
+            return t;
+          });
+      }
+    }
+    return ioPool;
+  }
+
+  /**
+   * Take a buffer from the pool, return it with releaseBuffer
+   *
+   * @param size - minimum length in bytes
+   * @return - a buffer of at least size bytes
+   */
+  public static byte[] takeBuffer(int size) {
+    byte[] buf = buffers.poll();
+    if (buf == null || buf.length < size)
+      buf = new byte[size];
+    return buf;
+  }
+
+  /** Return a buffer to the pool */
+  public static void releaseBuffer(byte[] buf) {
+    if (buf != null)
+      buffers.add(buf);
+  }
+
+  /**
+   * Return the file properties of a dataset, loaded once per container
+   *
+   * @param bucket - AWS Bucket
+   * @param prefix - AWS Prefix of the dataset
+   * @return - file properties, null if the dataset has none
+   * @throws IllegalStateException - if the properties exist but could not be
+   *                               read; the failure is not cached, so the
+   *                               next call tries again
+   */
+  public static JscFileProperties getFileProperties(String bucket, String prefix) {
+    String name = bucket + "/" + prefix;
+    Optional<JscFileProperties> cached = properties.get(name);
+    if (cached != null)
+      return cached.orElse(null);
+    String key = prefix + "/" + JsAwsS3.FILE_PROPERTIES_JSC;
+    try {
+      // Only a confirmed missing object is cached as absent
+      if (getS3().doesObjectExist(bucket, key) == false)
+        cached = Optional.empty();
+      else
+        cached = Optional.of((JscFileProperties) JsAwsS3.getJsonObject(getS3(), bucket, key, JscFileProperties.class));
+    } catch (SeisException | AmazonClientException e) {
+      throw new IllegalStateException("Could not read file properties s3://" + bucket + "/" + key, e);
+    }
+    properties.put(name, cached);
+    return cached.orElse(null);
+  }
+
+  /**
+   * Return the key of a stored frame, following the key scheme of the dataset
+   *
+   * @param bucket - AWS Bucket
+   * @param prefix - AWS Prefix of the dataset
+   * @param folder - folder name, for example "Traces"
+   * @param frame  - frame index
+   * @param volume - volume index
+   * @return - object key
+   */
+  public static String getFrameKey(String bucket, String prefix, String folder, int frame, int volume) {
+    return JsAwsS3.getFrameKey(getFileProperties(bucket, prefix), prefix, folder, frame, volume);
+  }
+
+  /**
+   * Warm the code paths of the first invocation: clients, json adapters for
+   * the handler types, and trace compression
+   *
+   * @param types - input and output classes of the handler
+   */
+  public static synchronized void prime(Class<?>... types) {
+    if (primed || "false".equalsIgnoreCase(System.getenv("JSC_PRIME")))
+      return;
+    primed = true;
+    long t0 = System.currentTimeMillis();
+    try {
+      getS3();
+      for (Class<?> type : types)
+        JsonUtil.toJsonString(JsonUtil.fromJsonString(type, "{}"));
+      int nsamp = 256;
+      int ntrc = 4;
+      int reclen = TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, nsamp);
+      TraceCompressor tc = new TraceCompressor(DataFormat.COMPRESSED_INT16, nsamp,
+          ByteBuffer.wrap(new byte[ntrc * reclen]));
+      float[][] trcs = new float[ntrc][nsamp];
+      for (int j = 0; j < ntrc; j++)
+        for (int i = 0; i < nsamp; i++)
+          trcs[j][i] = (float) Math.sin(0.1 * i + j);
+      tc.packFrame(ntrc, trcs);
+      tc.unpackFrame(ntrc, trcs);
+    } catch (Exception e) {
+      // Priming is an optimization only, the first invocation does the work
+      System.out.println("JscLambdaRuntime prime failed: " + e.getMessage());
+    }
+    System.out.println("JscLambdaRuntime primed in " + (System.currentTimeMillis() - t0) + " ms");
+  }
+}
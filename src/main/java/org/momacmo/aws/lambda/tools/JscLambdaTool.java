@@ -19,12 +19,15 @@ import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 
 // Lambda handler for JavaSeisCloud Tools
 public class JscLambdaTool implements RequestHandler<Map<String, String>, String> {
+  static {
+    JscLambdaRuntime.prime(JscLambdaInput.class, JscLambdaOutputList.class);
+  }
+
   @Override
   public String handleRequest(Map<String, String> event, Context context) {
     LambdaLogger logger = context.getLogger();
@@ -34,7 +37,7 @@ public class JscLambdaTool implements RequestHandler<Map<String, String>, String
     JscLambdaOutputList outputList = new JscLambdaOutputList(input);
     AmazonS3 s3 = null;
     try {
-      s3 = AmazonS3ClientBuilder.standard().build();
+      s3 = JscLambdaRuntime.getS3();
     } catch (Exception e) {
       e.printStackTrace();
       String msg = "Failure:\n" + "Could not obtain S3 client\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
@@ -43,14 +46,18 @@ public class JscLambdaTool implements RequestHandler<Map<String, String>, String
     }
     byte[] trcBytes = null;
     try {
-      trcBytes = new byte[input.ntrace * TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp)];
+      trcBytes = JscLambdaRuntime.takeBuffer(input.ntrace * TraceCompressor.getRecordLength(DataFormat.COMPRESSED_INT16, input.nsamp));
     } catch (SeisException e) {
       e.printStackTrace();
       String msg = "Failure:\n" + "Could allocate trace buffers\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
       logger.log(msg);
       throw new IllegalStateException(msg);
     }
-    getFrameRange( s3, input, outputList, trcBytes );
+    try {
+      getFrameRange( s3, input, outputList, trcBytes );
+    } finally {
+      JscLambdaRuntime.releaseBuffer(trcBytes);
+    }
     logger.log("Lambda Function Completed: " + this.getClass().getCanonicalName() + "::handleRequest");
     String outputString = JsonUtil.toJsonString(outputList);
     logger.log("JscLambdaOutputList:\n" + outputString);
@@ -60,7 +67,7 @@ public class JscLambdaTool implements RequestHandler<Map<String, String>, String
   public static JscLambdaOutput getFrameTraces(AmazonS3 s3, JscLambdaInput input, int frame, int volume,
       byte[] trcBytes) {
     JscLambdaOutput output = new JscLambdaOutput(frame, volume);
-    String key = input.prefix + "/Traces" + "/V" + volume + "/F" + frame;
+    String key = JscLambdaRuntime.getFrameKey(input.bucket, input.prefix, "Traces", frame, volume);
     if (s3.doesObjectExist(input.bucket, key) == false) {
       output.setStatus("Failure: Object not found: " + input.bucket + "/" + key);
       return output;
@@ -1,6 +1,8 @@
 package org.momacmo.aws.lambda.tools.jsctoimage;
 
 import java.awt.image.IndexColorModel;
+import java.util.EnumMap;
+import java.util.Map;
 
 
 public class DisplayColorModel {/** Color scale to use for the display: @link http://boole.mines.edu/doc/api/edu/mines/jtk/awt/ColorMap.html  */
@@ -13,16 +15,24 @@ public class DisplayColorModel {/** Color scale to use for the display: @link ht
     BLACK_WHITE_RED
   };
 
-  static byte[] r = new byte[256];
-
-  static byte[] g = new byte[256];
-
-  static byte[] b = new byte[256];
-  
   static byte byteMin = 0;
   static byte byteMax = (byte) 255;
-  
+
+  /** IndexColorModels are immutable, so one instance per scale is shared by all renderers */
+  static final Map<ColorModel, IndexColorModel> models = new EnumMap<ColorModel, IndexColorModel>(ColorModel.class);
+  static {
+    for (ColorModel colorScale : ColorModel.values())
+      models.put(colorScale, createColorModel(colorScale));
+  }
+
+  /**
+   * Return the shared, immutable color model for a color scale
+   */
   public static IndexColorModel getColorModel( ColorModel colorScale ) {
+    return models.get(colorScale);
+  }
+
+  static IndexColorModel createColorModel( ColorModel colorScale ) {
 
     switch (colorScale) {
       case GRAY:
@@ -42,6 +52,9 @@ public class DisplayColorModel {/** Color scale to use for the display: @link ht
   }
 
   public static IndexColorModel grayScale() {
+    byte[] r = new byte[256];
+    byte[] g = new byte[256];
+    byte[] b = new byte[256];
 
     /* Black -> white, Increase rgb over 256 entries */
     for (int i = 0; i < 256; i++) {
@@ -55,6 +68,9 @@ public class DisplayColorModel {/** Color scale to use for the display: @link ht
   }
 
   public static IndexColorModel blueWhiteRed() {
+    byte[] r = new byte[256];
+    byte[] g = new byte[256];
+    byte[] b = new byte[256];
     int j;
     float slope;
     byte byteMax = (byte) 0xff;
@@ -91,6 +107,9 @@ public class DisplayColorModel {/** Color scale to use for the display: @link ht
   }
 
   public static IndexColorModel blackWhiteRed() {
+    byte[] r = new byte[256];
+    byte[] g = new byte[256];
+    byte[] b = new byte[256];
     int j;
     float slope;
     byte max = (byte) 0xff;
@@ -128,6 +147,9 @@ public class DisplayColorModel {/** Color scale to use for the display: @link ht
   }
 
   public static IndexColorModel plusMinus() {
+    byte[] r = new byte[256];
+    byte[] g = new byte[256];
+    byte[] b = new byte[256];
     int j;
     float slope;
     byte max = (byte) 0xff;
@@ -184,6 +206,9 @@ public class DisplayColorModel {/** Color scale to use for the display: @link ht
   }
 
   public static IndexColorModel spectral() {
+    byte[] r = new byte[256];
+    byte[] g = new byte[256];
+    byte[] b = new byte[256];
     int j;
     float slope;
     byte max = (byte) 0xff;
@@ -2,15 +2,21 @@ package org.momacmo.aws.lambda.tools.jsctoimage;
 
 import org.apache.commons.codec.binary.Base64;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
 
 public class FloatToImage {
+  /** Images with at least this many pixels are rendered in parallel */
+  static final int PARALLEL_PIXELS = 1 << 16;
 
   IndexColorModel model;
   WritableRaster raster;
@@ -31,50 +37,65 @@ public class FloatToImage {
   }
   
   public boolean setFormat(String newFormat ) {
-    switch (newFormat) {
+    format = normalizeFormat(newFormat);
+    return format.equalsIgnoreCase(newFormat);
+  }
+  
+  public String getFormat() {
+    return format;
+  }
+  
+  /**
+   * @param format - requested image format
+   * @return - the format an image is written in: gif, jpg, bmp or png, jpg for
+   *         any other request
+   */
+  public static String normalizeFormat(String format) {
+    if (format == null)
+      return "jpg";
+    switch (format) {
       case "gif":
       case "GIF":
-        format = "gif";
-        return true;
-      case "jpg":
-      case "JPG":
-        format = "jpg";
-        return true;
+        return "gif";
       case "bmp":
       case "BMP":
-        format = "bmp";
-        return true;
+        return "bmp";
       case "png":
       case "PNG":
-        format = "png";
-        return true;
+        return "png";
       default:
-        format = "jpg";
-        return false;
-    }       
+        return "jpg";
+    }
   }
   
-  public String getFormat() {
-    return format;
+  /** @return - MIME type of an image format, see normalizeFormat */
+  public static String getContentType(String format) {
+    String f = normalizeFormat(format);
+    return f.equals("jpg") ? "image/jpeg" : "image/" + f;
   }
   
+  /**
+   * Map floats to color indexes, written directly into the raster's byte
+   * buffer. Large images are rendered in parallel by rows.
+   */
   public void putFloats( float[][] f ) {
     float rng = scaleMax-scaleMin;
     float scale = (rng > 0 ? 255/rng : 1);
-    int[] cmp = new int[model.getNumColorComponents()];
-    for (int j=0; j<n1; j++) {
-      for (int i=0; i<n0; i++) {
-        float val = f[j][i];
-        if (val < scaleMin) {
-          model.getComponents(0, cmp, 0);
-        } else if (val > scaleMax) {
-          model.getComponents(255, cmp, 0);
-        } else {
-          int ival = Math.round(scale*(val - scaleMin));
-          model.getComponents(ival, cmp, 0);
-        }
-        raster.setPixel(i, j, cmp);
-      }
+    byte[] pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+    int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+    IntStream rows = IntStream.range(0, n1);
+    if ((long) n0 * n1 >= PARALLEL_PIXELS)
+      rows = rows.parallel();
+    rows.forEach(j -> putRow(f[j], pixels, j * stride, scale));
+  }
+  
+  void putRow( float[] f, byte[] pixels, int offset, float scale ) {
+    float min = scaleMin;
+    for (int i=0; i<n0; i++) {
+      float ival = scale*(f[i] - min) + 0.5f;
+      // Comparisons are false for NaN, which maps to index 0
+      int index = ival >= 255 ? 255 : (ival > 0 ? (int) ival : 0);
+      pixels[offset+i] = (byte) index;
     }
   }
   
@@ -86,15 +107,22 @@ public class FloatToImage {
     return bim;
   }
   
-  public String getBase64Image() {
+  public void writeImage(OutputStream os) throws IOException {
+    ImageIO.write(bim, format, os);
+  }
+  
+  public byte[] getImageBytes() {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     try {
       ImageIO.write(bim, format, baos);
     } catch (IOException e) {
       throw new IllegalStateException("Could not convert BufferedImage to bytes",e.getCause());
     }
-    byte[] bytes = baos.toByteArray();
-    return Base64.encodeBase64String(bytes);
+    return baos.toByteArray();
+  }
+  
+  public String getBase64Image() {
+    return Base64.encodeBase64String(getImageBytes());
   }
   
   public void writeImage(String path, float[][] f) throws IOException {
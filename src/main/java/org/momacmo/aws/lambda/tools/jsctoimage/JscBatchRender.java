@@ -0,0 +1,268 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.lambda.tools.InvokeCollector;
+import org.momacmo.aws.lambda.tools.JscLambdaRuntime;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.JscPyramid;
+import org.momacmo.aws.s3.jscio.properties.JscTraceStatistics;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.lambda.AWSLambdaAsync;
+import com.amazonaws.services.lambda.model.InvokeRequest;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * Lambda handler that renders a range of frames to an image sequence, for
+ * flipbooks and event review.
+ * <p>
+ * Frames are fetched concurrently by a pool of I/O threads, rendered on a pool
+ * with one thread per core, and the encoded images are written back by the I/O
+ * pool, so reads, rendering and writes overlap. The number of frames in flight
+ * is bounded to limit memory, and their frame buffers are reused. Long ranges
+ * are split into sub-ranges of about framesPerWorker frames, within one volume
+ * or over whole volumes, and rendered by invoking this function again.
+ */
+public class JscBatchRender implements RequestHandler<Map<String, String>, String> {
+
+  /** Frame being rendered */
+  static class RenderTask {
+    int volume, frame;
+    int traceCount;
+    float[][] traces;
+    // Buffer the traces were read into at full resolution, null for a pyramid level
+    JscFrameBuffer buf;
+    JscTraceStatistics statistics;
+    FloatToImage image;
+  }
+
+  @Override
+  public String handleRequest(Map<String, String> event, Context context) {
+    long t0 = System.currentTimeMillis();
+    LambdaLogger logger = context.getLogger();
+    JscBatchRenderInput input = new JscBatchRenderInput(event);
+    logger.log("Lambda Function Inovked: " + this.getClass().getCanonicalName() + "::handleRequest");
+    logger.log(JsonUtil.toJsonString(input));
+    JscBatchRenderOutput output;
+    try {
+      if (input.cacheBucket == null)
+        throw new SeisException("JscBatchRender requires cacheBucket for the rendered images");
+      if (input.framesPerWorker > 0 && input.getFrameCount() > input.framesPerWorker) {
+        output = fanOut(input, logger, System.currentTimeMillis() + context.getRemainingTimeInMillis() - 5000);
+      } else {
+        JsAwsS3 sio = new JsAwsS3();
+        sio.openRemote(input.bucket, input.prefix);
+        output = renderRange(sio, input);
+      }
+    } catch (SeisException e) {
+      e.printStackTrace();
+      String msg = "Failure:\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
+      logger.log(msg);
+      throw new IllegalStateException(msg);
+    }
+    output.seconds = 0.001f * (System.currentTimeMillis() - t0);
+    logger.log("Rendered " + output.imageCount + " images, " + output.failures.size() + " failures");
+    logger.log("Lambda Function Completed: " + this.getClass().getCanonicalName() + "::handleRequest");
+    logger.log("Execution time: " + output.seconds);
+    return JsonUtil.toJsonString(output);
+  }
+
+  /**
+   * Render every frame of a request and store the images
+   *
+   * @param sio   - JsAwsS3 instance with the dataset open
+   * @param input - batch request
+   * @return - keys of the stored images and failures
+   * @throws SeisException - if the pools are interrupted
+   */
+  public static JscBatchRenderOutput renderRange(JsAwsS3 sio, JscBatchRenderInput input) throws SeisException {
+    JscBatchRenderOutput output = new JscBatchRenderOutput();
+    JscImageStore store = new JscImageStore(sio.getS3Client(), input.cacheBucket, input.cachePrefix);
+    JscPyramid pyramid = sio.getPyramid();
+    int level = pyramid == null ? 0 : pyramid.selectLevel(input.width, input.height);
+    int ioThreads = Math.max(1, input.ioThreads);
+    ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+    ExecutorService cpu = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    Semaphore inFlight = new Semaphore(2 * ioThreads);
+    // At most one buffer per frame in flight, reused by later frames
+    Queue<JscFrameBuffer> buffers = new ConcurrentLinkedQueue<JscFrameBuffer>();
+    Queue<float[][]> arrays = new ConcurrentLinkedQueue<float[][]>();
+    List<RenderTask> tasks = new ArrayList<RenderTask>();
+    List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+    try {
+      for (int volume = input.vol0; volume <= input.voln; volume += input.voli) {
+        for (int frame = input.frm0; frame <= input.frmn; frame += input.frmi) {
+          RenderTask task = new RenderTask();
+          task.volume = volume;
+          task.frame = frame;
+          inFlight.acquire();
+          CompletableFuture<String> f = CompletableFuture
+              .supplyAsync(() -> fetch(sio, pyramid, level, task, input, buffers, arrays), io)
+              .thenApplyAsync(t -> {
+                t.image = JscToImage.renderTraces(t.traceCount, t.traces, t.statistics, input);
+                release(t, buffers, arrays);
+                return t;
+              }, cpu).thenApplyAsync(t -> {
+                String key = input.getImageKey(t.volume, t.frame);
+                try {
+                  store.put(key, t.image);
+                } catch (SeisException e) {
+                  throw new IllegalStateException(e.getMessage(), e);
+                }
+                return key;
+              }, io);
+          f.whenComplete((key, e) -> {
+            release(task, buffers, arrays);
+            inFlight.release();
+          });
+          tasks.add(task);
+          futures.add(f);
+        }
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          output.keys.add(futures.get(i).join());
+          output.imageCount++;
+        } catch (Exception e) {
+          Throwable cause = e.getCause() != null ? e.getCause() : e;
+          RenderTask task = tasks.get(i);
+          output.failures.add("V" + task.volume + " F" + task.frame + ": " + cause.getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new SeisException("JscBatchRender interrupted", e);
+    } finally {
+      io.shutdownNow();
+      cpu.shutdownNow();
+    }
+    return output;
+  }
+
+  static RenderTask fetch(JsAwsS3 sio, JscPyramid pyramid, int level, RenderTask task, JscBatchRenderInput input,
+      Queue<JscFrameBuffer> buffers, Queue<float[][]> arrays) {
+    try {
+      if (level > 0) {
+        task.traces = arrays.poll();
+        if (task.traces == null)
+          task.traces = pyramid.allocateTraceArray(level);
+        task.traceCount = pyramid.getFrame(sio, level, task.traces, task.frame, task.volume);
+      } else {
+        task.buf = buffers.poll();
+        if (task.buf == null)
+          task.buf = new JscFrameBuffer(sio.getFileProperties());
+        task.traceCount = sio.getFrameTraceBuffer(task.buf, task.frame, task.volume);
+        task.buf.unpackTraces();
+        task.traces = task.buf.traces;
+      }
+      if (task.traceCount < 1)
+        throw new IllegalStateException("Frame not found: V" + task.volume + " F" + task.frame);
+      // A reused buffer holds the traces of an earlier frame past traceCount
+      for (int j = task.traceCount; j < task.traces.length; j++)
+        Arrays.fill(task.traces[j], 0f);
+      if (input.autoScale)
+        task.statistics = sio.getFrameStatistics(task.frame, task.volume);
+      return task;
+    } catch (SeisException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
+  /** Return the buffers of a task to the pools */
+  static void release(RenderTask task, Queue<JscFrameBuffer> buffers, Queue<float[][]> arrays) {
+    synchronized (task) {
+      if (task.buf != null)
+        buffers.add(task.buf);
+      else if (task.traces != null)
+        arrays.add(task.traces);
+      task.buf = null;
+      task.traces = null;
+    }
+  }
+
+  /**
+   * Split the volume and frame range into sub-ranges of about framesPerWorker
+   * frames: runs of frames within a volume when volumes are long, whole
+   * volumes otherwise
+   */
+  static List<JscBatchRenderInput> split(JscBatchRenderInput input) {
+    int framesPerVolume = 1 + (input.frmn - input.frm0) / input.frmi;
+    int perWorker = Math.max(1, input.framesPerWorker);
+    List<JscBatchRenderInput> subs = new ArrayList<JscBatchRenderInput>();
+    if (framesPerVolume >= perWorker) {
+      for (int volume = input.vol0; volume <= input.voln; volume += input.voli) {
+        for (int i = 0; i < framesPerVolume; i += perWorker) {
+          int frm0 = input.frm0 + i * input.frmi;
+          int frmn = Math.min(input.frmn, frm0 + (perWorker - 1) * input.frmi);
+          subs.add(input.withRange(volume, volume, frm0, frmn));
+        }
+      }
+    } else {
+      int volumesPerWorker = perWorker / framesPerVolume;
+      for (int vol0 = input.vol0; vol0 <= input.voln; vol0 += volumesPerWorker * input.voli) {
+        int voln = Math.min(input.voln, vol0 + (volumesPerWorker - 1) * input.voli);
+        subs.add(input.withRange(vol0, voln, input.frm0, input.frmn));
+      }
+    }
+    for (JscBatchRenderInput sub : subs)
+      sub.framesPerWorker = 0;
+    return subs;
+  }
+
+  /**
+   * Split the range over Lambda workers and merge their results
+   */
+  static JscBatchRenderOutput fanOut(JscBatchRenderInput input, LambdaLogger logger, long deadline)
+      throws SeisException {
+    AWSLambdaAsync lambda = JscLambdaRuntime.getLambda();
+    InvokeCollector collector = new InvokeCollector(lambda);
+    List<JscBatchRenderInput> subs = split(input);
+    for (JscBatchRenderInput sub : subs) {
+      InvokeRequest req = new InvokeRequest().withFunctionName(input.functionName)
+          .withPayload(JsonUtil.toJsonString(sub));
+      collector.submit(req);
+    }
+    logger.log("Submitted " + collector.getSubmitted() + " render workers");
+    JscBatchRenderOutput output = new JscBatchRenderOutput();
+    boolean finished;
+    try {
+      finished = collector.collect(deadline, (index, request, result, error) -> {
+        String range = subs.get(index).getRangeString();
+        if (error != null) {
+          output.failures.add(range + ": " + error.getMessage());
+          return;
+        }
+        String payload = new String(result.getPayload().array(), StandardCharsets.UTF_8);
+        if (result.getFunctionError() != null) {
+          output.failures.add(range + ": " + payload);
+          return;
+        }
+        // The handler returns a JSON string, so the payload is a quoted string
+        String json = (String) JsonUtil.fromJsonString(String.class, payload);
+        output.add((JscBatchRenderOutput) JsonUtil.fromJsonString(JscBatchRenderOutput.class, json));
+        logger.log("Worker " + range + " completed, " + output.imageCount + " images so far");
+      });
+    } catch (InterruptedException e) {
+      throw new SeisException("JscBatchRender interrupted", e);
+    }
+    if (!finished) {
+      for (int index : collector.getPending())
+        output.failures.add(subs.get(index).getRangeString() + ": deadline reached");
+    }
+    return output;
+  }
+}
@@ -0,0 +1,79 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.util.Map;
+
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+/**
+ * Request to render a range of volumes and frames to an image sequence, stored
+ * as cacheBucket/cachePrefix/V&lt;volume&gt;/F&lt;frame&gt;.format
+ */
+public class JscBatchRenderInput extends JscToImageInput {
+
+  public int vol0, voln, voli = 1;
+  public int frm0, frmn, frmi = 1;
+  // Concurrent frame reads and image writes per worker
+  public int ioThreads = 32;
+  // Ranges with more frames than this are split over Lambda workers running
+  // functionName, zero to render everything in this invocation
+  public int framesPerWorker = 0;
+  public String functionName = "JscBatchRender";
+
+  public JscBatchRenderInput() {
+  }
+
+  public JscBatchRenderInput(Map<String, String> eventMap) {
+    super(eventMap);
+    vol0 = voln = volume;
+    frm0 = frmn = frame;
+    if (eventMap.containsKey("vol0"))
+    vol0 = Integer.parseInt(eventMap.get("vol0"));
+    if (eventMap.containsKey("voln"))
+    voln = Integer.parseInt(eventMap.get("voln"));
+    if (eventMap.containsKey("voli"))
+    voli = Integer.parseInt(eventMap.get("voli"));
+    if (eventMap.containsKey("frm0"))
+    frm0 = Integer.parseInt(eventMap.get("frm0"));
+    if (eventMap.containsKey("frmn"))
+    frmn = Integer.parseInt(eventMap.get("frmn"));
+    if (eventMap.containsKey("frmi"))
+    frmi = Integer.parseInt(eventMap.get("frmi"));
+    if (eventMap.containsKey("ioThreads"))
+    ioThreads = Integer.parseInt(eventMap.get("ioThreads"));
+    if (eventMap.containsKey("framesPerWorker"))
+    framesPerWorker = Integer.parseInt(eventMap.get("framesPerWorker"));
+    if (eventMap.containsKey("functionName"))
+    functionName = eventMap.get("functionName");
+  }
+
+  /** @return - a copy of this request restricted to a frame range */
+  public JscBatchRenderInput withFrames(int frm0, int frmn) {
+    return withRange(vol0, voln, frm0, frmn);
+  }
+
+  /** @return - a copy of this request restricted to a volume and frame range */
+  public JscBatchRenderInput withRange(int vol0, int voln, int frm0, int frmn) {
+    JscBatchRenderInput in = (JscBatchRenderInput) JsonUtil.fromJsonString(JscBatchRenderInput.class,
+        JsonUtil.toJsonString(this));
+    in.vol0 = vol0;
+    in.voln = voln;
+    in.frm0 = frm0;
+    in.frmn = frmn;
+    return in;
+  }
+
+  /** @return - the volume and frame range, for messages */
+  public String getRangeString() {
+    return "V" + vol0 + "-" + voln + " F" + frm0 + "-" + frmn;
+  }
+
+  /** @return - number of frames in the request */
+  public int getFrameCount() {
+    return (1 + (voln - vol0) / voli) * (1 + (frmn - frm0) / frmi);
+  }
+
+  /** @return - object key of the image for a frame */
+  public String getImageKey(int volume, int frame) {
+    return cachePrefix + "/V" + volume + "/F" + frame + "." + FloatToImage.normalizeFormat(format);
+  }
+}
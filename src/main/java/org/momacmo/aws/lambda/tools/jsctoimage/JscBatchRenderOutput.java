@@ -0,0 +1,21 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a batch render: the keys of the stored images, in frame order for
+ * each worker, and a message for every frame that could not be rendered
+ */
+public class JscBatchRenderOutput {
+  public int imageCount;
+  public List<String> keys = new ArrayList<String>();
+  public List<String> failures = new ArrayList<String>();
+  public float seconds;
+
+  public synchronized void add(JscBatchRenderOutput other) {
+    imageCount += other.imageCount;
+    keys.addAll(other.keys);
+    failures.addAll(other.failures);
+  }
+}
@@ -0,0 +1,138 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Object storage for rendered images, so images are returned as a key or a
+ * pre-signed URL instead of a Base64 payload.
+ * <p>
+ * Keys are content addressed: the SHA-256 of every parameter that affects the
+ * rendering, and of the ETag of the source frame, so a repeat request for the
+ * same rendering finds the stored image, and a rewritten frame gets a new key.
+ * <p>
+ * <code>
+ * cacheBucket/cachePrefix/3f/3fa2...c9.png
+ * </code>
+ */
+public class JscImageStore {
+  /** Encoding buffer whose contents are uploaded without a copy */
+  static class ImageBuffer extends ByteArrayOutputStream {
+    InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  // Encoding buffers are kept by each rendering thread
+  static final ThreadLocal<ImageBuffer> buffers = ThreadLocal.withInitial(ImageBuffer::new);
+  AmazonS3 s3;
+  String bucket, prefix;
+
+  public JscImageStore(AmazonS3 s3, String bucket, String prefix) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Return the content addressed key for a rendering request
+   *
+   * @param sio   - JsAwsS3 instance with the dataset open
+   * @param input - rendering request
+   * @return - object key for the rendered image
+   * @throws SeisException - on AWS errors
+   */
+  public String getKey(JsAwsS3 sio, JscToImageInput input) throws SeisException {
+    String traceKey = JsAwsS3.getFrameKey(sio.getFileProperties(), input.prefix, "Traces", input.frame, input.volume);
+    String etag;
+    try {
+      etag = s3.getObjectMetadata(input.bucket, traceKey).getETag();
+    } catch (AmazonS3Exception e) {
+      throw new SeisException("JscImageStore frame not found: " + input.bucket + "/" + traceKey, e);
+    }
+    String scale = input.autoScale ? "auto " + input.clipPercentile : input.scaleMin + " " + input.scaleMax;
+    // The format the image is written in, so requests that differ only in the
+    // spelling of the format share an image
+    String format = FloatToImage.normalizeFormat(input.format);
+    String canonical = input.bucket + "\n" + input.prefix + "\n" + input.volume + "\n" + input.frame + "\n" + etag
+        + "\n" + input.width + "x" + input.height + "\n" + scale + "\n" + input.colorScale + "\n" + format;
+    String hash = sha256(canonical);
+    return prefix + "/" + hash.substring(0, 2) + "/" + hash + "." + format;
+  }
+
+  static String sha256(String s) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(2 * digest.length);
+      for (byte b : digest)
+        sb.append(String.format("%02x", b & 0xff));
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /** @return - true if an image is already stored under the key */
+  public boolean exists(String key) {
+    return s3.doesObjectExist(bucket, key);
+  }
+
+  /**
+   * Encode a rendered image and store it under a key. The image is encoded
+   * into a buffer kept by the calling thread and uploaded from it, as a PUT
+   * needs the content length before the body is sent.
+   *
+   * @param key  - object key, see getKey
+   * @param ftoi - rendered image
+   * @throws SeisException - on encoding or AWS errors
+   */
+  public void put(String key, FloatToImage ftoi) throws SeisException {
+    ImageBuffer image = buffers.get();
+    image.reset();
+    try {
+      ftoi.writeImage(image);
+      ObjectMetadata om = new ObjectMetadata();
+      om.setContentLength(image.size());
+      om.setContentType(FloatToImage.getContentType(ftoi.getFormat()));
+      s3.putObject(bucket, key, image.getInputStream(), om);
+    } catch (Exception e) {
+      throw new SeisException("JscImageStore put failed: " + bucket + "/" + key, e);
+    }
+  }
+
+  /** @return - the stored image bytes */
+  public byte[] get(String key) throws SeisException {
+    try {
+      return IOUtils.toByteArray(s3.getObject(bucket, key).getObjectContent());
+    } catch (IOException | AmazonS3Exception e) {
+      throw new SeisException("JscImageStore get failed: " + bucket + "/" + key, e);
+    }
+  }
+
+  /**
+   * Return a pre-signed URL for reading a stored image
+   *
+   * @param key           - object key
+   * @param expirySeconds - lifetime of the URL
+   * @return - pre-signed GET URL
+   */
+  public String getUrl(String key, int expirySeconds) {
+    Date expiration = new Date(System.currentTimeMillis() + 1000L * expirySeconds);
+    return s3.generatePresignedUrl(bucket, key, expiration, HttpMethod.GET).toString();
+  }
+}
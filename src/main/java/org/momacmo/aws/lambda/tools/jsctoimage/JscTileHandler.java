@@ -0,0 +1,54 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+// Lambda handler that returns one Base64 encoded image tile, see JscTileInput
+public class JscTileHandler implements RequestHandler<Map<String, String>, String> {
+  // Shared by invocations of a warm container
+  static final JscTileRenderer renderer = new JscTileRenderer(64L << 20, 256L << 20);
+  static final Map<String, JsAwsS3> datasets = new HashMap<String, JsAwsS3>();
+
+  @Override
+  public String handleRequest(Map<String, String> event, Context context) {
+    long t0 = System.currentTimeMillis();
+    LambdaLogger logger = context.getLogger();
+    JscTileInput input = new JscTileInput(event);
+    logger.log("Lambda Function Inovked: " + this.getClass().getCanonicalName() + "::handleRequest");
+    logger.log(JsonUtil.toJsonString(input));
+    String httpImage = null;
+    try {
+      JsAwsS3 sio = getDataset(input.bucket, input.prefix);
+      httpImage = Base64.encodeBase64String(renderer.getTile(sio, input));
+    } catch (SeisException e) {
+      e.printStackTrace();
+      String msg = "Failure:\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
+      logger.log(msg);
+      throw new IllegalStateException(msg);
+    }
+    logger.log(renderer.getStatistics());
+    logger.log("Lambda Function Completed: " + this.getClass().getCanonicalName() + "::handleRequest");
+    logger.log("Execution time: " + 0.001*(System.currentTimeMillis()-t0));
+    return httpImage;
+  }
+
+  static synchronized JsAwsS3 getDataset(String bucket, String prefix) throws SeisException {
+    String key = bucket + "/" + prefix;
+    JsAwsS3 sio = datasets.get(key);
+    if (sio == null) {
+      sio = new JsAwsS3();
+      sio.openRemote(bucket, prefix);
+      datasets.put(key, sio);
+    }
+    return sio;
+  }
+}
@@ -0,0 +1,70 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.util.Map;
+
+/**
+ * Request for one tile of a rendered frame, or of a mosaic of consecutive
+ * frames placed side by side along the trace axis.
+ * <p>
+ * At zoom level Z the mosaic is decimated by 2^Z in samples and traces (zoom 0
+ * is full resolution) and divided into tileSize x tileSize tiles. tileX counts
+ * tiles along the sample axis and tileY along the trace axis.
+ */
+public class JscTileInput extends JscToImageInput {
+
+  public int frameCount = 1;
+  public int zoom = 0;
+  public int tileX = 0;
+  public int tileY = 0;
+  public int tileSize = 256;
+  // Data version chosen by the caller, for example an ETag it already holds;
+  // when null the renderer uses the ETags of the frames the tile depends on
+  public String version;
+
+  // Tiles default to png, and to a separate object storage cache prefix; the
+  // object storage cache is disabled if cacheBucket is null
+  public JscTileInput() {
+    format = "png";
+    cachePrefix = "jsc-tile-cache";
+  }
+
+  public JscTileInput(Map<String, String> eventMap) {
+    super(eventMap);
+    if (!eventMap.containsKey("format"))
+    format = "png";
+    if (!eventMap.containsKey("cachePrefix"))
+    cachePrefix = "jsc-tile-cache";
+    if (eventMap.containsKey("frameCount"))
+    frameCount = Integer.parseInt(eventMap.get("frameCount"));
+    if (eventMap.containsKey("zoom"))
+    zoom = Integer.parseInt(eventMap.get("zoom"));
+    if (eventMap.containsKey("tileX"))
+    tileX = Integer.parseInt(eventMap.get("tileX"));
+    if (eventMap.containsKey("tileY"))
+    tileY = Integer.parseInt(eventMap.get("tileY"));
+    if (eventMap.containsKey("tileSize"))
+    tileSize = Integer.parseInt(eventMap.get("tileSize"));
+    if (eventMap.containsKey("version"))
+    version = eventMap.get("version");
+  }
+
+  /**
+   * @return - key identifying the rendered tile, with the version of the
+   *         request, see getTileKey(String)
+   */
+  public String getTileKey() {
+    return getTileKey(version);
+  }
+
+  /**
+   * @param dataVersion - version of the frame data, null for none
+   * @return - key identifying the rendered tile: dataset, volume, frames, zoom,
+   *         tile, data version, color scale, scaling and format
+   */
+  public String getTileKey(String dataVersion) {
+    String scale = autoScale ? "auto" + clipPercentile : scaleMin + "_" + scaleMax;
+    return bucket + "/" + prefix + "/V" + volume + "/F" + frame + "x" + frameCount + "/Z" + zoom + "/T" + tileSize
+        + "_" + tileX + "_" + tileY + (dataVersion == null ? "" : "/D" + dataVersion) + "/" + colorScale + "/"
+        + scale + "." + format;
+  }
+}
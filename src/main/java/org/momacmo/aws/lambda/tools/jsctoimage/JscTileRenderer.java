@@ -0,0 +1,334 @@
+package org.momacmo.aws.lambda.tools.jsctoimage;
+
+import java.io.ByteArrayInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.JscPyramid;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JscTraceStatistics;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Renders fixed size image tiles of JavaSeis Cloud frames at several zoom
+ * levels, so viewers only fetch the visible part of a frame or mosaic.
+ * <p>
+ * Encoded tiles are kept in an in-memory LRU cache, and optionally in object
+ * storage under a cache prefix. Decoded frames at each zoom level are cached
+ * separately, so neighbouring tiles of the same frame are rendered without
+ * fetching the frame again. Zoom levels that match a stored pyramid level are
+ * read directly; finer pyramid data is reduced on the fly for the others.
+ * <p>
+ * Cache keys carry a data version, the ETags of the frames a tile depends on
+ * unless the request supplies one, so a rewritten frame is not served from a
+ * stale tile once its ETag is looked up again. ETags are reused for
+ * VERSION_TTL_MS, so a tile in memory is returned without any request while
+ * they are fresh. With autoScale the clip level is computed once for the whole
+ * mosaic, so every tile of a mosaic is rendered with the same scale.
+ */
+public class JscTileRenderer {
+
+  /** Decoded frame at a zoom level */
+  static class LevelFrame {
+    int traceCount;
+    float[][] traces;
+  }
+
+  long maxTileBytes, maxFrameBytes;
+  long tileBytes, frameBytes;
+  LinkedHashMap<String, byte[]> tileCache = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+  LinkedHashMap<String, LevelFrame> frameCache = new LinkedHashMap<String, LevelFrame>(16, 0.75f, true);
+  /** Most mosaic clip levels kept */
+  static final int MAX_CLIPS = 1024;
+  LinkedHashMap<String, Float> clipCache = new LinkedHashMap<String, Float>(64, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+      return size() > MAX_CLIPS;
+    }
+  };
+  /** Time the ETags of a range of frames are trusted before they are looked up again */
+  static final long VERSION_TTL_MS = 30000;
+  /** Most frame version lookups kept */
+  static final int MAX_VERSIONS = 1024;
+
+  /** ETags of a range of frames and the time they were looked up */
+  static class FrameVersions {
+    long time;
+    Map<Integer, String> etags;
+  }
+
+  LinkedHashMap<String, FrameVersions> versionCache = new LinkedHashMap<String, FrameVersions>(64, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FrameVersions> eldest) {
+      return size() > MAX_VERSIONS;
+    }
+  };
+  // Counters
+  long requests, memoryHits, storeHits;
+
+  /**
+   * @param maxTileBytes  - memory budget for encoded tiles
+   * @param maxFrameBytes - memory budget for decoded frames
+   */
+  public JscTileRenderer(long maxTileBytes, long maxFrameBytes) {
+    this.maxTileBytes = maxTileBytes;
+    this.maxFrameBytes = maxFrameBytes;
+  }
+
+  /**
+   * Return an encoded tile, from the caches if possible
+   *
+   * @param jsc   - JsAwsS3 instance with the dataset open
+   * @param input - tile request
+   * @return - encoded image bytes
+   * @throws SeisException - on AWS errors, or if the tile is outside the mosaic
+   */
+  public byte[] getTile(JsAwsS3 jsc, JscTileInput input) throws SeisException {
+    JscPyramid pyramid = new JscPyramid(jsc.getFileProperties());
+    synchronized (this) {
+      requests++;
+    }
+    // Versions from the request or from a recent lookup cost no requests, so
+    // a tile in memory is returned without checking any frame
+    Map<Integer, String> etags = getFrameVersions(jsc, pyramid, input);
+    String version = getVersion(input, etags);
+    String key = input.getTileKey(version);
+    byte[] tile = getMemoryTile(key);
+    if (tile != null)
+      return tile;
+    AmazonS3 s3 = jsc.getS3Client();
+    String storeKey = input.cachePrefix + "/" + key;
+    if (input.cacheBucket != null) {
+      try {
+        tile = IOUtils.toByteArray(s3.getObject(input.cacheBucket, storeKey).getObjectContent());
+        synchronized (this) {
+          storeHits++;
+        }
+      } catch (AmazonS3Exception e) {
+        if (e.getStatusCode() != 404)
+          throw new SeisException("JscTileRenderer cache read failed: " + storeKey, e);
+      } catch (Exception e) {
+        throw new SeisException("JscTileRenderer cache read failed: " + storeKey, e);
+      }
+    }
+    if (tile == null) {
+      tile = render(jsc, pyramid, input, etags, version);
+      if (input.cacheBucket != null) {
+        ObjectMetadata om = new ObjectMetadata();
+        om.setContentLength(tile.length);
+        om.setContentType(FloatToImage.getContentType(input.format));
+        s3.putObject(input.cacheBucket, storeKey, new ByteArrayInputStream(tile), om);
+      }
+    }
+    synchronized (this) {
+      if (tileCache.put(key, tile) == null)
+        tileBytes += tile.length;
+      while (tileBytes > maxTileBytes && tileCache.size() > 1) {
+        String eldest = tileCache.keySet().iterator().next();
+        tileBytes -= tileCache.remove(eldest).length;
+      }
+    }
+    return tile;
+  }
+
+  /** @return - a tile from the memory cache, or null */
+  synchronized byte[] getMemoryTile(String key) {
+    byte[] tile = tileCache.get(key);
+    if (tile != null)
+      memoryHits++;
+    return tile;
+  }
+
+  /** @return - data version of a tile, the version of the request or a digest of the frame ETags */
+  static String getVersion(JscTileInput input, Map<Integer, String> etags) {
+    if (input.version != null)
+      return input.version;
+    return JscImageStore.sha256(String.join("\n", etags.values())).substring(0, 16);
+  }
+
+  /**
+   * Return the version of each frame a tile depends on: the frames under the
+   * tile, or every frame of the mosaic when the clip level depends on them all.
+   * ETags looked up within VERSION_TTL_MS are reused.
+   *
+   * @return - ETag, or the version of the request, by frame
+   */
+  Map<Integer, String> getFrameVersions(JsAwsS3 jsc, JscPyramid pyramid, JscTileInput input) throws SeisException {
+    int maxTraces = pyramid.getMaxTraces(input.zoom);
+    int k0 = 0;
+    int k1 = input.frameCount - 1;
+    if (!input.autoScale) {
+      int t0 = input.tileY * input.tileSize;
+      k0 = Math.max(0, t0 / maxTraces);
+      k1 = Math.min(k1, Math.max(k0, (t0 + input.tileSize - 1) / maxTraces));
+    }
+    int frameInc = jsc.getFrameRange()[2];
+    Map<Integer, String> etags = new LinkedHashMap<Integer, String>();
+    if (input.version != null) {
+      for (int k = k0; k <= k1; k++)
+        etags.put(input.frame + k * frameInc, input.version);
+      return etags;
+    }
+    String cacheKey = jsc.getAwsBucket() + "/" + jsc.getAwsPrefix() + "/V" + input.volume + "/F"
+        + (input.frame + k0 * frameInc) + "-" + (input.frame + k1 * frameInc) + "-" + frameInc;
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      FrameVersions fv = versionCache.get(cacheKey);
+      if (fv != null && now - fv.time < VERSION_TTL_MS)
+        return fv.etags;
+    }
+    AmazonS3 s3 = jsc.getS3Client();
+    for (int k = k0; k <= k1; k++) {
+      int frame = input.frame + k * frameInc;
+      String traceKey = JsAwsS3.getFrameKey(jsc.getFileProperties(), jsc.getAwsPrefix(), "Traces", frame,
+          input.volume);
+      String etag;
+      try {
+        etag = s3.getObjectMetadata(jsc.getAwsBucket(), traceKey).getETag();
+      } catch (AmazonS3Exception e) {
+        if (e.getStatusCode() != 404)
+          throw new SeisException("JscTileRenderer frame version failed: " + traceKey, e);
+        etag = "missing";
+      }
+      etags.put(frame, etag);
+    }
+    FrameVersions fv = new FrameVersions();
+    fv.time = now;
+    fv.etags = etags;
+    synchronized (this) {
+      versionCache.put(cacheKey, fv);
+    }
+    return etags;
+  }
+
+  /**
+   * Render a tile from the frames of the mosaic
+   */
+  byte[] render(JsAwsS3 jsc, JscPyramid pyramid, JscTileInput input, Map<Integer, String> etags, String version)
+      throws SeisException {
+    int z = input.zoom;
+    int nsamp = pyramid.getSamplesPerTrace(z);
+    int maxTraces = pyramid.getMaxTraces(z);
+    int ts = input.tileSize;
+    int s0 = input.tileX * ts;
+    int t0 = input.tileY * ts;
+    int mosaicTraces = input.frameCount * maxTraces;
+    if (s0 >= nsamp || t0 >= mosaicTraces || s0 < 0 || t0 < 0)
+      throw new SeisException("JscTileRenderer tile is outside the mosaic: " + input.getTileKey());
+    int width = Math.min(ts, nsamp - s0);
+    int height = Math.min(ts, mosaicTraces - t0);
+    int frameInc = jsc.getFrameRange()[2];
+    float[][] tile = new float[height][width];
+    float clip = input.autoScale ? getMosaicClip(jsc, pyramid, input, etags, version) : 0;
+    for (int k = t0 / maxTraces; k <= (t0 + height - 1) / maxTraces; k++) {
+      int frame = input.frame + k * frameInc;
+      LevelFrame lf = getLevelFrame(jsc, pyramid, frame, input.volume, z, etags.get(frame));
+      for (int j = Math.max(t0, k * maxTraces); j < Math.min(t0 + height, (k + 1) * maxTraces); j++) {
+        int trace = j - k * maxTraces;
+        if (trace < lf.traceCount)
+          System.arraycopy(lf.traces[trace], s0, tile[j - t0], 0, width);
+      }
+    }
+    float scaleMin = input.scaleMin;
+    float scaleMax = input.scaleMax;
+    if (input.autoScale && clip > 0) {
+      scaleMin = -clip;
+      scaleMax = clip;
+    }
+    FloatToImage ftoi = new FloatToImage(input.colorScale, width, height, scaleMin, scaleMax);
+    ftoi.setFormat(input.format);
+    ftoi.putFloats(tile);
+    return ftoi.getImageBytes();
+  }
+
+  /**
+   * Return the clip level of a whole mosaic, the largest clip of its frames,
+   * computed once for all of its tiles. Stored frame statistics are used where
+   * available, otherwise the frames are read at the zoom level of the request.
+   */
+  float getMosaicClip(JsAwsS3 jsc, JscPyramid pyramid, JscTileInput input, Map<Integer, String> etags,
+      String version) throws SeisException {
+    String key = jsc.getAwsBucket() + "/" + jsc.getAwsPrefix() + "/V" + input.volume + "/F" + input.frame + "x"
+        + input.frameCount + "/Z" + input.zoom + "/P" + input.clipPercentile + "/D" + version;
+    synchronized (this) {
+      Float clip = clipCache.get(key);
+      if (clip != null)
+        return clip;
+    }
+    float clip = 0;
+    for (Map.Entry<Integer, String> entry : etags.entrySet()) {
+      int frame = entry.getKey();
+      JscTraceStatistics ts = jsc.getFrameStatistics(frame, input.volume);
+      if (ts == null) {
+        LevelFrame lf = getLevelFrame(jsc, pyramid, frame, input.volume, input.zoom, entry.getValue());
+        ts = JscTraceStatistics.compute(lf.traceCount, lf.traces.length > 0 ? lf.traces[0].length : 0, lf.traces);
+      }
+      clip = Math.max(clip, ts.getClip(input.clipPercentile));
+    }
+    synchronized (this) {
+      clipCache.put(key, clip);
+    }
+    return clip;
+  }
+
+  /**
+   * Return a frame decoded at a zoom level, reducing the finest available
+   * pyramid level if the zoom level itself is not stored
+   */
+  LevelFrame getLevelFrame(JsAwsS3 jsc, JscPyramid pyramid, int frame, int volume, int zoom, String etag)
+      throws SeisException {
+    String key = jsc.getAwsBucket() + "/" + jsc.getAwsPrefix() + "/V" + volume + "/F" + frame + "/Z" + zoom + "/D"
+        + etag;
+    synchronized (this) {
+      LevelFrame lf = frameCache.get(key);
+      if (lf != null)
+        return lf;
+    }
+    JscFileProperties props = jsc.getFileProperties();
+    int level = Math.min(zoom, props.pyramidLevels);
+    LevelFrame lf = new LevelFrame();
+    if (level == 0) {
+      JscFrameBuffer buf = new JscFrameBuffer(props);
+      lf.traceCount = jsc.getFrameTraceBuffer(buf, frame, volume);
+      buf.unpackTraces();
+      lf.traces = buf.traces;
+    } else {
+      lf.traces = pyramid.allocateTraceArray(level);
+      lf.traceCount = pyramid.getFrame(jsc, level, lf.traces, frame, volume);
+    }
+    for (; level < zoom; level++) {
+      float[][] out = pyramid.allocateTraceArray(level + 1);
+      lf.traceCount = JscPyramid.halve(lf.traceCount, pyramid.getSamplesPerTrace(level), lf.traces, out,
+          props.pyramidMode);
+      lf.traces = out;
+    }
+    long bytes = 4L * lf.traces.length * pyramid.getSamplesPerTrace(zoom);
+    synchronized (this) {
+      if (frameCache.put(key, lf) == null)
+        frameBytes += bytes;
+      while (frameBytes > maxFrameBytes && frameCache.size() > 1) {
+        String eldest = frameCache.keySet().iterator().next();
+        LevelFrame old = frameCache.remove(eldest);
+        frameBytes -= 4L * old.traces.length * (old.traces.length > 0 ? old.traces[0].length : 0);
+      }
+    }
+    return lf;
+  }
+
+  /** @return - cache counters */
+  public synchronized String getStatistics() {
+    return "requests " + requests + ", memory hits " + memoryHits + ", store hits " + storeHits + ", cached tiles "
+        + tileCache.size() + " (" + tileBytes + " bytes), cached frames " + frameCache.size();
+  }
+}
@@ -7,6 +7,8 @@ import java.util.concurrent.Future;
 import org.javaseis.util.SeisException;
 import org.momacmo.aws.lambda.tools.ToolInvoke;
 import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.JscPyramid;
+import org.momacmo.aws.s3.jscio.properties.JscTraceStatistics;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
 
 import com.amazonaws.services.lambda.AWSLambdaAsync;
@@ -31,11 +33,18 @@ public class JscToImage implements RequestHandler<Map<String, String>, String> {
     try {
       JsAwsS3 sio = new JsAwsS3( );
       sio.openRemote( input.bucket, input.prefix );
-      float[][] trcs = sio.allocateTraceArray();
-      sio.getFrameTraces(trcs, input.frame, input.volume);
-      FloatToImage ftoi = new FloatToImage(input.colorScale,trcs[0].length, trcs.length, input.scaleMin, input.scaleMax );
-      ftoi.putFloats(trcs);
-      httpImage = ftoi.getBase64Image();
+      if (input.output.equals("base64") || input.cacheBucket == null) {
+        httpImage = renderFrame(sio, input).getBase64Image();
+      } else {
+        JscImageStore store = new JscImageStore(sio.getS3Client(), input.cacheBucket, input.cachePrefix);
+        String key = store.getKey(sio, input);
+        if (store.exists(key)) {
+          logger.log("Cached image: " + key);
+        } else {
+          store.put(key, renderFrame(sio, input));
+        }
+        httpImage = input.output.equals("url") ? store.getUrl(key, input.urlExpiry) : key;
+      }
     } catch (SeisException e) {
       e.printStackTrace();
       String msg = "Failure:\n" + e.getMessage() + "\n" + JsonUtil.toJsonString(input);
@@ -47,6 +56,57 @@ public class JscToImage implements RequestHandler<Map<String, String>, String> {
     return httpImage;
   }
 
+  /**
+   * Render a frame to an image, using the coarsest pyramid level that satisfies
+   * the requested size, and the stored frame statistics for auto scaling
+   */
+  public static FloatToImage renderFrame(JsAwsS3 sio, JscToImageInput input) throws SeisException {
+    float[][] trcs;
+    int ntrc;
+    JscPyramid pyramid = sio.getPyramid();
+    int level = pyramid == null ? 0 : pyramid.selectLevel(input.width, input.height);
+    if (level > 0) {
+      trcs = pyramid.allocateTraceArray(level);
+      ntrc = pyramid.getFrame(sio, level, trcs, input.frame, input.volume);
+    } else {
+      trcs = sio.allocateTraceArray();
+      ntrc = sio.getFrameTraces(trcs, input.frame, input.volume);
+    }
+    JscTraceStatistics ts = input.autoScale ? sio.getFrameStatistics(input.frame, input.volume) : null;
+    return renderTraces(ntrc, trcs, ts, input);
+  }
+
+  /**
+   * Render traces to an image
+   *
+   * @param ntrc  - number of live traces
+   * @param trcs  - traces, one image row per trace
+   * @param ts    - stored statistics for auto scaling, computed from the traces
+   *              if null
+   * @param input - rendering request
+   * @return - rendered image
+   */
+  public static FloatToImage renderTraces(int ntrc, float[][] trcs, JscTraceStatistics ts, JscToImageInput input) {
+    float scaleMin = input.scaleMin;
+    float scaleMax = input.scaleMax;
+    if (input.autoScale) {
+      // Use the statistics stored with the frame, or compute them if the
+      // dataset was written without statistics
+      if (ts == null)
+        ts = JscTraceStatistics.compute(ntrc, trcs[0].length, trcs);
+      float clip = ts.getClip(input.clipPercentile);
+      if (clip > 0) {
+        scaleMin = -clip;
+        scaleMax = clip;
+      }
+    }
+    FloatToImage ftoi = new FloatToImage(input.colorScale,trcs[0].length, trcs.length, scaleMin, scaleMax );
+    ftoi.setFormat(input.format);
+    ftoi.putFloats(trcs);
+    return ftoi;
+  }
+
+
   public static void main(String[] args) {
     JscToImageInput input = new JscToImageInput( "default", "default", "momacmos3", "momacmo/meagerdas/1432_aws_output_filt_5_50_despike", 
         205, 11, -50f, 50f, DisplayColorModel.ColorModel.BLACK_WHITE_RED);
@@ -12,7 +12,23 @@ public class JscToImageInput {
   public int frame  = 0;
   public float scaleMin = -1;
   public float scaleMax = 1;
+  // Scale from the stored frame statistics, symmetric about zero at the
+  // absolute amplitude of clipPercentile
+  public boolean autoScale = false;
+  public float clipPercentile = 99f;
+  // Requested image size in samples and traces, zero for full resolution.
+  // The coarsest pyramid level at least this large is rendered.
+  public int width = 0;
+  public int height = 0;
   public DisplayColorModel.ColorModel colorScale = DisplayColorModel.ColorModel.GRAY;
+  public String format = "jpg";
+  // Image return mode: "base64" returns the encoded image, "key" or "url"
+  // store it under cacheBucket/cachePrefix and return the object key or a
+  // pre-signed URL valid for urlExpiry seconds
+  public String output = "base64";
+  public String cacheBucket = null;
+  public String cachePrefix = "jsc-image-cache";
+  public int urlExpiry = 3600;
   
   public JscToImageInput() {
   }
@@ -49,6 +65,26 @@ public class JscToImageInput {
     scaleMax = Float.parseFloat(eventMap.get("scaleMax"));
     if (eventMap.containsKey("colorScale"))
     colorScale = DisplayColorModel.ColorModel.valueOf(eventMap.get("colorScale"));
+    // Without an explicit scale range the image is auto scaled
+    autoScale = !eventMap.containsKey("scaleMin") && !eventMap.containsKey("scaleMax");
+    if (eventMap.containsKey("autoScale"))
+    autoScale = Boolean.parseBoolean(eventMap.get("autoScale"));
+    if (eventMap.containsKey("clipPercentile"))
+    clipPercentile = Float.parseFloat(eventMap.get("clipPercentile"));
+    if (eventMap.containsKey("width"))
+    width = Integer.parseInt(eventMap.get("width"));
+    if (eventMap.containsKey("height"))
+    height = Integer.parseInt(eventMap.get("height"));
+    if (eventMap.containsKey("format"))
+    format = eventMap.get("format");
+    if (eventMap.containsKey("output"))
+    output = eventMap.get("output");
+    if (eventMap.containsKey("cacheBucket"))
+    cacheBucket = eventMap.get("cacheBucket");
+    if (eventMap.containsKey("cachePrefix"))
+    cachePrefix = eventMap.get("cachePrefix");
+    if (eventMap.containsKey("urlExpiry"))
+    urlExpiry = Integer.parseInt(eventMap.get("urlExpiry"));
   }
 
 }
@@ -11,9 +11,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 import org.javaseis.compress.TraceCompressor;
 import org.javaseis.grid.BinGrid;
@@ -21,17 +27,27 @@ import org.javaseis.grid.GridDefinition;
 import org.javaseis.properties.TraceProperties;
 import org.javaseis.util.SeisException;
 import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JscFrameSummary;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+import org.momacmo.aws.s3.jscio.properties.JscTraceStatistics;
 import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+import org.momacmo.aws.s3.jscio.properties.KeyScheme;
 import org.momacmo.aws.s3.jscio.properties.TracePropertiesImpl;
+import org.momacmo.aws.s3.jscio.query.HeaderPredicate;
+import org.momacmo.aws.s3.jscio.query.JscQuery;
 
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 
 /**
@@ -66,6 +82,24 @@ import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
  * <br>
  * data/Project/SubProject/Headers/V11/F134
  * </code>
+ * <p>
+ * Datasets created with the HASHED {@link KeyScheme} insert a short shard
+ * component after the prefix (data/Project/SubProject/3f/Traces/V11/F134) so
+ * that parallel requests are spread over many S3 partitions. The scheme is
+ * recorded in the JscFileProperties and applied transparently on reads and
+ * writes.
+ * <p>
+ * While headers are written, the minimum and maximum of each header field are
+ * recorded per frame in a per-volume summary object
+ * (data/Project/SubProject/Summaries/V11), which findFrames uses to skip frames
+ * that cannot satisfy a header selection. The select method extends this to
+ * trace level selections using {@link HeaderPredicate}s.
+ * <p>
+ * Datasets with traceStatistics set also store amplitude statistics for each
+ * frame when its traces are written, in a compact sidecar object (data/Project/SubProject/Stats/V11/F134), see
+ * {@link JscTraceStatistics}. getFrameStatistics returns them without reading
+ * trace data. Datasets with pyramidLevels set also store downsampled copies of
+ * each frame for previews, see {@link JscPyramid}.
  * 
  * @author Chuck Mosher for MoMacMo.org
  *
@@ -94,6 +128,18 @@ public class JsAwsS3 {
   int[] pos = new int[4];
   // Buffer for S3 transfers
   byte[] xfrBytes = new byte[16384];
+  // Header summaries being written, and summaries read for queries
+  TracePropertiesImpl hdrView;
+  String[] summaryLabels;
+  // Summaries of the frames written by this instance, volumes changed since
+  // the last flush, and the summary part last stored for each volume
+  Map<Integer, JscHeaderSummary> dirtySummaries = new HashMap<Integer, JscHeaderSummary>();
+  Set<Integer> dirtyVolumes = new HashSet<Integer>();
+  Map<Integer, String> summaryParts = new HashMap<Integer, String>();
+  final Object flushLock = new Object();
+  Map<Integer, JscHeaderSummary> summaryCache = new HashMap<Integer, JscHeaderSummary>();
+  // Downsampled preview levels, null if the dataset has none
+  JscPyramid pyramid;
 
   /**
    * Return true if this SeisSpace dataset uses AWS S3 to store traces and headers
@@ -218,17 +264,35 @@ public class JsAwsS3 {
 
   /** Close and release all resources */
   public void shutdown() {
-    // Probably not necessary but release and nullify big objects
-    s3.shutdown();
-    s3 = null;
-    awsBucket = null;
-    awsPrefix = null;
-    closeFile();
+    try {
+      closeFile();
+    } finally {
+      // Probably not necessary but release and nullify big objects
+      s3.shutdown();
+      s3 = null;
+      awsBucket = null;
+      awsPrefix = null;
+    }
   }
 
-  /** close the current file and associated resources */
+  /**
+   * close the current file and associated resources. Writers should call
+   * flushHeaderSummaries first; pending summaries are flushed here as a last
+   * resort.
+   * 
+   * @throws IllegalStateException - if pending header summaries could not be
+   *                               stored
+   */
   public void closeFile() {
     if (isOpen) {
+      SeisException flushError = null;
+      try {
+        flushHeaderSummaries();
+      } catch (SeisException e) {
+        flushError = e;
+      }
+      resetSummaries();
+      hdrView = null;
       intBuffer = null;
       hdrBuffer = null;
       hdrBytes = null;
@@ -236,6 +300,8 @@ public class JsAwsS3 {
       trcBytes = null;
       traceCompressor = null;
       isOpen = false;
+      if (flushError != null)
+        throw new IllegalStateException("JsAwsS3 closeFile could not store header summaries", flushError);
     }
   }
 
@@ -331,6 +397,31 @@ public class JsAwsS3 {
     if (s3.doesObjectExist(bucket, key) == false)
       throw new SeisException("Could not find JS AWS-S3 FileProperties: s3://" + awsBucket + "/" + key);    
     jscFileProperties = (JscFileProperties) getJsonObject(s3,bucket,key, JscFileProperties.class);
+    resetSummaries();
+    this.awsBucket = bucket;
+    this.awsPrefix = prefix;
+    loadProperties();
+  }
+
+  /**
+   * Create a new JavaSeis Cloud dataset by storing its file properties
+   * 
+   * @param bucket    - AWS Bucket name
+   * @param prefix    - AWS Prefix for the "folder" that will contain the dataset
+   * @param props     - file properties for the new dataset
+   * @param overwrite - true to replace the file properties of an existing
+   *                  dataset; its header summaries are deleted, as they
+   *                  describe frames that are about to be rewritten
+   * @throws SeisException - on AWS access errors or if the dataset exists
+   */
+  public void createRemote(String bucket, String prefix, JscFileProperties props, boolean overwrite)
+      throws SeisException {
+    String key = prefix + "/" + FILE_PROPERTIES_JSC;
+    putJsonObject(s3, bucket, key, props, overwrite);
+    if (overwrite)
+      deleteHeaderSummaries(bucket, prefix);
+    resetSummaries();
+    jscFileProperties = props;
     this.awsBucket = bucket;
     this.awsPrefix = prefix;
     loadProperties();
@@ -358,7 +449,11 @@ public class JsAwsS3 {
       jscFileProperties.traceProperties.setBuffer(hdrBuffer);
       hdrBuffer.order(jscFileProperties.byteOrder);
       intBuffer = hdrBuffer.asIntBuffer();
+      hdrView = TracePropertiesImpl.createView(jscFileProperties.traceProperties, hdrBuffer.duplicate()
+          .order(jscFileProperties.byteOrder), hdrLength);
+      summaryLabels = JscHeaderSummary.getLabels(jscFileProperties.traceProperties);
     }
+    pyramid = jscFileProperties.pyramidLevels > 0 ? new JscPyramid(jscFileProperties) : null;
     isOpen = true;
     volRange = new int[3];
     volRange[0] = (int) grid.getAxisLogicalOrigin(3);
@@ -379,8 +474,60 @@ public class JsAwsS3 {
     return new int[maxTraces][hdrWords];
   }
 
+  /**
+   * Return the object key for a frame stored under a dataset "folder"
+   * 
+   * @param props       - file properties that define the key scheme
+   * @param prefix      - AWS Prefix for the dataset
+   * @param folder      - folder name, for example "Traces" or "Headers"
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - object key for the frame
+   */
+  public static String getFrameKey(JscFileProperties props, String prefix, String folder, int frameIndex,
+      int volumeIndex) {
+    String suffix = "/V" + volumeIndex + "/F" + frameIndex;
+    if (props == null || props.keyScheme != KeyScheme.HASHED)
+      return prefix + "/" + folder + suffix;
+    return prefix + "/" + getShard(props.keyShards, frameIndex, volumeIndex) + "/" + folder + suffix;
+  }
+
+  /**
+   * Return the hash-derived shard component for a frame as a fixed width
+   * hexadecimal string
+   * 
+   * @param shards      - number of shards, DEFAULT_SHARDS if zero or less
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - shard component of the key
+   */
+  public static String getShard(int shards, int frameIndex, int volumeIndex) {
+    if (shards < 1)
+      shards = KeyScheme.DEFAULT_SHARDS;
+    CRC32 crc = new CRC32();
+    crc.update(("V" + volumeIndex + "/F" + frameIndex).getBytes(StandardCharsets.UTF_8));
+    int shard = (int) (crc.getValue() % shards);
+    int digits = Math.max(1, Integer.toHexString(shards - 1).length());
+    String hex = Integer.toHexString(shard);
+    while (hex.length() < digits)
+      hex = "0" + hex;
+    return hex;
+  }
+
+  String traceKey(int frameIndex, int volumeIndex) {
+    return getFrameKey(jscFileProperties, awsPrefix, "Traces", frameIndex, volumeIndex);
+  }
+
+  String headerKey(int frameIndex, int volumeIndex) {
+    return getFrameKey(jscFileProperties, awsPrefix, "Headers", frameIndex, volumeIndex);
+  }
+
+  String statsKey(int frameIndex, int volumeIndex) {
+    return getFrameKey(jscFileProperties, awsPrefix, "Stats", frameIndex, volumeIndex);
+  }
+
   public boolean frameExists(int[] pos) {
-    String key = awsPrefix + "/Traces" + "/V" + pos[3] + "/F" + pos[2];
+    String key = traceKey(pos[2], pos[3]);
     return s3.doesObjectExist(awsBucket, key);
   }
 
@@ -424,7 +571,7 @@ public class JsAwsS3 {
    * @throws SeisException - on AWS or IO errors
    */
   public void putFrameTraces(int ntrc, float[][] frame, int frameIndex, int volumeIndex) throws SeisException {
-    String key = awsPrefix + "/Traces" + "/V" + volumeIndex + "/F" + frameIndex;
+    String key = traceKey(frameIndex, volumeIndex);
     try {
       traceCompressor.packFrame(ntrc, frame);
       InputStream is = new ByteArrayInputStream(trcBytes);
@@ -436,6 +583,48 @@ public class JsAwsS3 {
       e.printStackTrace();
       throw new SeisException("JsAwsS3 putFrameTraces failed: ", e.getCause());
     }
+    if (jscFileProperties.traceStatistics)
+      putFrameStatistics(JscTraceStatistics.compute(ntrc, nsamp, frame), frameIndex, volumeIndex);
+    if (pyramid != null)
+      pyramid.putFrame(this, ntrc, frame, frameIndex, volumeIndex);
+  }
+
+  /**
+   * Store the amplitude statistics for a frame
+   * 
+   * @param ts          - statistics for the frame
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @throws SeisException - on AWS errors
+   */
+  public void putFrameStatistics(JscTraceStatistics ts, int frameIndex, int volumeIndex) throws SeisException {
+    try {
+      byte[] bytes = ts.encode();
+      putBytes(statsKey(frameIndex, volumeIndex), bytes, bytes.length, ts.traceCount);
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 putFrameStatistics failed for V" + volumeIndex + " F" + frameIndex, e);
+    }
+  }
+
+  /**
+   * Retrieve the amplitude statistics for a frame
+   * 
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - statistics for the frame, or null if none are stored
+   * @throws SeisException - on AWS errors
+   */
+  public JscTraceStatistics getFrameStatistics(int frameIndex, int volumeIndex) throws SeisException {
+    String key = statsKey(frameIndex, volumeIndex);
+    try (S3Object s3o = s3.getObject(awsBucket, key)) {
+      return JscTraceStatistics.decode(com.amazonaws.util.IOUtils.toByteArray(s3o.getObjectContent()));
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404)
+        return null;
+      throw new SeisException("JsAwsS3 getFrameStatistics failed for V" + volumeIndex + " F" + frameIndex, e);
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 getFrameStatistics failed for V" + volumeIndex + " F" + frameIndex, e);
+    }
   }
 
   /**
@@ -447,7 +636,7 @@ public class JsAwsS3 {
    * @throws SeisException - on AWS or IO errors
    */
   public int getFrameTraces(float[][] frame, int frameIndex, int volumeIndex) throws SeisException {
-    String key = awsPrefix + "/Traces" + "/V" + volumeIndex + "/F" + frameIndex;
+    String key = traceKey(frameIndex, volumeIndex);
     int traceCount = 0;
     if (s3.doesObjectExist(awsBucket, key) == false)
       return 0;
@@ -478,7 +667,7 @@ public class JsAwsS3 {
    * @throws SeisException - on AWS or IO errors
    */
   public void putFrameHeaders(int trcCount, int[][] hdrs, int frameIndex, int volumeIndex) throws SeisException {
-    String key = awsPrefix + "/Headers" + "/V" + volumeIndex + "/F" + frameIndex;
+    String key = headerKey(frameIndex, volumeIndex);
     try {
       intBuffer.clear();
       for (int j = 0; j < trcCount; j++) {
@@ -493,11 +682,12 @@ public class JsAwsS3 {
       e.printStackTrace();
       throw new SeisException("JsAwsS3 putFrameHeaders failed: ", e.getCause());
     }
+    updateHeaderSummary(hdrView, trcCount, frameIndex, volumeIndex);
   }
 
   public void putFrameProperties(int trcCount, TracePropertiesImpl tp, int frameIndex, int volumeIndex)
       throws SeisException {
-    String key = awsPrefix + "/Headers" + "/V" + volumeIndex + "/F" + frameIndex;
+    String key = headerKey(frameIndex, volumeIndex);
     try {
       ByteBuffer inBuffer = tp.getBuffer();
       inBuffer.rewind();
@@ -520,6 +710,341 @@ public class JsAwsS3 {
       e.printStackTrace();
       throw new SeisException("JsAwsS3 putFrameHeaders failed: ", e.getCause());
     }
+    ByteBuffer summaryBuffer = tp.getBuffer().duplicate().order(tp.getBuffer().order());
+    summaryBuffer.clear();
+    updateHeaderSummary(TracePropertiesImpl.createView(tp, summaryBuffer, tp.getRecordLength()), trcCount, frameIndex,
+        volumeIndex);
+  }
+
+  /**
+   * Store the packed traces and headers held in a frame buffer. Only the
+   * thread safe S3 client is shared, so many frame buffers can be written
+   * concurrently.
+   * 
+   * @param buf - frame buffer containing packed traces and headers
+   * @throws SeisException - on AWS or IO errors
+   */
+  public void putFrameBuffer(JscFrameBuffer buf) throws SeisException {
+    try {
+      if (buf.hasHeaders())
+        putBytes(headerKey(buf.frame, buf.volume), buf.hdrBytes, buf.getHeaderByteCount(), buf.traceCount);
+      putBytes(traceKey(buf.frame, buf.volume), buf.trcBytes, buf.getTraceByteCount(), buf.traceCount);
+      if (buf.statistics != null)
+        putFrameStatistics(buf.statistics, buf.frame, buf.volume);
+      if (pyramid != null)
+        pyramid.putFrame(this, buf.traceCount, buf.traces, buf.frame, buf.volume);
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 putFrameBuffer failed for V" + buf.volume + " F" + buf.frame, e);
+    }
+    if (buf.hasHeaders())
+      updateHeaderSummary(buf.getHeaderProperties(), buf.traceCount, buf.frame, buf.volume);
+  }
+
+  /**
+   * Retrieve only the packed headers for a frame into a frame buffer
+   * 
+   * @param buf         - frame buffer that receives the packed headers
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - number of traces in the frame, zero if the frame does not exist
+   * @throws SeisException - on AWS or IO errors
+   */
+  public int getFrameHeaderBuffer(JscFrameBuffer buf, int frameIndex, int volumeIndex) throws SeisException {
+    buf.setFrame(frameIndex, volumeIndex, 0);
+    if (!buf.hasHeaders())
+      return 0;
+    try {
+      buf.traceCount = getBytes(headerKey(frameIndex, volumeIndex), buf.hdrBytes);
+      return buf.traceCount;
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 getFrameHeaderBuffer failed for V" + volumeIndex + " F" + frameIndex, e);
+    }
+  }
+
+  /**
+   * Retrieve only the packed traces for a frame into a frame buffer
+   * 
+   * @param buf         - frame buffer that receives the packed traces
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - number of traces in the frame, zero if the frame does not exist
+   * @throws SeisException - on AWS or IO errors
+   */
+  public int getFrameTraceBuffer(JscFrameBuffer buf, int frameIndex, int volumeIndex) throws SeisException {
+    buf.setFrame(frameIndex, volumeIndex, 0);
+    try {
+      buf.traceCount = getBytes(traceKey(frameIndex, volumeIndex), buf.trcBytes);
+      return buf.traceCount;
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 getFrameTraceBuffer failed for V" + volumeIndex + " F" + frameIndex, e);
+    }
+  }
+
+  /**
+   * Select the traces whose headers satisfy a predicate, see {@link JscQuery}
+   * 
+   * @param predicate - header selection
+   * @param nthreads  - number of concurrent read threads
+   * @param consumer  - receives the selected traces compacted into full frames
+   * @return - number of traces selected
+   * @throws SeisException - on AWS errors, or if the dataset has no headers
+   */
+  public int select(HeaderPredicate predicate, int nthreads, JscQuery.FrameConsumer consumer) throws SeisException {
+    JscQuery query = new JscQuery(this);
+    query.setThreads(nthreads);
+    return query.select(predicate, consumer);
+  }
+
+  /**
+   * Return the object key for a per-volume object such as a header summary
+   * 
+   * @param prefix      - AWS Prefix for the dataset
+   * @param folder      - folder name, for example "Summaries"
+   * @param volumeIndex - volume index
+   * @return - object key for the volume
+   */
+  public static String getVolumeKey(String prefix, String folder, int volumeIndex) {
+    return prefix + "/" + folder + "/V" + volumeIndex;
+  }
+
+  /**
+   * Return the key of a header summary part. Each writer stores the summaries
+   * of the frames it wrote as its own part, named by its frame range, so
+   * concurrent writers of one volume never overwrite each other.
+   * 
+   * @param prefix      - AWS Prefix for the dataset
+   * @param volumeIndex - volume index
+   * @param firstFrame  - first frame index in the part
+   * @param lastFrame   - last frame index in the part
+   * @return - object key for the part
+   */
+  /** Delete the header summaries and summary parts of every volume of a dataset */
+  void deleteHeaderSummaries(String bucket, String prefix) throws SeisException {
+    List<String> keys = new ArrayList<String>(JsAwsS3Tools.listKeys(s3, bucket, prefix + "/Summaries"));
+    try {
+      for (int i = 0; i < keys.size(); i += JsAwsS3Tools.MAX_DELETE_KEYS)
+        JsAwsS3Tools.deleteKeys(s3, bucket, keys.subList(i, Math.min(keys.size(), i + JsAwsS3Tools.MAX_DELETE_KEYS)));
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 could not delete header summaries of s3://" + bucket + "/" + prefix, e);
+    }
+  }
+
+  public static String getSummaryPartKey(String prefix, int volumeIndex, int firstFrame, int lastFrame) {
+    return getVolumeKey(prefix, "Summaries", volumeIndex) + "/F" + firstFrame + "-" + lastFrame;
+  }
+
+  /** Forget the header summaries of the previous dataset */
+  void resetSummaries() {
+    synchronized (dirtySummaries) {
+      dirtySummaries.clear();
+      dirtyVolumes.clear();
+    }
+    synchronized (flushLock) {
+      summaryParts.clear();
+    }
+    synchronized (summaryCache) {
+      summaryCache.clear();
+    }
+  }
+
+  /**
+   * Add the summary of a frame that has just been written to the summary of
+   * its volume. Summaries are only stored by flushHeaderSummaries.
+   */
+  void updateHeaderSummary(TraceProperties tp, int traceCount, int frameIndex, int volumeIndex)
+      throws SeisException {
+    if (!jscFileProperties.headerSummaries || !jscFileProperties.usesTraceProperties)
+      return;
+    JscHeaderSummary hs;
+    synchronized (dirtySummaries) {
+      hs = dirtySummaries.get(volumeIndex);
+      if (hs == null) {
+        hs = new JscHeaderSummary(volumeIndex, summaryLabels, jscFileProperties.summaryBins);
+        dirtySummaries.put(volumeIndex, hs);
+      }
+    }
+    // Summarizing reads only the caller's headers, so it runs unlocked
+    JscFrameSummary fs = hs.summarize(tp, traceCount, frameIndex);
+    synchronized (dirtySummaries) {
+      hs.add(fs);
+      dirtyVolumes.add(volumeIndex);
+    }
+  }
+
+  /**
+   * Store the header summaries of the volumes written since the last flush.
+   * Each volume is written as one summary part for this writer, replacing the
+   * part it stored before, so there is no read-modify-write of objects shared
+   * with other writers.
+   * 
+   * @throws SeisException - on AWS errors
+   */
+  public void flushHeaderSummaries() throws SeisException {
+    // Flushes run one at a time so an older copy never replaces a newer one
+    synchronized (flushLock) {
+      List<JscHeaderSummary> flush = new ArrayList<JscHeaderSummary>();
+      synchronized (dirtySummaries) {
+        for (Integer volume : dirtyVolumes)
+          flush.add(dirtySummaries.get(volume).copy());
+        dirtyVolumes.clear();
+      }
+      for (int i = 0; i < flush.size(); i++) {
+        JscHeaderSummary hs = flush.get(i);
+        try {
+          String key = getSummaryPartKey(awsPrefix, hs.volume, hs.frames.firstKey(), hs.frames.lastKey());
+          putJsonObject(s3, awsBucket, key, hs, true);
+          String old = summaryParts.put(hs.volume, key);
+          if (old != null && !old.equals(key))
+            s3.deleteObject(awsBucket, old);
+        } catch (Exception e) {
+          // Keep the volumes that were not stored for the next flush
+          synchronized (dirtySummaries) {
+            for (int j = i; j < flush.size(); j++)
+              dirtyVolumes.add(flush.get(j).volume);
+          }
+          throw new SeisException("JsAwsS3 flushHeaderSummaries failed for V" + hs.volume, e);
+        }
+        synchronized (summaryCache) {
+          summaryCache.remove(hs.volume);
+        }
+      }
+    }
+  }
+
+  /**
+   * Store a complete header summary for a volume, replacing the summary parts
+   * written by earlier writers
+   * 
+   * @param hs - summary of every frame in the volume
+   * @throws SeisException - on AWS errors
+   */
+  public void putHeaderSummary(JscHeaderSummary hs) throws SeisException {
+    String key = getVolumeKey(awsPrefix, "Summaries", hs.volume);
+    putJsonObject(s3, awsBucket, key, hs, true);
+    for (String part : getSummaryParts(hs.volume))
+      s3.deleteObject(awsBucket, part);
+    synchronized (summaryCache) {
+      summaryCache.remove(hs.volume);
+    }
+  }
+
+  /** @return - keys of the summary parts stored for a volume */
+  List<String> getSummaryParts(int volumeIndex) {
+    List<String> parts = new ArrayList<String>();
+    String partPrefix = getVolumeKey(awsPrefix, "Summaries", volumeIndex) + "/";
+    ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(awsBucket).withPrefix(partPrefix);
+    ListObjectsV2Result result;
+    do {
+      result = s3.listObjectsV2(req);
+      for (S3ObjectSummary os : result.getObjectSummaries())
+        parts.add(os.getKey());
+      req.setContinuationToken(result.getNextContinuationToken());
+    } while (result.isTruncated());
+    return parts;
+  }
+
+  /**
+   * Return the header summary for a volume
+   * 
+   * @param volumeIndex - volume index
+   * @return - header summary, or null if the volume has no summary
+   * @throws SeisException - on AWS errors
+   */
+  public JscHeaderSummary getHeaderSummary(int volumeIndex) throws SeisException {
+    synchronized (summaryCache) {
+      if (summaryCache.containsKey(volumeIndex))
+        return summaryCache.get(volumeIndex);
+    }
+    // A complete summary from buildHeaderSummaries, plus the parts of writers
+    String key = getVolumeKey(awsPrefix, "Summaries", volumeIndex);
+    JscHeaderSummary hs = null;
+    if (s3.doesObjectExist(awsBucket, key))
+      hs = (JscHeaderSummary) getJsonObject(s3, awsBucket, key, JscHeaderSummary.class);
+    for (String part : getSummaryParts(volumeIndex)) {
+      JscHeaderSummary ps = (JscHeaderSummary) getJsonObject(s3, awsBucket, part, JscHeaderSummary.class);
+      if (hs == null)
+        hs = ps;
+      else
+        hs.merge(ps);
+    }
+    synchronized (summaryCache) {
+      summaryCache.put(volumeIndex, hs);
+    }
+    return hs;
+  }
+
+  /**
+   * Find the frames that may contain traces with a header value inside a
+   * range, using the per-volume header summaries. Volumes and frames without
+   * summaries are always returned.
+   * 
+   * @param label - trace property label
+   * @param lo    - lowest value of the range
+   * @param hi    - highest value of the range
+   * @return - list of {frame, volume} index pairs
+   * @throws SeisException - on AWS errors
+   */
+  public List<int[]> findFrames(String label, double lo, double hi) throws SeisException {
+    List<int[]> frames = new ArrayList<int[]>();
+    for (int volume = volRange[0]; volume <= volRange[1]; volume += volRange[2]) {
+      JscHeaderSummary hs = getHeaderSummary(volume);
+      for (int frame = frmRange[0]; frame <= frmRange[1]; frame += frmRange[2]) {
+        if (hs == null || hs.mayMatch(frame, label, lo, hi))
+          frames.add(new int[] { frame, volume });
+      }
+    }
+    return frames;
+  }
+
+  /**
+   * Retrieve packed traces and headers into a frame buffer. The caller unpacks
+   * the data, so retrieval and decoding can run on different threads.
+   * 
+   * @param buf         - frame buffer that receives the packed data
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - number of traces retrieved, zero if the frame does not exist
+   * @throws SeisException - on AWS or IO errors
+   */
+  public int getFrameBuffer(JscFrameBuffer buf, int frameIndex, int volumeIndex) throws SeisException {
+    buf.setFrame(frameIndex, volumeIndex, 0);
+    try {
+      int traceCount = getBytes(traceKey(frameIndex, volumeIndex), buf.trcBytes);
+      if (traceCount > 0 && buf.hasHeaders())
+        getBytes(headerKey(frameIndex, volumeIndex), buf.hdrBytes);
+      buf.traceCount = traceCount;
+      return traceCount;
+    } catch (Exception e) {
+      throw new SeisException("JsAwsS3 getFrameBuffer failed for V" + volumeIndex + " F" + frameIndex, e);
+    }
+  }
+
+  void putBytes(String key, byte[] bytes, int length, int traceCount) {
+    InputStream is = new ByteArrayInputStream(bytes, 0, length);
+    ObjectMetadata om = new ObjectMetadata();
+    om.setContentLength(length);
+    om.addUserMetadata("traceCount", Integer.toString(traceCount));
+    s3.putObject(awsBucket, key, is, om);
+  }
+
+  int getBytes(String key, byte[] bytes) throws IOException {
+    S3Object s3o = null;
+    try {
+      s3o = s3.getObject(new GetObjectRequest(awsBucket, key));
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404)
+        return 0;
+      throw e;
+    }
+    int traceCount = Integer.parseInt(s3o.getObjectMetadata().getUserMetaDataOf("traceCount"));
+    InputStream is = s3o.getObjectContent();
+    int count = 0;
+    int len = 0;
+    while ((len = is.read(bytes, count, Math.min(16384, bytes.length - count))) > 0)
+      count += len;
+    com.amazonaws.util.IOUtils.drainInputStream(is);
+    s3o.close();
+    return traceCount;
   }
 
   void copyBufferToBuffer(ByteBuffer inBuffer, int inOffset, ByteBuffer outBuffer, int outOffset, int length) {
@@ -537,7 +1062,7 @@ public class JsAwsS3 {
    * @throws SeisException - on AWS or IO errors
    */
   public int getFrameHeaders(int[][] hdrs, int frameIndex, int volumeIndex) throws SeisException {
-    String key = awsPrefix + "/Headers" + "/V" + volumeIndex + "/F" + frameIndex;
+    String key = headerKey(frameIndex, volumeIndex);
     int traceCount = 0;
     intBuffer.clear();
     try {
@@ -573,7 +1098,7 @@ public class JsAwsS3 {
   }
   
   public int getFrameProperties(TracePropertiesImpl tp, int frameIndex, int volumeIndex) throws SeisException {
-    String key = awsPrefix + "/Headers" + "/V" + volumeIndex + "/F" + frameIndex;
+    String key = headerKey(frameIndex, volumeIndex);
     try {
       GetObjectRequest gor = new GetObjectRequest(awsBucket, key);
       S3Object s3o = s3.getObject(gor);
@@ -738,6 +1263,19 @@ public class JsAwsS3 {
     return jscFileProperties.gridDefinition;
   }
 
+  public JscFileProperties getFileProperties() {
+    return jscFileProperties;
+  }
+
+  /** @return - pyramid levels for previews, null if the dataset has none */
+  public JscPyramid getPyramid() {
+    return pyramid;
+  }
+
+  public AmazonS3 getS3Client() {
+    return s3;
+  }
+
   public TraceProperties traceProperties() {
     return jscFileProperties.traceProperties;
   }
@@ -0,0 +1,276 @@
+package org.momacmo.aws.s3.jscio;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.properties.DataDefinition;
+import org.javaseis.properties.TraceProperties;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.properties.GridUtil;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Parallel export of a JavaSeis Cloud dataset stored in AWS S3 to a local
+ * SeisSpace/JavaSeis dataset.
+ * <p>
+ * Frames are fetched and decoded by a pool of threads issuing concurrent GET
+ * requests, and written to the local dataset by a single writer thread using
+ * javaseis-core's Seisio. Frames are written in dataset order by default, or
+ * as soon as they arrive when ordering is disabled. A sub-range of volumes and
+ * frames can be exported; the local dataset always uses the full grid so that
+ * frame positions are unchanged.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ *
+ */
+public class JsAwsS3Export {
+  JsAwsS3 jsc;
+  int fetchThreads = 32;
+  boolean ordered = true;
+  // Counters for the current export
+  int framesWritten;
+  long bytesWritten;
+  AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+  /**
+   * Prepare an export from an open JavaSeis Cloud dataset
+   *
+   * @param jsc - JsAwsS3 instance with the source dataset open
+   */
+  public JsAwsS3Export(JsAwsS3 jsc) {
+    this.jsc = jsc;
+  }
+
+  public void setFetchThreads(int fetchThreads) {
+    this.fetchThreads = Math.max(1, fetchThreads);
+  }
+
+  /**
+   * @param ordered - true to write frames in dataset order, false to write
+   *                frames as soon as they are retrieved
+   */
+  public void setOrdered(boolean ordered) {
+    this.ordered = ordered;
+  }
+
+  /**
+   * Export the open dataset to a local JavaSeis dataset
+   *
+   * @param localPath - path for the local JavaSeis dataset
+   * @param volRange  - logical volume range {start, end, increment}, null for
+   *                  all volumes
+   * @param frmRange  - logical frame range {start, end, increment}, null for all
+   *                  frames
+   * @param overwrite - true to replace an existing local dataset
+   * @return - number of frames written
+   * @throws SeisException - on local IO or AWS errors
+   */
+  public int exportDataset(String localPath, long[] volRange, long[] frmRange, boolean overwrite)
+      throws SeisException {
+    JscFileProperties props = jsc.getFileProperties();
+    GridDefinition grid = props.gridDefinition;
+    long[] vrange = getRange(grid, 3, volRange);
+    long[] frange = getRange(grid, 2, frmRange);
+    Seisio out = createLocal(localPath, props, overwrite);
+    framesWritten = 0;
+    bytesWritten = 0;
+    failure.set(null);
+    int nbuf = 2 * fetchThreads + 2;
+    BlockingQueue<JscFrameBuffer> free = new ArrayBlockingQueue<JscFrameBuffer>(nbuf);
+    for (int i = 0; i < nbuf; i++)
+      free.add(new JscFrameBuffer(props));
+    BlockingQueue<JscFrameBuffer> ready = new LinkedBlockingQueue<JscFrameBuffer>();
+    Map<JscFrameBuffer, Integer> sequence = new HashMap<JscFrameBuffer, Integer>();
+    ExecutorService fetchPool = Executors.newFixedThreadPool(fetchThreads);
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    int[] total = { -1 };
+    long t0 = System.currentTimeMillis();
+    Future<?> writeTask = writer.submit(() -> {
+      writeFrames(out, grid, free, ready, sequence, total);
+    });
+    int count = 0;
+    try {
+      for (long volume = vrange[0]; volume <= vrange[1] && failure.get() == null; volume += vrange[2]) {
+        for (long frame = frange[0]; frame <= frange[1] && failure.get() == null; frame += frange[2]) {
+          // Buffers are taken in dataset order, so the next frame to be
+          // written always owns a buffer and ordered writes cannot stall
+          JscFrameBuffer buf = null;
+          while (buf == null && failure.get() == null)
+            buf = free.poll(100, TimeUnit.MILLISECONDS);
+          if (buf == null)
+            break;
+          synchronized (sequence) {
+            sequence.put(buf, count++);
+          }
+          int f = (int) frame;
+          int v = (int) volume;
+          JscFrameBuffer fbuf = buf;
+          fetchPool.submit(() -> {
+            try {
+              if (jsc.getFrameBuffer(fbuf, f, v) > 0)
+                fbuf.unpackTraces();
+            } catch (Exception e) {
+              failure.compareAndSet(null, e);
+              fbuf.traceCount = 0;
+            }
+            ready.add(fbuf);
+          });
+        }
+      }
+      synchronized (total) {
+        total[0] = count;
+      }
+      fetchPool.shutdown();
+      fetchPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      writeTask.get();
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      fetchPool.shutdownNow();
+      writer.shutdownNow();
+      out.close();
+    }
+    if (failure.get() != null)
+      throw new SeisException("JsAwsS3Export failed after " + framesWritten + " frames", failure.get());
+    double sec = 0.001 * (System.currentTimeMillis() - t0);
+    System.out.println("Exported " + framesWritten + " frames in " + sec + " sec, "
+        + (sec > 0 ? bytesWritten / sec / 1048576.0 : 0) + " MiB/s");
+    return framesWritten;
+  }
+
+  /**
+   * Writer loop, runs on its own thread until every submitted frame has been
+   * handled
+   */
+  void writeFrames(Seisio out, GridDefinition grid, BlockingQueue<JscFrameBuffer> free,
+      BlockingQueue<JscFrameBuffer> ready, Map<JscFrameBuffer, Integer> sequence, int[] total) {
+    Map<Integer, JscFrameBuffer> pending = new HashMap<Integer, JscFrameBuffer>();
+    int next = 0;
+    int[] pos = new int[grid.getNumDimensions()];
+    try {
+      while (true) {
+        synchronized (total) {
+          if (total[0] >= 0 && next >= total[0])
+            break;
+        }
+        if (failure.get() != null)
+          break;
+        JscFrameBuffer buf = ready.poll(100, TimeUnit.MILLISECONDS);
+        if (buf == null)
+          continue;
+        int seq;
+        synchronized (sequence) {
+          seq = sequence.remove(buf);
+        }
+        if (!ordered) {
+          writeFrame(out, grid, buf, pos);
+          next++;
+          free.add(buf);
+          continue;
+        }
+        pending.put(seq, buf);
+        while ((buf = pending.remove(next)) != null) {
+          writeFrame(out, grid, buf, pos);
+          next++;
+          free.add(buf);
+        }
+      }
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+    }
+  }
+
+  void writeFrame(Seisio out, GridDefinition grid, JscFrameBuffer buf, int[] pos) throws SeisException {
+    if (buf.traceCount < 1)
+      return;
+    float[][] trcs = out.getTraceDataArray();
+    int nsamp = buf.getSamplesPerTrace();
+    for (int j = 0; j < buf.traceCount; j++)
+      System.arraycopy(buf.traces[j], 0, trcs[j], 0, nsamp);
+    if (buf.hasHeaders()) {
+      TraceProperties tp = out.getTraceProperties();
+      ByteBuffer hdrs = tp.getBuffer().duplicate();
+      int outLength = tp.getRecordLength();
+      int inLength = buf.getHeaderLength();
+      int len = Math.min(inLength, outLength);
+      hdrs.clear();
+      for (int j = 0; j < buf.traceCount; j++) {
+        hdrs.position(outLength * j);
+        hdrs.put(buf.hdrBytes, inLength * j, len);
+      }
+    }
+    pos[2] = GridUtil.logicalToIndex(grid, 2, buf.frame);
+    pos[3] = GridUtil.logicalToIndex(grid, 3, buf.volume);
+    out.writeFrame(pos, buf.traceCount);
+    framesWritten++;
+    bytesWritten += (long) buf.traceCount * nsamp * 4;
+  }
+
+  /**
+   * Create the local dataset and open it for writing
+   */
+  static Seisio createLocal(String localPath, JscFileProperties props, boolean overwrite) throws SeisException {
+    if (Seisio.isJavaSeis(localPath)) {
+      if (overwrite == false)
+        throw new SeisException("JsAwsS3Export failed, local dataset already exists: " + localPath);
+      Seisio.delete(localPath);
+    }
+    DataDefinition dataDef = new DataDefinition(props.dataType, props.traceFormat, props.byteOrder);
+    TraceProperties tp = props.usesTraceProperties ? props.traceProperties : null;
+    Seisio sio = new Seisio(localPath, props.gridDefinition, dataDef, tp);
+    sio.create();
+    Seisio.setHasTraces(localPath, true);
+    sio.close();
+    sio = new Seisio(localPath);
+    sio.open("rw");
+    return sio;
+  }
+
+  /**
+   * Restrict a requested logical range to the dataset grid
+   */
+  static long[] getRange(GridDefinition grid, int axis, long[] request) throws SeisException {
+    long[] range = GridUtil.getRange(grid, axis);
+    if (request == null)
+      return range;
+    if (request[2] < 1 || request[1] < request[0])
+      throw new SeisException("Invalid range for axis " + axis + ": " + request[0] + ", " + request[1] + ", "
+          + request[2]);
+    long strt = Math.max(range[0], request[0]);
+    long inc = range[2] * ((Math.max(range[2], request[2]) + range[2] - 1) / range[2]);
+    strt = range[0] + range[2] * ((strt - range[0] + range[2] - 1) / range[2]);
+    return new long[] { strt, Math.min(range[1], request[1]), inc };
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 3) {
+      System.out.println("Usage: JsAwsS3Export bucket prefix localPath [vol0 voln frm0 frmn]");
+      return;
+    }
+    try {
+      JsAwsS3 jsc = new JsAwsS3();
+      jsc.openRemote(args[0], args[1]);
+      long[] vrange = null, frange = null;
+      if (args.length > 6) {
+        vrange = new long[] { Long.parseLong(args[3]), Long.parseLong(args[4]), 1 };
+        frange = new long[] { Long.parseLong(args[5]), Long.parseLong(args[6]), 1 };
+      }
+      JsAwsS3Export export = new JsAwsS3Export(jsc);
+      export.exportDataset(args[2], vrange, frange, false);
+      jsc.shutdown();
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,308 @@
+package org.momacmo.aws.s3.jscio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.io.Seisio;
+import org.javaseis.properties.DataDefinition;
+import org.javaseis.properties.TraceProperties;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.properties.GridUtil;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.KeyScheme;
+import org.momacmo.aws.s3.jscio.properties.TracePropertiesImpl;
+
+/**
+ * Bulk import of a local SeisSpace/JavaSeis dataset into a JavaSeis Cloud
+ * dataset stored in AWS S3.
+ * <p>
+ * Frames move through a three stage pipeline:
+ * <ol>
+ * <li>read - a single thread reads frames from the local dataset</li>
+ * <li>pack - a small pool compresses traces into the JavaSeis Cloud format</li>
+ * <li>upload - a larger pool stores packed traces and headers in S3</li>
+ * </ol>
+ * A fixed pool of JscFrameBuffers bounds memory use and applies back pressure
+ * to the reader, so local reads overlap with uploads.
+ * <p>
+ * Imports are resumable: when resume is requested the existing keys are
+ * listed once, and frames whose traces and headers are already stored are
+ * skipped. The partial dataset must have the grid, trace format and key
+ * scheme of the import, otherwise the import fails rather than skipping frames
+ * that belong to a different layout.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ *
+ */
+public class JsAwsS3Import {
+  JsAwsS3 jsc;
+  int uploadThreads = 32;
+  int packThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  KeyScheme keyScheme = KeyScheme.SEQUENTIAL;
+  int keyShards = 0;
+  // Counters for the current import
+  AtomicInteger framesStored = new AtomicInteger();
+  int framesSkipped;
+  AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+  /**
+   * Prepare an import using an existing JsAwsS3 client
+   *
+   * @param jsc - JsAwsS3 instance used for S3 access
+   */
+  public JsAwsS3Import(JsAwsS3 jsc) {
+    this.jsc = jsc;
+  }
+
+  public void setUploadThreads(int uploadThreads) {
+    this.uploadThreads = Math.max(1, uploadThreads);
+  }
+
+  public void setPackThreads(int packThreads) {
+    this.packThreads = Math.max(1, packThreads);
+  }
+
+  public void setKeyScheme(KeyScheme keyScheme, int keyShards) {
+    this.keyScheme = keyScheme;
+    this.keyShards = keyShards;
+  }
+
+  /**
+   * Convert the properties of a local JavaSeis dataset to JscFileProperties
+   *
+   * @param sio    - open local dataset
+   * @param parms  - AWS location for the new dataset
+   * @return - file properties for the JavaSeis Cloud dataset
+   */
+  public static JscFileProperties getFileProperties(Seisio sio, JsAwsS3Parms parms) {
+    JscFileProperties props = new JscFileProperties();
+    DataDefinition dataDef = sio.getDataDefinition();
+    props.jscParms = parms;
+    props.version = sio.getVersionString();
+    props.dataType = dataDef.getDataType();
+    props.traceFormat = dataDef.getTraceFormat();
+    props.byteOrder = sio.getByteOrder();
+    props.mapped = sio.isMapped();
+    props.gridDefinition = sio.getGridDefinition();
+    try {
+      props.binGrid = sio.getBinGrid();
+      props.hasBinGrid = props.binGrid != null;
+    } catch (SeisException e) {
+      props.hasBinGrid = false;
+    }
+    TraceProperties tp = sio.getTraceProperties();
+    if (sio.usesProperties() && tp != null) {
+      props.usesTraceProperties = true;
+      props.traceProperties = new TracePropertiesImpl(tp);
+    }
+    return props;
+  }
+
+  /**
+   * Import a local JavaSeis dataset
+   *
+   * @param localPath - path to the local JavaSeis dataset
+   * @param bucket    - destination AWS Bucket
+   * @param prefix    - destination AWS Prefix
+   * @param resume    - true to continue an earlier import of the same dataset
+   * @return - number of frames stored by this call
+   * @throws SeisException - on local IO or AWS errors
+   */
+  public int importDataset(String localPath, String bucket, String prefix, boolean resume) throws SeisException {
+    Seisio sio = new Seisio(localPath);
+    sio.open("r");
+    framesStored.set(0);
+    framesSkipped = 0;
+    failure.set(null);
+    Set<String> existing = null;
+    JsAwsS3Parms parms = new JsAwsS3Parms();
+    parms.awsProfile = jsc.awsProfile;
+    parms.awsRegion = jsc.awsRegion;
+    parms.awsBucket = bucket;
+    parms.awsPrefix = prefix;
+    parms.localPath = localPath;
+    JscFileProperties local = getFileProperties(sio, parms);
+    local.keyScheme = keyScheme;
+    local.keyShards = keyShards;
+    try {
+      if (resume && jsc.getS3Client().doesObjectExist(bucket, prefix + "/" + JsAwsS3.FILE_PROPERTIES_JSC)) {
+        // Find the completed frames of a partial import of the same dataset
+        jsc.openRemote(bucket, prefix);
+        checkResume(local, jsc.getFileProperties());
+        existing = JsAwsS3Tools.listKeys(jsc.getS3Client(), bucket, prefix);
+      } else {
+        jsc.createRemote(bucket, prefix, local, resume);
+      }
+    } catch (SeisException e) {
+      sio.close();
+      throw e;
+    }
+    JscFileProperties props = jsc.getFileProperties();
+    // Pool of frame buffers shared by all stages
+    int nbuf = uploadThreads + 2 * packThreads + 2;
+    BlockingQueue<JscFrameBuffer> free = new ArrayBlockingQueue<JscFrameBuffer>(nbuf);
+    for (int i = 0; i < nbuf; i++)
+      free.add(new JscFrameBuffer(props));
+    ExecutorService packPool = Executors.newFixedThreadPool(packThreads);
+    ExecutorService uploadPool = Executors.newFixedThreadPool(uploadThreads);
+    GridDefinition grid = props.gridDefinition;
+    long[] vrange = GridUtil.getRange(grid, 3);
+    long[] frange = GridUtil.getRange(grid, 2);
+    int[] pos = new int[grid.getNumDimensions()];
+    long t0 = System.currentTimeMillis();
+    try {
+      for (long volume = vrange[0]; volume <= vrange[1] && failure.get() == null; volume += vrange[2]) {
+        for (long frame = frange[0]; frame <= frange[1] && failure.get() == null; frame += frange[2]) {
+          if (existing != null && isStored(existing, props, prefix, (int) frame, (int) volume)) {
+            framesSkipped++;
+            continue;
+          }
+          pos[2] = GridUtil.logicalToIndex(grid, 2, frame);
+          pos[3] = GridUtil.logicalToIndex(grid, 3, volume);
+          int ntrc = sio.readFrame(pos);
+          if (ntrc < 1)
+            continue;
+          JscFrameBuffer buf = free.take();
+          readToBuffer(sio, ntrc, buf);
+          buf.setFrame((int) frame, (int) volume, ntrc);
+          packPool.submit(() -> {
+            try {
+              buf.packTraces();
+              uploadPool.submit(() -> upload(buf, free));
+            } catch (Exception e) {
+              failure.compareAndSet(null, e);
+              free.add(buf);
+            }
+          });
+        }
+      }
+      packPool.shutdown();
+      packPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      uploadPool.shutdown();
+      uploadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      packPool.shutdownNow();
+      uploadPool.shutdownNow();
+      sio.close();
+    }
+    // Store the summaries of the frames that were written, also after a
+    // failure so a resumed import keeps them
+    try {
+      jsc.flushHeaderSummaries();
+    } catch (SeisException e) {
+      failure.compareAndSet(null, e);
+    }
+    if (failure.get() != null)
+      throw new SeisException("JsAwsS3Import failed after " + framesStored.get()
+          + " frames, rerun with resume to continue", failure.get());
+    double sec = 0.001 * (System.currentTimeMillis() - t0);
+    System.out.println("Imported " + framesStored.get() + " frames, skipped " + framesSkipped + " frames in " + sec
+        + " sec");
+    return framesStored.get();
+  }
+
+  void upload(JscFrameBuffer buf, BlockingQueue<JscFrameBuffer> free) {
+    try {
+      if (failure.get() == null) {
+        jsc.putFrameBuffer(buf);
+        framesStored.incrementAndGet();
+      }
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      free.add(buf);
+    }
+  }
+
+  /**
+   * Check that a partial dataset was created by an import of the same layout,
+   * so the frames it holds can be skipped
+   *
+   * @param local  - file properties of the import
+   * @param remote - file properties of the partial dataset
+   * @throws SeisException - if the layouts differ
+   */
+  static void checkResume(JscFileProperties local, JscFileProperties remote) throws SeisException {
+    List<String> differences = new ArrayList<String>();
+    GridDefinition a = local.gridDefinition;
+    GridDefinition b = remote.gridDefinition;
+    if (b == null || a.getNumDimensions() != b.getNumDimensions()
+        || !Arrays.equals(a.getAxisLengths(), b.getAxisLengths())
+        || !Arrays.equals(a.getAxisLogicalOrigins(), b.getAxisLogicalOrigins())
+        || !Arrays.equals(a.getAxisLogicalDeltas(), b.getAxisLogicalDeltas()))
+      differences.add("grid " + Arrays.toString(a.getAxisLengths()) + " != "
+          + (b == null ? null : Arrays.toString(b.getAxisLengths())));
+    if (local.traceFormat != remote.traceFormat)
+      differences.add("traceFormat " + local.traceFormat + " != " + remote.traceFormat);
+    if (local.usesTraceProperties != remote.usesTraceProperties)
+      differences.add("usesTraceProperties " + local.usesTraceProperties + " != " + remote.usesTraceProperties);
+    // Zero shards selects the default number
+    int localShards = local.keyShards < 1 ? KeyScheme.DEFAULT_SHARDS : local.keyShards;
+    int remoteShards = remote.keyShards < 1 ? KeyScheme.DEFAULT_SHARDS : remote.keyShards;
+    if (local.keyScheme != remote.keyScheme || (local.keyScheme == KeyScheme.HASHED && localShards != remoteShards))
+      differences.add("keyScheme " + local.keyScheme + "/" + local.keyShards + " != " + remote.keyScheme + "/"
+          + remote.keyShards);
+    if (!differences.isEmpty())
+      throw new SeisException("JsAwsS3Import can not resume, the existing dataset differs: "
+          + String.join(", ", differences));
+  }
+
+  static boolean isStored(Set<String> existing, JscFileProperties props, String prefix, int frame, int volume) {
+    if (!existing.contains(JsAwsS3.getFrameKey(props, prefix, "Traces", frame, volume)))
+      return false;
+    if (props.usesTraceProperties && !existing.contains(JsAwsS3.getFrameKey(props, prefix, "Headers", frame, volume)))
+      return false;
+    return true;
+  }
+
+  /**
+   * Copy the traces and headers of the frame just read by Seisio into a frame
+   * buffer
+   */
+  static void readToBuffer(Seisio sio, int ntrc, JscFrameBuffer buf) {
+    float[][] trcs = sio.getTraceDataArray();
+    int nsamp = buf.getSamplesPerTrace();
+    for (int j = 0; j < ntrc; j++)
+      System.arraycopy(trcs[j], 0, buf.traces[j], 0, nsamp);
+    if (!buf.hasHeaders())
+      return;
+    ByteBuffer hdrs = sio.getTraceProperties().getBuffer().duplicate();
+    int inLength = sio.getTraceProperties().getRecordLength();
+    int outLength = buf.getHeaderLength();
+    int len = Math.min(inLength, outLength);
+    for (int j = 0; j < ntrc; j++) {
+      hdrs.limit(inLength * j + len);
+      hdrs.position(inLength * j);
+      hdrs.get(buf.hdrBytes, outLength * j, len);
+    }
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 3) {
+      System.out.println("Usage: JsAwsS3Import localPath bucket prefix [resume]");
+      return;
+    }
+    try {
+      JsAwsS3 jsc = new JsAwsS3();
+      JsAwsS3Import importer = new JsAwsS3Import(jsc);
+      importer.setKeyScheme(KeyScheme.HASHED, KeyScheme.DEFAULT_SHARDS);
+      importer.importDataset(args[0], args[1], args[2], args.length > 3 && args[3].equals("resume"));
+      jsc.shutdown();
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+  }
+}
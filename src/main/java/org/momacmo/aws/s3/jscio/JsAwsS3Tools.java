@@ -0,0 +1,392 @@
+package org.momacmo.aws.s3.jscio;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.properties.GridUtil;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+import org.momacmo.aws.s3.jscio.properties.PyramidMode;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Dataset level housekeeping for JavaSeis Cloud datasets stored in AWS S3.
+ * <p>
+ * Object keys are generated from the JscFileProperties of the dataset, so no
+ * bucket listing is required. Copies use server side CopyObject requests, so
+ * trace and header data never leave S3. Deletes use multi-object delete
+ * requests of up to 1000 keys. Both operations are spread over a pool of
+ * threads.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ *
+ */
+public class JsAwsS3Tools {
+  /** Maximum number of keys allowed in a single multi-object delete */
+  public static final int MAX_DELETE_KEYS = 1000;
+  /** Number of copy requests handled by a single task */
+  static final int COPY_CHUNK = 100;
+  /** Folders that hold per-frame objects for a dataset */
+  static final String[] FRAME_FOLDERS = { "Traces", "Headers", "Stats" };
+  /** Folders that hold per-volume objects for a dataset */
+  static final String[] VOLUME_FOLDERS = { "Summaries" };
+  /** Folders that hold objects for the dataset as a whole, such as job statistics */
+  static final String[] DATASET_FOLDERS = { "JobStats" };
+
+  /**
+   * Return the keys of every per-frame object defined by the dataset grid.
+   * Frames that were never written are included, so callers must tolerate
+   * missing objects.
+   *
+   * @param props  - file properties for the dataset
+   * @param prefix - AWS Prefix for the dataset
+   * @return - list of object keys
+   */
+  public static List<String> getFrameKeys(JscFileProperties props, String prefix) {
+    GridDefinition grid = props.gridDefinition;
+    long[] vrange = GridUtil.getRange(grid, 3);
+    long[] frange = GridUtil.getRange(grid, 2);
+    List<String> keys = new ArrayList<String>();
+    for (long volume = vrange[0]; volume <= vrange[1]; volume += vrange[2]) {
+      for (long frame = frange[0]; frame <= frange[1]; frame += frange[2]) {
+        for (String folder : FRAME_FOLDERS) {
+          if (folder.equals("Headers") && !props.usesTraceProperties)
+            continue;
+          keys.add(JsAwsS3.getFrameKey(props, prefix, folder, (int) frame, (int) volume));
+        }
+        for (int level = 1; level <= props.pyramidLevels; level++)
+          keys.add(JsAwsS3.getFrameKey(props, prefix, JscPyramid.getFolder(level), (int) frame, (int) volume));
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Return the keys of every object that can belong to a dataset, except for
+   * the file properties
+   *
+   * @param props  - file properties for the dataset
+   * @param prefix - AWS Prefix for the dataset
+   * @return - list of object keys
+   */
+  public static List<String> getDatasetKeys(JscFileProperties props, String prefix) {
+    List<String> keys = getFrameKeys(props, prefix);
+    long[] vrange = GridUtil.getRange(props.gridDefinition, 3);
+    for (long volume = vrange[0]; volume <= vrange[1]; volume += vrange[2]) {
+      for (String folder : VOLUME_FOLDERS)
+        keys.add(JsAwsS3.getVolumeKey(prefix, folder, (int) volume));
+    }
+    return keys;
+  }
+
+  /**
+   * Return the keys of every object of a stored dataset: the keys defined by
+   * the grid, plus the header summary parts of individual writers and the
+   * dataset folders, which can only be found by listing
+   *
+   * @param s3     - AWS S3 client
+   * @param bucket - bucket containing the dataset
+   * @param props  - file properties for the dataset
+   * @param prefix - AWS Prefix for the dataset
+   * @return - list of object keys
+   */
+  static List<String> getDatasetKeys(AmazonS3 s3, String bucket, JscFileProperties props, String prefix) {
+    Set<String> keys = new LinkedHashSet<String>(getDatasetKeys(props, prefix));
+    for (String folder : VOLUME_FOLDERS)
+      keys.addAll(listKeys(s3, bucket, prefix + "/" + folder));
+    for (String folder : DATASET_FOLDERS)
+      keys.addAll(listKeys(s3, bucket, prefix + "/" + folder));
+    return new ArrayList<String>(keys);
+  }
+
+  /**
+   * Copy a dataset to a new location using server side copies. The file
+   * properties are written last, so an interrupted copy is never visible as a
+   * complete dataset.
+   *
+   * @param s3        - AWS S3 client
+   * @param srcBucket - source bucket
+   * @param srcPrefix - source prefix
+   * @param dstBucket - destination bucket
+   * @param dstPrefix - destination prefix
+   * @param nthreads  - number of concurrent copy threads
+   * @param overwrite - true to replace an existing destination dataset
+   * @return - number of objects copied
+   * @throws SeisException - on AWS errors
+   */
+  public static int copyDataset(AmazonS3 s3, String srcBucket, String srcPrefix, String dstBucket, String dstPrefix,
+      int nthreads, boolean overwrite) throws SeisException {
+    String srcKey = srcPrefix + "/" + JsAwsS3.FILE_PROPERTIES_JSC;
+    String dstKey = dstPrefix + "/" + JsAwsS3.FILE_PROPERTIES_JSC;
+    if (s3.doesObjectExist(dstBucket, dstKey) && overwrite == false)
+      throw new SeisException("JsAwsS3Tools copyDataset failed, dataset already exists: s3://" + dstBucket + "/"
+          + dstPrefix);
+    JscFileProperties props = (JscFileProperties) JsAwsS3.getJsonObject(s3, srcBucket, srcKey,
+        JscFileProperties.class);
+    List<String> keys = getDatasetKeys(s3, srcBucket, props, srcPrefix);
+    AtomicInteger count = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nthreads));
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 0; i < keys.size(); i += COPY_CHUNK) {
+      List<String> chunk = keys.subList(i, Math.min(keys.size(), i + COPY_CHUNK));
+      futures.add(pool.submit(() -> {
+        for (String key : chunk) {
+          String newKey = dstPrefix + key.substring(srcPrefix.length());
+          try {
+            s3.copyObject(new CopyObjectRequest(srcBucket, key, dstBucket, newKey));
+            count.incrementAndGet();
+          } catch (AmazonS3Exception e) {
+            // Frames that were never written are skipped
+            if (e.getStatusCode() != 404)
+              throw e;
+          }
+        }
+      }));
+    }
+    waitForTasks(pool, futures, "copyDataset");
+    if (props.jscParms != null) {
+      props.jscParms.awsBucket = dstBucket;
+      props.jscParms.awsPrefix = dstPrefix;
+    }
+    JsAwsS3.putJsonObject(s3, dstBucket, dstKey, props, true);
+    return count.get() + 1;
+  }
+
+  /**
+   * Delete a dataset using batched multi-object deletes. The file properties
+   * are removed last, so an interrupted delete can be restarted.
+   *
+   * @param s3       - AWS S3 client
+   * @param bucket   - bucket containing the dataset
+   * @param prefix   - prefix for the dataset
+   * @param nthreads - number of concurrent delete threads
+   * @return - number of keys submitted for deletion
+   * @throws SeisException - on AWS errors
+   */
+  public static int deleteDataset(AmazonS3 s3, String bucket, String prefix, int nthreads) throws SeisException {
+    String propsKey = prefix + "/" + JsAwsS3.FILE_PROPERTIES_JSC;
+    JscFileProperties props = (JscFileProperties) JsAwsS3.getJsonObject(s3, bucket, propsKey,
+        JscFileProperties.class);
+    List<String> keys = getDatasetKeys(s3, bucket, props, prefix);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nthreads));
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 0; i < keys.size(); i += MAX_DELETE_KEYS) {
+      List<String> chunk = keys.subList(i, Math.min(keys.size(), i + MAX_DELETE_KEYS));
+      futures.add(pool.submit(() -> {
+        deleteKeys(s3, bucket, chunk);
+      }));
+    }
+    waitForTasks(pool, futures, "deleteDataset");
+    s3.deleteObject(bucket, propsKey);
+    return keys.size() + 1;
+  }
+
+  /**
+   * Move a dataset by copying it to the new location and then deleting the
+   * original
+   *
+   * @param s3        - AWS S3 client
+   * @param srcBucket - source bucket
+   * @param srcPrefix - source prefix
+   * @param dstBucket - destination bucket
+   * @param dstPrefix - destination prefix
+   * @param nthreads  - number of concurrent threads
+   * @throws SeisException - on AWS errors
+   */
+  public static void moveDataset(AmazonS3 s3, String srcBucket, String srcPrefix, String dstBucket, String dstPrefix,
+      int nthreads) throws SeisException {
+    copyDataset(s3, srcBucket, srcPrefix, dstBucket, dstPrefix, nthreads, false);
+    deleteDataset(s3, srcBucket, srcPrefix, nthreads);
+  }
+
+  /**
+   * Build the pyramid levels of an existing dataset by reading every frame,
+   * and record the levels in the dataset properties
+   *
+   * @param jsc      - JsAwsS3 instance with the dataset open
+   * @param levels   - number of pyramid levels
+   * @param mode     - block reduction method
+   * @param nthreads - number of concurrent threads
+   * @throws SeisException - on AWS errors
+   */
+  public static void buildPyramids(JsAwsS3 jsc, int levels, PyramidMode mode, int nthreads) throws SeisException {
+    JscFileProperties props = jsc.getFileProperties();
+    int oldLevels = props.pyramidLevels;
+    PyramidMode oldMode = props.pyramidMode;
+    props.pyramidLevels = levels;
+    props.pyramidMode = mode;
+    JscPyramid pyramid = new JscPyramid(props);
+    int[] vrange = jsc.getVolumeRange();
+    int[] frange = jsc.getFrameRange();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nthreads));
+    ThreadLocal<JscFrameBuffer> buffers = new ThreadLocal<JscFrameBuffer>();
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int volume = vrange[0]; volume <= vrange[1]; volume += vrange[2]) {
+      for (int frame = frange[0]; frame <= frange[1]; frame += frange[2]) {
+        int f = frame;
+        int v = volume;
+        futures.add(pool.submit(() -> {
+          JscFrameBuffer buf = buffers.get();
+          if (buf == null) {
+            buf = new JscFrameBuffer(props);
+            buffers.set(buf);
+          }
+          if (jsc.getFrameTraceBuffer(buf, f, v) > 0) {
+            buf.unpackTraces();
+            pyramid.putFrame(jsc, buf.traceCount, buf.traces, f, v);
+          }
+          return null;
+        }));
+      }
+    }
+    try {
+      for (Future<?> fut : futures)
+        fut.get();
+    } catch (Exception e) {
+      props.pyramidLevels = oldLevels;
+      props.pyramidMode = oldMode;
+      throw new SeisException("JsAwsS3Tools buildPyramids failed", e);
+    } finally {
+      pool.shutdownNow();
+    }
+    // Record the levels only once every frame has them
+    jsc.createRemote(jsc.getAwsBucket(), jsc.getAwsPrefix(), props, true);
+  }
+
+  /**
+   * Build the per-volume header summaries of an existing dataset by reading
+   * every header object, replacing any stored summaries
+   *
+   * @param jsc      - JsAwsS3 instance with the dataset open
+   * @param nthreads - number of concurrent read threads
+   * @throws SeisException - on AWS errors
+   */
+  public static void buildHeaderSummaries(JsAwsS3 jsc, int nthreads) throws SeisException {
+    JscFileProperties props = jsc.getFileProperties();
+    if (!props.usesTraceProperties)
+      return;
+    String[] labels = JscHeaderSummary.getLabels(props.traceProperties);
+    int[] vrange = jsc.getVolumeRange();
+    int[] frange = jsc.getFrameRange();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nthreads));
+    ThreadLocal<JscFrameBuffer> buffers = new ThreadLocal<JscFrameBuffer>();
+    for (int volume = vrange[0]; volume <= vrange[1]; volume += vrange[2]) {
+      JscHeaderSummary hs = new JscHeaderSummary(volume, labels, props.summaryBins);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      int v = volume;
+      for (int frame = frange[0]; frame <= frange[1]; frame += frange[2]) {
+        int f = frame;
+        futures.add(pool.submit(() -> {
+          JscFrameBuffer buf = buffers.get();
+          if (buf == null) {
+            buf = new JscFrameBuffer(props);
+            buffers.set(buf);
+          }
+          int ntrc = jsc.getFrameHeaderBuffer(buf, f, v);
+          if (ntrc > 0)
+            hs.add(hs.summarize(buf.getHeaderProperties(), ntrc, f));
+          return null;
+        }));
+      }
+      try {
+        for (Future<?> fut : futures)
+          fut.get();
+      } catch (Exception e) {
+        pool.shutdownNow();
+        throw new SeisException("JsAwsS3Tools buildHeaderSummaries failed for volume " + volume, e);
+      }
+      jsc.putHeaderSummary(hs);
+    }
+    pool.shutdown();
+  }
+
+  /**
+   * List every object key below a prefix
+   *
+   * @param s3     - AWS S3 client
+   * @param bucket - bucket name
+   * @param prefix - prefix to list
+   * @return - set of object keys
+   */
+  public static Set<String> listKeys(AmazonS3 s3, String bucket, String prefix) {
+    Set<String> keys = new HashSet<String>();
+    ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix + "/");
+    ListObjectsV2Result result;
+    do {
+      result = s3.listObjectsV2(req);
+      for (S3ObjectSummary os : result.getObjectSummaries())
+        keys.add(os.getKey());
+      req.setContinuationToken(result.getNextContinuationToken());
+    } while (result.isTruncated());
+    return keys;
+  }
+
+  /**
+   * Delete objects with one multi-object delete
+   *
+   * @param s3     - AWS S3 client
+   * @param bucket - bucket name
+   * @param keys   - object keys, at most MAX_DELETE_KEYS
+   */
+  public static void deleteKeys(AmazonS3 s3, String bucket, List<String> keys) {
+    List<KeyVersion> kvs = new ArrayList<KeyVersion>(keys.size());
+    for (String key : keys)
+      kvs.add(new KeyVersion(key));
+    DeleteObjectsRequest dor = new DeleteObjectsRequest(bucket).withKeys(kvs).withQuiet(true);
+    try {
+      s3.deleteObjects(dor);
+    } catch (MultiObjectDeleteException e) {
+      StringBuilder sb = new StringBuilder("Failed to delete " + e.getErrors().size() + " objects:");
+      for (DeleteError err : e.getErrors())
+        sb.append("\n  s3://" + bucket + "/" + err.getKey() + " " + err.getCode());
+      throw new IllegalStateException(sb.toString(), e);
+    }
+  }
+
+  static void waitForTasks(ExecutorService pool, List<Future<?>> futures, String operation) throws SeisException {
+    try {
+      for (Future<?> f : futures)
+        f.get();
+    } catch (Exception e) {
+      pool.shutdownNow();
+      throw new SeisException("JsAwsS3Tools " + operation + " failed: ", e);
+    }
+    pool.shutdown();
+  }
+
+  public static void main(String[] args) {
+    AmazonS3 s3 = AmazonS3ClientBuilder.standard().build();
+    long t0 = System.currentTimeMillis();
+    try {
+      int count = copyDataset(s3, "momacmos3", "momacmo/meagerdas/1432_aws_output_filt_5_50_despike", "momacmos3",
+          "momacmo/meagerdas/1432_aws_output_filt_5_50_despike_copy", 64, false);
+      System.out.println("Copied " + count + " objects in " + 0.001 * (System.currentTimeMillis() - t0) + " sec");
+      t0 = System.currentTimeMillis();
+      count = deleteDataset(s3, "momacmos3", "momacmo/meagerdas/1432_aws_output_filt_5_50_despike_copy", 16);
+      System.out.println("Deleted " + count + " objects in " + 0.001 * (System.currentTimeMillis() - t0) + " sec");
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+    s3.shutdown();
+  }
+}
@@ -0,0 +1,164 @@
+package org.momacmo.aws.s3.jscio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.javaseis.compress.TraceCompressor;
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JscTraceStatistics;
+import org.momacmo.aws.s3.jscio.properties.TracePropertiesImpl;
+
+/**
+ * Self contained buffers for one frame of a JavaSeis Cloud dataset.
+ * <p>
+ * JsAwsS3 keeps a single set of internal buffers, so it can only move one
+ * frame at a time. A JscFrameBuffer carries its own packed byte arrays,
+ * TraceCompressor, and trace and header arrays, so many frames can be read,
+ * packed, unpacked and transferred concurrently using the thread safe
+ * JsAwsS3 methods getFrameBuffer and putFrameBuffer.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ *
+ */
+public class JscFrameBuffer {
+  // Position and size of the frame currently held in the buffer
+  public int frame, volume;
+  public int traceCount;
+  // Unpacked traces and headers
+  public float[][] traces;
+  public int[][] headers;
+  // Packed traces and headers as stored in S3
+  public byte[] trcBytes, hdrBytes;
+  // Amplitude statistics computed by packTraces, null if not computed
+  public JscTraceStatistics statistics;
+  ByteBuffer trcBuffer, hdrBuffer;
+  IntBuffer intBuffer;
+  TracePropertiesImpl headerProperties;
+  TraceCompressor traceCompressor;
+  boolean computeStatistics;
+  int nsamp, maxTraces;
+  int recordLength, hdrLength, hdrWords;
+
+  /**
+   * Allocate buffers for a full frame of a dataset
+   *
+   * @param props - file properties for the dataset
+   * @throws SeisException - if the trace format is not supported
+   */
+  public JscFrameBuffer(JscFileProperties props) throws SeisException {
+    GridDefinition grid = props.gridDefinition;
+    nsamp = (int) grid.getNumSamplesPerTrace();
+    maxTraces = (int) grid.getNumTracesPerFrame();
+    recordLength = TraceCompressor.getRecordLength(props.traceFormat, nsamp);
+    trcBytes = new byte[recordLength * maxTraces];
+    trcBuffer = ByteBuffer.wrap(trcBytes);
+    traceCompressor = new TraceCompressor(props.traceFormat, nsamp, trcBuffer);
+    traces = new float[maxTraces][nsamp];
+    computeStatistics = props.traceStatistics;
+    if (props.usesTraceProperties) {
+      // Same header length rules as JsAwsS3.loadProperties
+      hdrLength = props.traceProperties.getHeaderLength();
+      int rem = hdrLength % 4;
+      if (rem != 0)
+        hdrLength += rem;
+      hdrWords = hdrLength / 4;
+      hdrBytes = new byte[hdrLength * maxTraces];
+      hdrBuffer = ByteBuffer.wrap(hdrBytes);
+      hdrBuffer.order(props.byteOrder);
+      intBuffer = hdrBuffer.asIntBuffer();
+      headers = new int[maxTraces][hdrWords];
+      headerProperties = TracePropertiesImpl.createView(props.traceProperties, hdrBuffer.duplicate()
+          .order(props.byteOrder), hdrLength);
+    }
+  }
+
+  /**
+   * Set the position and number of traces for the frame held in the buffer
+   */
+  public void setFrame(int frame, int volume, int traceCount) {
+    this.frame = frame;
+    this.volume = volume;
+    this.traceCount = traceCount;
+    this.statistics = null;
+  }
+
+  /**
+   * Compress the trace array into the packed trace bytes, and compute the
+   * amplitude statistics if the dataset keeps them
+   */
+  public void packTraces() {
+    if (computeStatistics)
+      statistics = JscTraceStatistics.compute(traceCount, nsamp, traces);
+    traceCompressor.packFrame(traceCount, traces);
+  }
+
+  /** Uncompress the packed trace bytes into the trace array */
+  public void unpackTraces() {
+    traceCompressor.unpackFrame(traceCount, traces);
+  }
+
+  /** Copy the header array into the packed header bytes */
+  public void packHeaders() {
+    if (intBuffer == null)
+      return;
+    intBuffer.clear();
+    for (int j = 0; j < traceCount; j++) {
+      intBuffer.put(headers[j], 0, hdrWords);
+    }
+  }
+
+  /** Copy the packed header bytes into the header array */
+  public void unpackHeaders() {
+    if (intBuffer == null)
+      return;
+    intBuffer.clear();
+    for (int j = 0; j < traceCount; j++) {
+      intBuffer.get(headers[j], 0, hdrWords);
+    }
+  }
+
+  /**
+   * @return - trace properties attached to the packed headers, null if the
+   *         dataset does not store trace headers
+   */
+  public TracePropertiesImpl getHeaderProperties() {
+    return headerProperties;
+  }
+
+  /** @return - true if the dataset stores trace headers */
+  public boolean hasHeaders() {
+    return hdrBytes != null;
+  }
+
+  /** @return - number of packed trace bytes for the current frame */
+  public int getTraceByteCount() {
+    return traceCount * recordLength;
+  }
+
+  /** @return - number of packed header bytes for the current frame */
+  public int getHeaderByteCount() {
+    return traceCount * hdrLength;
+  }
+
+  /** @return - packed header length in bytes for a single trace */
+  public int getHeaderLength() {
+    return hdrLength;
+  }
+
+  /** @return - header length in 4 byte words for a single trace */
+  public int getHeaderWords() {
+    return hdrWords;
+  }
+
+  /** @return - maximum number of traces in a frame */
+  public int getMaxTraces() {
+    return maxTraces;
+  }
+
+  /** @return - number of samples per trace */
+  public int getSamplesPerTrace() {
+    return nsamp;
+  }
+}
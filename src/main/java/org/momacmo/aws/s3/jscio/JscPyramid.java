@@ -0,0 +1,210 @@
+package org.momacmo.aws.s3.jscio;
+
+import java.nio.ByteBuffer;
+
+import org.javaseis.compress.TraceCompressor;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.PyramidMode;
+
+/**
+ * Downsampled copies of the frames of a JavaSeis Cloud dataset, used for fast
+ * previews.
+ * <p>
+ * Level L holds each frame decimated by 2^L in both samples and traces, and is
+ * stored with the trace format of the dataset under a separate key tree:
+ * <p>
+ * <code>
+ * data/Project/SubProject/Pyramid/L2/V11/F134
+ * </code>
+ * <p>
+ * Each level is built from the level below it by reducing 2x2 blocks with the
+ * dataset's {@link PyramidMode}. Level 0 is the full resolution frame.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscPyramid {
+  final int levels;
+  final PyramidMode mode;
+  final int nsamp, maxTraces;
+  final JscFileProperties props;
+
+  /**
+   * @param props - file properties for the dataset
+   */
+  public JscPyramid(JscFileProperties props) {
+    this.props = props;
+    levels = props.pyramidLevels;
+    mode = props.pyramidMode;
+    nsamp = (int) props.gridDefinition.getNumSamplesPerTrace();
+    maxTraces = (int) props.gridDefinition.getNumTracesPerFrame();
+  }
+
+  /** @return - folder name for a pyramid level */
+  public static String getFolder(int level) {
+    return "Pyramid/L" + level;
+  }
+
+  /** @return - number of samples per trace at a level */
+  public int getSamplesPerTrace(int level) {
+    return reduce(nsamp, level);
+  }
+
+  /** @return - maximum number of traces in a frame at a level */
+  public int getMaxTraces(int level) {
+    return reduce(maxTraces, level);
+  }
+
+  static int reduce(int n, int level) {
+    return (n + (1 << level) - 1) >> level;
+  }
+
+  /**
+   * Return the coarsest level whose frames are at least as large as a
+   * requested output size
+   *
+   * @param width  - required number of samples, zero for any
+   * @param height - required number of traces, zero for any
+   * @return - pyramid level, zero for full resolution
+   */
+  public int selectLevel(int width, int height) {
+    int level = 0;
+    while (level < levels && getSamplesPerTrace(level + 1) >= width && getMaxTraces(level + 1) >= height)
+      level++;
+    return level;
+  }
+
+  /** @return - a trace array large enough for a frame at a level */
+  public float[][] allocateTraceArray(int level) {
+    return new float[getMaxTraces(level)][getSamplesPerTrace(level)];
+  }
+
+  /**
+   * Reduce a frame by a factor of two in samples and traces
+   *
+   * @param ntrc  - number of traces in the input
+   * @param ns    - number of samples in the input
+   * @param in    - input traces
+   * @param out   - output traces, at least (ntrc+1)/2 by (ns+1)/2
+   * @param mode  - block reduction method
+   * @return - number of output traces
+   */
+  public static int halve(int ntrc, int ns, float[][] in, float[][] out, PyramidMode mode) {
+    int mtrc = (ntrc + 1) / 2;
+    int ms = (ns + 1) / 2;
+    for (int j = 0; j < mtrc; j++) {
+      float[] t0 = in[2 * j];
+      float[] t1 = 2 * j + 1 < ntrc ? in[2 * j + 1] : null;
+      float[] o = out[j];
+      for (int i = 0; i < ms; i++) {
+        int i0 = 2 * i;
+        int i1 = Math.min(i0 + 1, ns - 1);
+        if (mode == PyramidMode.MAX_ABS) {
+          float v = t0[i0];
+          if (Math.abs(t0[i1]) > Math.abs(v))
+            v = t0[i1];
+          if (t1 != null) {
+            if (Math.abs(t1[i0]) > Math.abs(v))
+              v = t1[i0];
+            if (Math.abs(t1[i1]) > Math.abs(v))
+              v = t1[i1];
+          }
+          o[i] = v;
+        } else {
+          float sum = t0[i0] + t0[i1];
+          int n = 2;
+          if (t1 != null) {
+            sum += t1[i0] + t1[i1];
+            n = 4;
+          }
+          o[i] = sum / n;
+        }
+      }
+    }
+    return mtrc;
+  }
+
+  /**
+   * Build and store every pyramid level for a frame. Buffers are allocated per
+   * call, so frames can be stored concurrently.
+   *
+   * @param jsc         - JsAwsS3 instance with the dataset open
+   * @param ntrc        - number of traces in the frame
+   * @param trcs        - full resolution traces
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @throws SeisException - on AWS errors
+   */
+  public void putFrame(JsAwsS3 jsc, int ntrc, float[][] trcs, int frameIndex, int volumeIndex) throws SeisException {
+    float[][] in = trcs;
+    int ns = nsamp;
+    for (int level = 1; level <= levels && ntrc > 0; level++) {
+      float[][] out = allocateTraceArray(level);
+      ntrc = halve(ntrc, ns, in, out, mode);
+      ns = getSamplesPerTrace(level);
+      int recordLength = TraceCompressor.getRecordLength(props.traceFormat, ns);
+      byte[] bytes = new byte[recordLength * ntrc];
+      TraceCompressor tc = new TraceCompressor(props.traceFormat, ns, ByteBuffer.wrap(bytes));
+      tc.packFrame(ntrc, out);
+      try {
+        jsc.putBytes(JsAwsS3.getFrameKey(props, jsc.getAwsPrefix(), getFolder(level), frameIndex, volumeIndex),
+            bytes, bytes.length, ntrc);
+      } catch (Exception e) {
+        throw new SeisException("JscPyramid putFrame failed for L" + level + " V" + volumeIndex + " F" + frameIndex,
+            e);
+      }
+      in = out;
+    }
+  }
+
+  /**
+   * Retrieve a frame at a pyramid level. If the level was not built for the
+   * frame, for example because pyramid building was interrupted, the full
+   * resolution frame is read and reduced instead, so a missing level is never
+   * returned as an empty frame.
+   *
+   * @param jsc         - JsAwsS3 instance with the dataset open
+   * @param level       - pyramid level, zero for full resolution
+   * @param trcs        - output traces, see allocateTraceArray
+   * @param frameIndex  - frame index
+   * @param volumeIndex - volume index
+   * @return - number of traces, zero if the frame does not exist
+   * @throws SeisException - on AWS errors, or if the level is not stored
+   */
+  public int getFrame(JsAwsS3 jsc, int level, float[][] trcs, int frameIndex, int volumeIndex)
+      throws SeisException {
+    if (level == 0)
+      return jsc.getFrameTraces(trcs, frameIndex, volumeIndex);
+    if (level > levels)
+      throw new SeisException("JscPyramid level " + level + " is not stored, dataset has " + levels + " levels");
+    int ns = getSamplesPerTrace(level);
+    byte[] bytes = new byte[TraceCompressor.getRecordLength(props.traceFormat, ns) * getMaxTraces(level)];
+    try {
+      int ntrc = jsc.getBytes(JsAwsS3.getFrameKey(props, jsc.getAwsPrefix(), getFolder(level), frameIndex,
+          volumeIndex), bytes);
+      if (ntrc > 0) {
+        new TraceCompressor(props.traceFormat, ns, ByteBuffer.wrap(bytes)).unpackFrame(ntrc, trcs);
+        return ntrc;
+      }
+    } catch (Exception e) {
+      throw new SeisException("JscPyramid getFrame failed for L" + level + " V" + volumeIndex + " F" + frameIndex, e);
+    }
+    return reduceFrame(jsc, level, trcs, frameIndex, volumeIndex);
+  }
+
+  /**
+   * Read a full resolution frame and reduce it to a level
+   *
+   * @return - number of traces at the level, zero if the frame does not exist
+   */
+  int reduceFrame(JsAwsS3 jsc, int level, float[][] trcs, int frameIndex, int volumeIndex) throws SeisException {
+    float[][] in = allocateTraceArray(0);
+    int ntrc = jsc.getFrameTraces(in, frameIndex, volumeIndex);
+    for (int l = 0; l < level && ntrc > 0; l++) {
+      float[][] out = l + 1 == level ? trcs : allocateTraceArray(l + 1);
+      ntrc = halve(ntrc, getSamplesPerTrace(l), in, out, mode);
+      in = out;
+    }
+    return ntrc;
+  }
+}
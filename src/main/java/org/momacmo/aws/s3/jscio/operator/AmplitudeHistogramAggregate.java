@@ -0,0 +1,119 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Histogram of absolute sample amplitudes in logarithmic bins.
+ * <p>
+ * The bins are fixed by the settings rather than by the data, so partial
+ * histograms from different workers merge without a first pass to find the
+ * amplitude range.
+ * <p>
+ * Parameters: binsPerDecade (default 10), minExponent (default -6) and
+ * maxExponent (default 6). Amplitudes below 10^minExponent, including zero,
+ * are counted in underflow, those at or above 10^maxExponent in overflow.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class AmplitudeHistogramAggregate implements JscFrameAggregate {
+  public int binsPerDecade = 10;
+  public int minExponent = -6;
+  public int maxExponent = 6;
+  public long underflow;
+  public long overflow;
+  public long[] counts;
+
+  @Override
+  public void init(JscFileProperties props, Map<String, String> parameters) throws SeisException {
+    if (parameters.containsKey("binsPerDecade"))
+      binsPerDecade = Integer.parseInt(parameters.get("binsPerDecade"));
+    if (parameters.containsKey("minExponent"))
+      minExponent = Integer.parseInt(parameters.get("minExponent"));
+    if (parameters.containsKey("maxExponent"))
+      maxExponent = Integer.parseInt(parameters.get("maxExponent"));
+    if (binsPerDecade < 1 || maxExponent <= minExponent)
+      throw new SeisException("AmplitudeHistogramAggregate: invalid bins " + binsPerDecade + " exponents "
+          + minExponent + " to " + maxExponent);
+    counts = new long[binsPerDecade * (maxExponent - minExponent)];
+  }
+
+  @Override
+  public void add(JscFrameBuffer frame) {
+    if (counts == null)
+      counts = new long[binsPerDecade * (maxExponent - minExponent)];
+    int nsamp = frame.getSamplesPerTrace();
+    // Compare in double, a float edge rounds below 10^minExponent
+    double lo = Math.pow(10, minExponent);
+    for (int j = 0; j < frame.traceCount; j++) {
+      float[] trc = frame.traces[j];
+      for (int i = 0; i < nsamp; i++) {
+        double a = Math.abs(trc[i]);
+        if (!(a >= lo)) {
+          underflow++;
+          continue;
+        }
+        // log10 may still round an amplitude at the lower edge just below it
+        int bin = Math.max(0, (int) Math.floor(binsPerDecade * (Math.log10(a) - minExponent)));
+        if (bin >= counts.length)
+          overflow++;
+        else
+          counts[bin]++;
+      }
+    }
+  }
+
+  @Override
+  public void merge(JscFrameAggregate other) {
+    if (!(other instanceof AmplitudeHistogramAggregate))
+      throw new IllegalArgumentException("AmplitudeHistogramAggregate can not merge " + other);
+    AmplitudeHistogramAggregate o = (AmplitudeHistogramAggregate) other;
+    if (o.binsPerDecade != binsPerDecade || o.minExponent != minExponent || o.maxExponent != maxExponent)
+      throw new IllegalArgumentException("AmplitudeHistogramAggregate bins differ");
+    if (o.counts == null)
+      return;
+    if (counts == null)
+      counts = new long[o.counts.length];
+    for (int i = 0; i < counts.length; i++)
+      counts[i] += o.counts[i];
+    underflow += o.underflow;
+    overflow += o.overflow;
+  }
+
+  /** @return - total number of samples counted */
+  public long getCount() {
+    return underflow + overflow + (counts == null ? 0 : Arrays.stream(counts).sum());
+  }
+
+  /** @return - lower amplitude edge of a bin */
+  public double getBinEdge(int bin) {
+    return Math.pow(10, minExponent + (double) bin / binsPerDecade);
+  }
+
+  /**
+   * @param percentile - percentile, 0 to 100
+   * @return - geometric center of the bin holding the percentile, 0 if it
+   *         falls in underflow, Infinity if it falls in overflow
+   */
+  public double getAmplitudeAtPercentile(double percentile) {
+    long target = Math.max(1, (long) Math.ceil(0.01 * percentile * getCount()));
+    long sum = underflow;
+    if (sum >= target)
+      return 0;
+    for (int i = 0; counts != null && i < counts.length; i++) {
+      sum += counts[i];
+      if (sum >= target)
+        return Math.sqrt(getBinEdge(i) * getBinEdge(i + 1));
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  public String toString() {
+    return "Samples: " + getCount() + " Underflow: " + underflow + " Overflow: " + overflow + " p50: "
+        + getAmplitudeAtPercentile(50) + " p99: " + getAmplitudeAtPercentile(99);
+  }
+}
@@ -0,0 +1,96 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Energy (sum of squared samples) for each channel, where a channel is a
+ * trace position within a frame, as for the fibre channels of DAS data.
+ * <p>
+ * Parameters: perVolume (default false) keeps a separate energy array for
+ * each volume, for example one per hour of a day of recording. With many
+ * channels and volumes this aggregate can grow to megabytes, which is what
+ * the spill to S3 in a reduction is for.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class ChannelEnergyAggregate implements JscFrameAggregate {
+  public boolean perVolume;
+  public int channels;
+  // Energy by volume, or under volume 0 when perVolume is false
+  public TreeMap<Integer, double[]> energy = new TreeMap<Integer, double[]>();
+
+  @Override
+  public void init(JscFileProperties props, Map<String, String> parameters) throws SeisException {
+    if (parameters.containsKey("perVolume"))
+      perVolume = Boolean.parseBoolean(parameters.get("perVolume"));
+    channels = (int) props.gridDefinition.getNumTracesPerFrame();
+  }
+
+  @Override
+  public void add(JscFrameBuffer frame) {
+    int nsamp = frame.getSamplesPerTrace();
+    double[] e = getEnergy(perVolume ? frame.volume : 0, Math.max(channels, frame.traceCount));
+    for (int j = 0; j < frame.traceCount; j++) {
+      float[] trc = frame.traces[j];
+      double sum = 0;
+      for (int i = 0; i < nsamp; i++)
+        sum += trc[i] * trc[i];
+      e[j] += sum;
+    }
+  }
+
+  double[] getEnergy(int volume, int length) {
+    double[] e = energy.get(volume);
+    if (e == null || e.length < length) {
+      double[] grown = new double[length];
+      if (e != null)
+        System.arraycopy(e, 0, grown, 0, e.length);
+      e = grown;
+      energy.put(volume, e);
+    }
+    return e;
+  }
+
+  @Override
+  public void merge(JscFrameAggregate other) {
+    if (!(other instanceof ChannelEnergyAggregate))
+      throw new IllegalArgumentException("ChannelEnergyAggregate can not merge " + other);
+    ChannelEnergyAggregate o = (ChannelEnergyAggregate) other;
+    if (o.perVolume != perVolume)
+      throw new IllegalArgumentException("ChannelEnergyAggregate perVolume differs");
+    channels = Math.max(channels, o.channels);
+    for (Map.Entry<Integer, double[]> entry : o.energy.entrySet()) {
+      double[] src = entry.getValue();
+      double[] e = getEnergy(entry.getKey(), src.length);
+      for (int j = 0; j < src.length; j++)
+        e[j] += src[j];
+    }
+  }
+
+  /** @return - energy of each channel summed over all volumes */
+  public double[] getTotalEnergy() {
+    double[] total = new double[channels];
+    for (double[] e : energy.values())
+      for (int j = 0; j < Math.min(total.length, e.length); j++)
+        total[j] += e[j];
+    return total;
+  }
+
+  public String toString() {
+    double[] total = getTotalEnergy();
+    int peak = 0;
+    double sum = 0;
+    for (int j = 0; j < total.length; j++) {
+      sum += total[j];
+      if (total[j] > total[peak])
+        peak = j;
+    }
+    return "Channels: " + channels + " Volumes: " + energy.size() + " Total Energy: " + sum + " Peak Channel: "
+        + peak;
+  }
+}
@@ -0,0 +1,46 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.Map;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Despike by clipping each trace at a multiple of its RMS amplitude.
+ * <p>
+ * Parameters: clipFactor (default 5).
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class ClipOperator implements JscFrameOperator {
+  float clipFactor = 5;
+
+  @Override
+  public void init(JscFileProperties input, JscFileProperties output, Map<String, String> parameters)
+      throws SeisException {
+    String str = parameters.get("clipFactor");
+    if (str != null)
+      clipFactor = Float.parseFloat(str);
+    if (!(clipFactor > 0))
+      throw new SeisException("ClipOperator: clipFactor must be positive: " + str);
+  }
+
+  @Override
+  public int process(JscFrameContext context, JscFrameBuffer in, JscFrameBuffer out) {
+    int ntrc = in.traceCount;
+    int nsamp = in.getSamplesPerTrace();
+    for (int j = 0; j < ntrc; j++) {
+      float[] trc = in.traces[j];
+      float[] outTrc = out.traces[j];
+      double sum = 0;
+      for (int i = 0; i < nsamp; i++)
+        sum += trc[i] * trc[i];
+      float clip = clipFactor * (float) Math.sqrt(sum / nsamp);
+      for (int i = 0; i < nsamp; i++)
+        outTrc[i] = Math.max(-clip, Math.min(clip, trc[i]));
+    }
+    JscFrameOperator.copyHeaders(in, out, ntrc);
+    return ntrc;
+  }
+}
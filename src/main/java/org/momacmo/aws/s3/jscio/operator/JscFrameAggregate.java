@@ -0,0 +1,53 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.Map;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * A mergeable partial result of a dataset-wide reduction, for example a global
+ * RMS or an amplitude histogram.
+ * <p>
+ * Each reader accumulates the frames it reads into its own aggregate, and
+ * partial aggregates are combined with merge, in any order and any grouping,
+ * so a reduction can be split over threads and over Lambda workers. An
+ * aggregate must give the same result for the same frames however they were
+ * grouped.
+ * <p>
+ * Aggregates are created by class name with a public no argument constructor,
+ * and are passed between workers as json, so their state must be held in
+ * fields that Gson can serialize. NaN and infinite values are allowed, they
+ * are written as json literals.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public interface JscFrameAggregate {
+
+  /**
+   * Prepare an empty aggregate, called once before the first frame
+   *
+   * @param props      - dataset properties
+   * @param parameters - aggregate settings, may be empty
+   * @throws SeisException - if the settings are invalid
+   */
+  default void init(JscFileProperties props, Map<String, String> parameters) throws SeisException {
+  }
+
+  /**
+   * Accumulate one frame
+   *
+   * @param frame - frame with unpacked traces
+   */
+  void add(JscFrameBuffer frame);
+
+  /**
+   * Combine another partial aggregate of the same class and settings into this
+   * one
+   *
+   * @param other - partial aggregate to merge
+   * @throws IllegalArgumentException - if the aggregates are not compatible
+   */
+  void merge(JscFrameAggregate other);
+}
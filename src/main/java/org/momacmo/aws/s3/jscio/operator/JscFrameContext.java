@@ -0,0 +1,19 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Dataset properties and position of the frame passed to a JscFrameOperator
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscFrameContext {
+  public final JscFileProperties inputProperties;
+  public final JscFileProperties outputProperties;
+  public int frame, volume;
+
+  public JscFrameContext(JscFileProperties inputProperties, JscFileProperties outputProperties) {
+    this.inputProperties = inputProperties;
+    this.outputProperties = outputProperties;
+  }
+}
@@ -0,0 +1,75 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.Map;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * A processing step applied frame by frame by a JscFramePipeline.
+ * <p>
+ * An operator receives the unpacked traces and headers of one input frame and
+ * fills the traces and headers of one output frame. The pipeline calls
+ * process concurrently from its compute threads, so implementations must not
+ * keep per-frame state in fields.
+ * <p>
+ * Operators are created by class name with a public no argument constructor,
+ * and receive their settings as string parameters in init.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public interface JscFrameOperator {
+
+  /**
+   * Return the file properties of the output dataset. The default keeps the
+   * input layout; operators that change the grid or headers return modified
+   * properties.
+   *
+   * @param input - copy of the input dataset properties, may be modified
+   * @return - properties for the output dataset
+   */
+  default JscFileProperties getOutputProperties(JscFileProperties input) {
+    return input;
+  }
+
+  /**
+   * Prepare for processing, called once before the first frame
+   *
+   * @param input      - input dataset properties
+   * @param output     - output dataset properties
+   * @param parameters - operator settings, may be empty
+   * @throws SeisException - if the settings are invalid
+   */
+  default void init(JscFileProperties input, JscFileProperties output, Map<String, String> parameters)
+      throws SeisException {
+  }
+
+  /**
+   * Process one frame
+   *
+   * @param context - dataset properties and position of the frame
+   * @param in      - input frame with unpacked traces and headers
+   * @param out     - output frame buffer to fill
+   * @return - number of output traces, zero to skip the frame; more than the
+   *         output frame holds fails the run
+   * @throws SeisException - to abort the pipeline
+   */
+  int process(JscFrameContext context, JscFrameBuffer in, JscFrameBuffer out) throws SeisException;
+
+  /**
+   * Copy trace headers from an input to an output frame with the same header
+   * layout
+   *
+   * @param in         - input frame
+   * @param out        - output frame
+   * @param traceCount - number of traces to copy
+   */
+  static void copyHeaders(JscFrameBuffer in, JscFrameBuffer out, int traceCount) {
+    if (!in.hasHeaders() || !out.hasHeaders())
+      return;
+    int words = Math.min(in.getHeaderWords(), out.getHeaderWords());
+    for (int j = 0; j < traceCount; j++)
+      System.arraycopy(in.headers[j], 0, out.headers[j], 0, words);
+  }
+}
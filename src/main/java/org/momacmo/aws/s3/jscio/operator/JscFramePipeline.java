@@ -0,0 +1,326 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JsonUtil;
+
+/**
+ * Read, process and write a JavaSeis Cloud dataset frame by frame.
+ * <p>
+ * Frames move through three stages, each with its own thread pool:
+ * <ol>
+ * <li>read - prefetch packed frames from the input dataset and unpack them</li>
+ * <li>compute - apply a JscFrameOperator and pack the output frame</li>
+ * <li>write - store the output frame, behind the compute stage</li>
+ * </ol>
+ * A fixed pool of input/output buffer pairs bounds memory and applies back
+ * pressure, so reads, computation and writes overlap and a run is limited by
+ * its slowest stage rather than by the sum of the stages.
+ * <p>
+ * Example:
+ * <p>
+ * <code>
+ * JsAwsS3 out = JscFramePipeline.openOutput(in, new JsAwsS3(), bucket, outPrefix, op);<br>
+ * new JscFramePipeline(in, out, op, parameters).run(null, null);
+ * </code>
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscFramePipeline {
+  JsAwsS3 input, output;
+  JscFrameOperator operator;
+  Map<String, String> parameters;
+  int readThreads = 16;
+  int computeThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+  int writeThreads = 16;
+  long deadline;
+  int framesSkipped;
+  AtomicReference<Exception> failure = new AtomicReference<Exception>();
+  AtomicInteger framesRead = new AtomicInteger();
+  AtomicInteger framesWritten = new AtomicInteger();
+  AtomicLong tracesWritten = new AtomicLong();
+  AtomicLong readNanos = new AtomicLong();
+  AtomicLong computeNanos = new AtomicLong();
+  AtomicLong writeNanos = new AtomicLong();
+  double elapsedSeconds;
+
+  /** Input and output buffers for one frame in flight */
+  static class Slot {
+    JscFrameBuffer in, out;
+    JscFrameContext context;
+  }
+
+  /**
+   * @param input      - open input dataset
+   * @param output     - open output dataset, see openOutput
+   * @param operator   - frame operator
+   * @param parameters - operator settings, null for none
+   */
+  public JscFramePipeline(JsAwsS3 input, JsAwsS3 output, JscFrameOperator operator, Map<String, String> parameters) {
+    this.input = input;
+    this.output = output;
+    this.operator = operator;
+    this.parameters = parameters == null ? Collections.<String, String>emptyMap() : parameters;
+  }
+
+  public void setThreads(int readThreads, int computeThreads, int writeThreads) {
+    this.readThreads = Math.max(1, readThreads);
+    this.computeThreads = Math.max(1, computeThreads);
+    this.writeThreads = Math.max(1, writeThreads);
+  }
+
+  /**
+   * Stop starting reads at a time limit; frames not started are counted in
+   * the statistics as skipped
+   *
+   * @param deadline - absolute time in milliseconds, zero for none
+   */
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * Create an operator from its class name
+   *
+   * @param className - fully qualified name of a JscFrameOperator
+   * @return - new operator
+   * @throws SeisException - if the class cannot be created
+   */
+  public static JscFrameOperator createOperator(String className) throws SeisException {
+    try {
+      return (JscFrameOperator) Class.forName(className).getDeclaredConstructor().newInstance();
+    } catch (Exception e) {
+      throw new SeisException("Could not create frame operator " + className, e);
+    }
+  }
+
+  /**
+   * Open the output dataset for an operator, creating it from the input
+   * dataset properties as changed by the operator if it does not exist. Several
+   * workers may call this for the same output; the first one creates it.
+   *
+   * @param input    - open input dataset
+   * @param output   - JsAwsS3 instance for the output
+   * @param bucket   - output AWS Bucket
+   * @param prefix   - output AWS Prefix
+   * @param operator - frame operator
+   * @return - output, open on the output dataset
+   * @throws SeisException - on AWS access errors
+   */
+  public static JsAwsS3 openOutput(JsAwsS3 input, JsAwsS3 output, String bucket, String prefix,
+      JscFrameOperator operator) throws SeisException {
+    if (output.getS3Client().doesObjectExist(bucket, prefix + "/" + JsAwsS3.FILE_PROPERTIES_JSC)) {
+      output.openRemote(bucket, prefix);
+      return output;
+    }
+    JscFileProperties props = (JscFileProperties) JsonUtil.fromJsonString(JscFileProperties.class,
+        JsonUtil.toJsonString(input.getFileProperties()));
+    props = operator.getOutputProperties(props);
+    if (props.jscParms != null) {
+      props.jscParms.awsBucket = bucket;
+      props.jscParms.awsPrefix = prefix;
+    }
+    try {
+      output.createRemote(bucket, prefix, props, false);
+    } catch (SeisException e) {
+      // Created by another worker in the meantime
+      output.openRemote(bucket, prefix);
+    }
+    return output;
+  }
+
+  /**
+   * Process a range of frames
+   *
+   * @param volRange - volume range {start, end, increment}, null for all
+   * @param frmRange - frame range {start, end, increment}, null for all
+   * @return - number of frames written
+   * @throws SeisException - if any stage fails
+   */
+  public int run(int[] volRange, int[] frmRange) throws SeisException {
+    int[] vrange = volRange == null ? input.getVolumeRange() : volRange;
+    int[] frange = frmRange == null ? input.getFrameRange() : frmRange;
+    JscFileProperties inProps = input.getFileProperties();
+    JscFileProperties outProps = output.getFileProperties();
+    operator.init(inProps, outProps, parameters);
+    failure.set(null);
+    framesRead.set(0);
+    framesWritten.set(0);
+    framesSkipped = 0;
+    tracesWritten.set(0);
+    readNanos.set(0);
+    computeNanos.set(0);
+    writeNanos.set(0);
+    int nslot = readThreads + computeThreads + writeThreads + 2;
+    BlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(nslot);
+    for (int i = 0; i < nslot; i++) {
+      Slot slot = new Slot();
+      slot.in = new JscFrameBuffer(inProps);
+      slot.out = new JscFrameBuffer(outProps);
+      slot.context = new JscFrameContext(inProps, outProps);
+      free.add(slot);
+    }
+    ExecutorService readPool = Executors.newFixedThreadPool(readThreads);
+    ExecutorService computePool = Executors.newFixedThreadPool(computeThreads);
+    ExecutorService writePool = Executors.newFixedThreadPool(writeThreads);
+    long t0 = System.nanoTime();
+    try {
+      for (int volume = vrange[0]; volume <= vrange[1] && failure.get() == null; volume += vrange[2]) {
+        for (int frame = frange[0]; frame <= frange[1] && failure.get() == null; frame += frange[2]) {
+          if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            framesSkipped++;
+            continue;
+          }
+          Slot slot = null;
+          while (slot == null && failure.get() == null)
+            slot = free.poll(100, TimeUnit.MILLISECONDS);
+          if (slot == null)
+            break;
+          Slot s = slot;
+          int f = frame;
+          int v = volume;
+          readPool.submit(() -> read(s, f, v, free, computePool, writePool));
+        }
+      }
+      // Each stage only submits to later stages, so they drain in order
+      readPool.shutdown();
+      readPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      computePool.shutdown();
+      computePool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      writePool.shutdown();
+      writePool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      readPool.shutdownNow();
+      computePool.shutdownNow();
+      writePool.shutdownNow();
+    }
+    elapsedSeconds = 1e-9 * (System.nanoTime() - t0);
+    try {
+      output.flushHeaderSummaries();
+    } catch (SeisException e) {
+      failure.compareAndSet(null, e);
+    }
+    if (failure.get() != null)
+      throw new SeisException("JscFramePipeline failed after " + framesWritten.get() + " frames", failure.get());
+    return framesWritten.get();
+  }
+
+  void read(Slot slot, int frame, int volume, BlockingQueue<Slot> free, ExecutorService computePool,
+      ExecutorService writePool) {
+    long t = System.nanoTime();
+    try {
+      if (failure.get() != null || input.getFrameBuffer(slot.in, frame, volume) < 1) {
+        free.add(slot);
+        return;
+      }
+      slot.in.unpackTraces();
+      slot.in.unpackHeaders();
+      framesRead.incrementAndGet();
+      readNanos.addAndGet(System.nanoTime() - t);
+      computePool.submit(() -> compute(slot, free, writePool));
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+      free.add(slot);
+    }
+  }
+
+  void compute(Slot slot, BlockingQueue<Slot> free, ExecutorService writePool) {
+    long t = System.nanoTime();
+    try {
+      if (failure.get() != null) {
+        free.add(slot);
+        return;
+      }
+      slot.context.frame = slot.in.frame;
+      slot.context.volume = slot.in.volume;
+      slot.out.setFrame(slot.in.frame, slot.in.volume, 0);
+      int ntrc = operator.process(slot.context, slot.in, slot.out);
+      if (ntrc < 1) {
+        free.add(slot);
+        return;
+      }
+      if (ntrc > slot.out.getMaxTraces())
+        throw new SeisException(operator.getClass().getSimpleName() + " returned " + ntrc + " traces for V"
+            + slot.in.volume + " F" + slot.in.frame + ", output frames hold " + slot.out.getMaxTraces());
+      slot.out.traceCount = ntrc;
+      slot.out.packTraces();
+      slot.out.packHeaders();
+      computeNanos.addAndGet(System.nanoTime() - t);
+      writePool.submit(() -> write(slot, free));
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+      free.add(slot);
+    }
+  }
+
+  void write(Slot slot, BlockingQueue<Slot> free) {
+    long t = System.nanoTime();
+    try {
+      if (failure.get() == null) {
+        output.putFrameBuffer(slot.out);
+        framesWritten.incrementAndGet();
+        tracesWritten.addAndGet(slot.out.traceCount);
+        writeNanos.addAndGet(System.nanoTime() - t);
+      }
+    } catch (Exception e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      free.add(slot);
+    }
+  }
+
+  /** @return - counters and stage times of the last run */
+  public JscPipelineStatistics getStatistics() {
+    JscPipelineStatistics stats = new JscPipelineStatistics();
+    stats.framesRead = framesRead.get();
+    stats.framesWritten = framesWritten.get();
+    stats.framesSkipped = framesSkipped;
+    stats.tracesWritten = tracesWritten.get();
+    stats.readSeconds = 1e-9 * readNanos.get();
+    stats.computeSeconds = 1e-9 * computeNanos.get();
+    stats.writeSeconds = 1e-9 * writeNanos.get();
+    stats.elapsedSeconds = elapsedSeconds;
+    return stats;
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 4) {
+      System.out.println("Usage: JscFramePipeline bucket inputPrefix outputPrefix operatorClass [name=value ...]");
+      return;
+    }
+    try {
+      Map<String, String> parameters = new java.util.HashMap<String, String>();
+      for (int i = 4; i < args.length; i++) {
+        String[] kv = args[i].split("=", 2);
+        if (kv.length == 2)
+          parameters.put(kv[0], kv[1]);
+      }
+      JsAwsS3 in = new JsAwsS3();
+      in.openRemote(args[0], args[1]);
+      JscFrameOperator op = createOperator(args[3]);
+      JsAwsS3 out = openOutput(in, new JsAwsS3(), args[0], args[2], op);
+      JscFramePipeline pipeline = new JscFramePipeline(in, out, op, parameters);
+      pipeline.run(null, null);
+      System.out.println(pipeline.getStatistics());
+      in.shutdown();
+      out.shutdown();
+    } catch (SeisException e) {
+      e.printStackTrace();
+    }
+  }
+}
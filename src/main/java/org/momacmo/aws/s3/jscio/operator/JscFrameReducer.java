@@ -0,0 +1,184 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Reduce a range of frames of a JavaSeis Cloud dataset to a single
+ * JscFrameAggregate.
+ * <p>
+ * Frames are read concurrently. Each reader slot owns a frame buffer and its
+ * own partial aggregate, so frames are accumulated without locking, and the
+ * slot aggregates are merged when all reads are done.
+ * <p>
+ * Example:
+ * <p>
+ * <code>
+ * JscFrameReducer reducer = new JscFrameReducer(jsc, RmsAggregate.class.getName(), parameters);<br>
+ * RmsAggregate rms = (RmsAggregate) reducer.run(null, null);
+ * </code>
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscFrameReducer {
+  JsAwsS3 jsc;
+  String aggregateClass;
+  Map<String, String> parameters;
+  int threads = 16;
+  long deadline;
+  AtomicInteger framesRead = new AtomicInteger();
+  AtomicInteger framesMissing = new AtomicInteger();
+  int framesSkipped;
+
+  /** Frame buffer and partial aggregate owned by one reader */
+  static class Slot {
+    JscFrameBuffer buf;
+    JscFrameAggregate aggregate;
+  }
+
+  /**
+   * @param jsc            - open dataset
+   * @param aggregateClass - fully qualified name of a JscFrameAggregate
+   * @param parameters     - aggregate settings, null for none
+   */
+  public JscFrameReducer(JsAwsS3 jsc, String aggregateClass, Map<String, String> parameters) {
+    this.jsc = jsc;
+    this.aggregateClass = aggregateClass;
+    this.parameters = parameters == null ? Collections.<String, String>emptyMap() : parameters;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Stop starting reads at a time limit; frames not started are counted by
+   * getFramesSkipped
+   *
+   * @param deadline - absolute time in milliseconds, zero for none
+   */
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * Create an empty aggregate from its class name
+   *
+   * @param className  - fully qualified name of a JscFrameAggregate
+   * @param props      - dataset properties
+   * @param parameters - aggregate settings
+   * @return - initialized aggregate
+   * @throws SeisException - if the class cannot be created or the settings
+   *                       are invalid
+   */
+  public static JscFrameAggregate createAggregate(String className, JscFileProperties props,
+      Map<String, String> parameters) throws SeisException {
+    JscFrameAggregate aggregate;
+    try {
+      aggregate = (JscFrameAggregate) Class.forName(className).getDeclaredConstructor().newInstance();
+    } catch (Exception e) {
+      throw new SeisException("Could not create frame aggregate " + className, e);
+    }
+    aggregate.init(props, parameters);
+    return aggregate;
+  }
+
+  /**
+   * Reduce a range of frames
+   *
+   * @param volRange - volume range {start, end, increment}, null for all
+   * @param frmRange - frame range {start, end, increment}, null for all
+   * @return - aggregate of all frames read
+   * @throws SeisException - if a read fails
+   */
+  public JscFrameAggregate run(int[] volRange, int[] frmRange) throws SeisException {
+    int[] vrange = volRange == null ? jsc.getVolumeRange() : volRange;
+    int[] frange = frmRange == null ? jsc.getFrameRange() : frmRange;
+    JscFileProperties props = jsc.getFileProperties();
+    framesRead.set(0);
+    framesMissing.set(0);
+    framesSkipped = 0;
+    int nframe = (1 + (vrange[1] - vrange[0]) / vrange[2]) * (1 + (frange[1] - frange[0]) / frange[2]);
+    int nslot = Math.max(1, Math.min(threads, nframe));
+    List<Slot> slots = new ArrayList<Slot>(nslot);
+    BlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(nslot);
+    for (int i = 0; i < nslot; i++) {
+      Slot slot = new Slot();
+      slot.buf = new JscFrameBuffer(props);
+      slot.aggregate = createAggregate(aggregateClass, props, parameters);
+      slots.add(slot);
+      free.add(slot);
+    }
+    AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    ExecutorService pool = Executors.newFixedThreadPool(nslot);
+    try {
+      for (int volume = vrange[0]; volume <= vrange[1] && failure.get() == null; volume += vrange[2]) {
+        for (int frame = frange[0]; frame <= frange[1] && failure.get() == null; frame += frange[2]) {
+          if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            framesSkipped++;
+            continue;
+          }
+          Slot slot = free.take();
+          int f = frame;
+          int v = volume;
+          pool.submit(() -> {
+            try {
+              if (jsc.getFrameTraceBuffer(slot.buf, f, v) < 1) {
+                framesMissing.incrementAndGet();
+                return;
+              }
+              slot.buf.unpackTraces();
+              slot.aggregate.add(slot.buf);
+              framesRead.incrementAndGet();
+            } catch (Exception e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              free.add(slot);
+            }
+          });
+        }
+      }
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      pool.shutdownNow();
+    }
+    if (failure.get() != null)
+      throw new SeisException("JscFrameReducer failed after " + framesRead.get() + " frames", failure.get());
+    JscFrameAggregate result = slots.get(0).aggregate;
+    for (int i = 1; i < nslot; i++)
+      result.merge(slots.get(i).aggregate);
+    return result;
+  }
+
+  /** @return - frames accumulated by the last run */
+  public int getFramesRead() {
+    return framesRead.get();
+  }
+
+  /** @return - frames of the last run not read because of the deadline */
+  public int getFramesSkipped() {
+    return framesSkipped;
+  }
+
+  /** @return - frames of the last run that do not exist in the dataset */
+  public int getFramesMissing() {
+    return framesMissing.get();
+  }
+}
@@ -0,0 +1,26 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+/**
+ * Frame counts and busy time of each stage of a JscFramePipeline run. When the
+ * stages overlap, the elapsed time approaches the busy time of the slowest
+ * stage divided by its thread count.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscPipelineStatistics {
+  public int framesRead;
+  public int framesWritten;
+  // Frames not started because the run reached its deadline
+  public int framesSkipped;
+  public long tracesWritten;
+  public double readSeconds;
+  public double computeSeconds;
+  public double writeSeconds;
+  public double elapsedSeconds;
+
+  public String toString() {
+    return "Read " + framesRead + " frames, wrote " + framesWritten + " frames, skipped " + framesSkipped
+        + " frames in " + elapsedSeconds
+        + " sec; busy seconds read " + readSeconds + ", compute " + computeSeconds + ", write " + writeSeconds;
+  }
+}
@@ -0,0 +1,50 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+
+/**
+ * Global RMS and peak amplitude of all samples
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class RmsAggregate implements JscFrameAggregate {
+  public long samples;
+  public double sumSquares;
+  public float maxAbs;
+
+  @Override
+  public void add(JscFrameBuffer frame) {
+    int nsamp = frame.getSamplesPerTrace();
+    double sum = 0;
+    float max = maxAbs;
+    for (int j = 0; j < frame.traceCount; j++) {
+      float[] trc = frame.traces[j];
+      for (int i = 0; i < nsamp; i++) {
+        sum += trc[i] * trc[i];
+        max = Math.max(max, Math.abs(trc[i]));
+      }
+    }
+    sumSquares += sum;
+    maxAbs = max;
+    samples += (long) frame.traceCount * nsamp;
+  }
+
+  @Override
+  public void merge(JscFrameAggregate other) {
+    if (!(other instanceof RmsAggregate))
+      throw new IllegalArgumentException("RmsAggregate can not merge " + other);
+    RmsAggregate o = (RmsAggregate) other;
+    samples += o.samples;
+    sumSquares += o.sumSquares;
+    maxAbs = Math.max(maxAbs, o.maxAbs);
+  }
+
+  /** @return - RMS amplitude, 0 if no samples were added */
+  public double getRms() {
+    return samples > 0 ? Math.sqrt(sumSquares / samples) : 0;
+  }
+
+  public String toString() {
+    return "Samples: " + samples + " RMS: " + getRms() + " Max Abs: " + maxAbs;
+  }
+}
@@ -22,4 +22,12 @@ public class JscFileProperties {
   public boolean usesTraceProperties = false;
   public TracePropertiesImpl traceProperties;
   public Instant timeZero;
+  public KeyScheme keyScheme = KeyScheme.SEQUENTIAL;
+  public int keyShards = 0;
+  public boolean headerSummaries = true;
+  public int summaryBins = 0;
+  // Costs an extra pass over each frame and an extra object per frame written
+  public boolean traceStatistics = false;
+  public int pyramidLevels = 0;
+  public PyramidMode pyramidMode = PyramidMode.MAX_ABS;
 }
@@ -0,0 +1,66 @@
+package org.momacmo.aws.s3.jscio.properties;
+
+/**
+ * Summary of the trace header values in one frame: the minimum and maximum of
+ * each summarized field and, optionally, a small histogram spanning that
+ * range.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscFrameSummary {
+  public int frame;
+  public int traceCount;
+  // Time the frame was summarized, in milliseconds since the epoch; when parts
+  // disagree about a frame the newest summary is the one to keep
+  public long written;
+  // Indexed by field, in the order of JscHeaderSummary.labels
+  public double[] min;
+  public double[] max;
+  // Indexed by field and bin, null if histograms are not kept
+  public int[][] histogram;
+
+  public JscFrameSummary() {
+  }
+
+  public JscFrameSummary(int frame, int traceCount, int nfield, int nbins) {
+    this.frame = frame;
+    this.traceCount = traceCount;
+    written = System.currentTimeMillis();
+    min = new double[nfield];
+    max = new double[nfield];
+    if (nbins > 0)
+      histogram = new int[nfield][nbins];
+  }
+
+  /**
+   * Return false only if no trace in the frame can have a value of the field
+   * inside the range
+   *
+   * @param field - field index
+   * @param lo    - lowest value of the range
+   * @param hi    - highest value of the range
+   * @return - true if the frame may contain matching traces
+   */
+  public boolean mayMatch(int field, double lo, double hi) {
+    if (traceCount < 1)
+      return false;
+    if (hi < min[field] || lo > max[field])
+      return false;
+    if (histogram == null || max[field] == min[field])
+      return true;
+    int[] bins = histogram[field];
+    int i0 = binIndex(field, Math.max(lo, min[field]), bins.length);
+    int i1 = binIndex(field, Math.min(hi, max[field]), bins.length);
+    for (int i = i0; i <= i1; i++) {
+      if (bins[i] > 0)
+        return true;
+    }
+    return false;
+  }
+
+  int binIndex(int field, double value, int nbins) {
+    double width = (max[field] - min[field]) / nbins;
+    int i = (int) ((value - min[field]) / width);
+    return Math.max(0, Math.min(nbins - 1, i));
+  }
+}
@@ -0,0 +1,184 @@
+package org.momacmo.aws.s3.jscio.properties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.javaseis.properties.PropertyDescription;
+import org.javaseis.properties.TraceProperties;
+
+/**
+ * Per-volume summary of trace header values, stored as a single json object
+ * alongside the traces and headers of a JavaSeis Cloud dataset:
+ * <p>
+ * <code>
+ * data/Project/SubProject/Summaries/V11
+ * </code>
+ * <p>
+ * For every frame written, the minimum and maximum of each numeric
+ * TraceProperties field (and optionally a small histogram) are recorded, so
+ * header driven selections can skip frames without reading their headers.
+ * Frames missing from a summary must be treated as possible matches.
+ * <p>
+ * Each writer stores the frames it wrote as its own part below the volume
+ * key, for example Summaries/V11/F1-200, and readers merge the parts,
+ * keeping the most recently written summary of a frame that was rewritten.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscHeaderSummary {
+  public int volume;
+  public String[] labels;
+  public int histogramBins;
+  public TreeMap<Integer, JscFrameSummary> frames = new TreeMap<Integer, JscFrameSummary>();
+
+  public JscHeaderSummary() {
+  }
+
+  public JscHeaderSummary(int volume, String[] labels, int histogramBins) {
+    this.volume = volume;
+    this.labels = labels;
+    this.histogramBins = histogramBins;
+  }
+
+  /**
+   * Return the labels of the trace properties that can be summarized: single
+   * valued integer and floating point fields
+   *
+   * @param tp - trace property definitions
+   * @return - labels of fields to summarize
+   */
+  public static String[] getLabels(TraceProperties tp) {
+    List<String> labels = new ArrayList<String>();
+    for (PropertyDescription pd : tp.getTraceProperties()) {
+      if (pd.getCount() == 1 && isNumeric(pd.getFormat()))
+        labels.add(pd.getLabel());
+    }
+    return labels.toArray(new String[labels.size()]);
+  }
+
+  static boolean isNumeric(int format) {
+    switch (format) {
+      case PropertyDescription.HDR_FORMAT_SHORT:
+      case PropertyDescription.HDR_FORMAT_INTEGER:
+      case PropertyDescription.HDR_FORMAT_LONG:
+      case PropertyDescription.HDR_FORMAT_FLOAT:
+      case PropertyDescription.HDR_FORMAT_DOUBLE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Return the value of a numeric trace property for the current trace
+   *
+   * @param tp     - trace properties positioned at a trace
+   * @param label  - property label
+   * @param format - property format
+   * @return - property value
+   */
+  public static double getValue(TraceProperties tp, String label, int format) {
+    switch (format) {
+      case PropertyDescription.HDR_FORMAT_SHORT:
+        return tp.getShort(label);
+      case PropertyDescription.HDR_FORMAT_INTEGER:
+        return tp.getInt(label);
+      case PropertyDescription.HDR_FORMAT_LONG:
+        return tp.getLong(label);
+      case PropertyDescription.HDR_FORMAT_FLOAT:
+        return tp.getFloat(label);
+      default:
+        return tp.getDouble(label);
+    }
+  }
+
+  /**
+   * Summarize the headers of one frame
+   *
+   * @param tp         - trace properties attached to the packed headers
+   * @param traceCount - number of traces in the frame
+   * @param frame      - frame index
+   * @return - summary for the frame
+   */
+  public JscFrameSummary summarize(TraceProperties tp, int traceCount, int frame) {
+    int nfield = labels.length;
+    JscFrameSummary fs = new JscFrameSummary(frame, traceCount, nfield, histogramBins);
+    int[] formats = new int[nfield];
+    for (int k = 0; k < nfield; k++)
+      formats[k] = tp.getTraceProperty(labels[k]).getFormat();
+    double[][] values = new double[nfield][traceCount];
+    for (int j = 0; j < traceCount; j++) {
+      tp.setTraceIndex(j);
+      for (int k = 0; k < nfield; k++)
+        values[k][j] = getValue(tp, labels[k], formats[k]);
+    }
+    for (int k = 0; k < nfield; k++) {
+      double vmin = Double.MAX_VALUE;
+      double vmax = -Double.MAX_VALUE;
+      for (int j = 0; j < traceCount; j++) {
+        vmin = Math.min(vmin, values[k][j]);
+        vmax = Math.max(vmax, values[k][j]);
+      }
+      fs.min[k] = vmin;
+      fs.max[k] = vmax;
+      if (fs.histogram != null && vmax > vmin) {
+        for (int j = 0; j < traceCount; j++)
+          fs.histogram[k][fs.binIndex(k, values[k][j], histogramBins)]++;
+      }
+    }
+    return fs;
+  }
+
+  /** Add or replace the summary for a frame */
+  public synchronized void add(JscFrameSummary fs) {
+    frames.put(fs.frame, fs);
+  }
+
+  /** @return - a copy that later calls to add do not change */
+  public synchronized JscHeaderSummary copy() {
+    JscHeaderSummary hs = new JscHeaderSummary(volume, labels, histogramBins);
+    hs.frames.putAll(frames);
+    return hs;
+  }
+
+  /**
+   * Add frame summaries from another summary of the same volume, replacing
+   * those that were written earlier. Parts are listed in key order, not in the
+   * order they were written, so a stale part must not win.
+   */
+  public synchronized void merge(JscHeaderSummary other) {
+    for (JscFrameSummary fs : other.frames.values()) {
+      JscFrameSummary current = frames.get(fs.frame);
+      if (current == null || fs.written >= current.written)
+        frames.put(fs.frame, fs);
+    }
+  }
+
+  /** @return - index of a field in the summary, -1 if it is not summarized */
+  public int getFieldIndex(String label) {
+    for (int k = 0; k < labels.length; k++) {
+      if (labels[k].equals(label))
+        return k;
+    }
+    return -1;
+  }
+
+  /**
+   * Return true if a frame may contain traces with a field value inside a range.
+   * Frames and fields without a summary always may match.
+   *
+   * @param frame - frame index
+   * @param label - property label
+   * @param lo    - lowest value of the range
+   * @param hi    - highest value of the range
+   * @return - false if the frame can be skipped
+   */
+  public boolean mayMatch(int frame, String label, double lo, double hi) {
+    JscFrameSummary fs = frames.get(frame);
+    int k = getFieldIndex(label);
+    if (fs == null || k < 0)
+      return true;
+    return fs.mayMatch(k, lo, hi);
+  }
+}
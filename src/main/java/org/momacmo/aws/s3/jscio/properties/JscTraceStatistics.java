@@ -0,0 +1,175 @@
+package org.momacmo.aws.s3.jscio.properties;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Amplitude statistics for one frame of a JavaSeis Cloud dataset, computed
+ * when the frame is written and stored as a small binary object alongside the
+ * traces:
+ * <p>
+ * <code>
+ * data/Project/SubProject/Stats/V11/F134
+ * </code>
+ * <p>
+ * Frame level values are the minimum, maximum and RMS amplitude, and estimates
+ * of the absolute amplitude at the CLIP_PERCENTILES, taken from a histogram of
+ * absolute amplitudes. Per-trace minimum, maximum and RMS are kept so that
+ * display scaling and QC do not need to read trace data.
+ * <p>
+ * Binary layout, little endian: int magic, int version, int traceCount, float
+ * min, max, rms, int clip count, float clip values, then float min, max, rms
+ * for each trace.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscTraceStatistics {
+  /** Percentiles of absolute amplitude recorded for each frame */
+  public static final float[] CLIP_PERCENTILES = { 90f, 98f, 99f, 99.9f };
+  static final int MAGIC = 0x4A535453; // "JSTS"
+  static final int VERSION = 1;
+  static final int NBINS = 2048;
+
+  public int traceCount;
+  public float min, max, rms;
+  // Absolute amplitude at each of CLIP_PERCENTILES
+  public float[] clip;
+  // Per-trace values
+  public float[] traceMin, traceMax, traceRms;
+
+  public JscTraceStatistics() {
+  }
+
+  /**
+   * Compute statistics for a frame of traces
+   *
+   * @param ntrc  - number of live traces
+   * @param nsamp - number of samples per trace
+   * @param trcs  - trace array
+   * @return - statistics for the frame
+   */
+  public static JscTraceStatistics compute(int ntrc, int nsamp, float[][] trcs) {
+    JscTraceStatistics ts = new JscTraceStatistics();
+    ts.traceCount = ntrc;
+    ts.traceMin = new float[ntrc];
+    ts.traceMax = new float[ntrc];
+    ts.traceRms = new float[ntrc];
+    ts.clip = new float[CLIP_PERCENTILES.length];
+    double fmin = Double.MAX_VALUE;
+    double fmax = -Double.MAX_VALUE;
+    double fsum = 0;
+    for (int j = 0; j < ntrc; j++) {
+      float[] trc = trcs[j];
+      float tmin = Float.MAX_VALUE;
+      float tmax = -Float.MAX_VALUE;
+      double sum = 0;
+      for (int i = 0; i < nsamp; i++) {
+        float a = trc[i];
+        if (a < tmin)
+          tmin = a;
+        if (a > tmax)
+          tmax = a;
+        sum += (double) a * a;
+      }
+      ts.traceMin[j] = tmin;
+      ts.traceMax[j] = tmax;
+      ts.traceRms[j] = (float) Math.sqrt(sum / Math.max(1, nsamp));
+      fmin = Math.min(fmin, tmin);
+      fmax = Math.max(fmax, tmax);
+      fsum += sum;
+    }
+    if (ntrc == 0 || nsamp == 0)
+      return ts;
+    ts.min = (float) fmin;
+    ts.max = (float) fmax;
+    ts.rms = (float) Math.sqrt(fsum / ((double) ntrc * nsamp));
+    // Percentiles from a histogram of absolute amplitudes
+    double amax = Math.max(Math.abs(fmin), Math.abs(fmax));
+    if (amax == 0)
+      return ts;
+    double scale = NBINS / amax;
+    long[] hist = new long[NBINS];
+    for (int j = 0; j < ntrc; j++) {
+      float[] trc = trcs[j];
+      for (int i = 0; i < nsamp; i++)
+        hist[Math.min(NBINS - 1, (int) (Math.abs(trc[i]) * scale))]++;
+    }
+    long total = (long) ntrc * nsamp;
+    long count = 0;
+    int k = 0;
+    for (int bin = 0; bin < NBINS && k < CLIP_PERCENTILES.length; bin++) {
+      count += hist[bin];
+      while (k < CLIP_PERCENTILES.length && count >= 0.01 * CLIP_PERCENTILES[k] * total)
+        ts.clip[k++] = (float) ((bin + 1) / scale);
+    }
+    while (k < CLIP_PERCENTILES.length)
+      ts.clip[k++] = (float) amax;
+    return ts;
+  }
+
+  /**
+   * Return the estimated absolute amplitude at a percentile, using the nearest
+   * recorded percentile at or above the request
+   *
+   * @param percentile - percentile from 0 to 100
+   * @return - absolute amplitude
+   */
+  public float getClip(float percentile) {
+    for (int k = 0; k < CLIP_PERCENTILES.length; k++) {
+      if (percentile <= CLIP_PERCENTILES[k])
+        return clip[k];
+    }
+    return Math.max(Math.abs(min), Math.abs(max));
+  }
+
+  /** @return - number of bytes in the encoded form */
+  public int getEncodedLength() {
+    return 4 * (7 + clip.length + 3 * traceCount);
+  }
+
+  /** @return - compact binary encoding of the statistics */
+  public byte[] encode() {
+    ByteBuffer bb = ByteBuffer.allocate(getEncodedLength()).order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(MAGIC).putInt(VERSION).putInt(traceCount);
+    bb.putFloat(min).putFloat(max).putFloat(rms);
+    bb.putInt(clip.length);
+    for (float c : clip)
+      bb.putFloat(c);
+    for (int j = 0; j < traceCount; j++)
+      bb.putFloat(traceMin[j]).putFloat(traceMax[j]).putFloat(traceRms[j]);
+    return bb.array();
+  }
+
+  /**
+   * Decode statistics stored by encode
+   *
+   * @param bytes - encoded statistics
+   * @return - statistics for the frame
+   * @throws IllegalArgumentException - if the bytes are not encoded statistics
+   */
+  public static JscTraceStatistics decode(byte[] bytes) {
+    ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    if (bb.getInt() != MAGIC)
+      throw new IllegalArgumentException("Not a JscTraceStatistics object");
+    int version = bb.getInt();
+    if (version != VERSION)
+      throw new IllegalArgumentException("Unsupported JscTraceStatistics version " + version);
+    JscTraceStatistics ts = new JscTraceStatistics();
+    ts.traceCount = bb.getInt();
+    ts.min = bb.getFloat();
+    ts.max = bb.getFloat();
+    ts.rms = bb.getFloat();
+    ts.clip = new float[bb.getInt()];
+    for (int k = 0; k < ts.clip.length; k++)
+      ts.clip[k] = bb.getFloat();
+    ts.traceMin = new float[ts.traceCount];
+    ts.traceMax = new float[ts.traceCount];
+    ts.traceRms = new float[ts.traceCount];
+    for (int j = 0; j < ts.traceCount; j++) {
+      ts.traceMin[j] = bb.getFloat();
+      ts.traceMax[j] = bb.getFloat();
+      ts.traceRms[j] = bb.getFloat();
+    }
+    return ts;
+  }
+}
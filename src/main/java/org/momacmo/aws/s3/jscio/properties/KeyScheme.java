@@ -0,0 +1,32 @@
+package org.momacmo.aws.s3.jscio.properties;
+
+/**
+ * Layout used for the object keys that hold traces and headers for a JavaSeis
+ * Cloud dataset.
+ * <p>
+ * SEQUENTIAL keys place every frame under the same dataset prefix:
+ * <p>
+ * <code>
+ * data/Project/SubProject/Traces/V11/F134
+ * </code>
+ * <p>
+ * HASHED keys insert a short shard component, derived from a hash of the
+ * volume and frame index, directly after the dataset prefix:
+ * <p>
+ * <code>
+ * data/Project/SubProject/3f/Traces/V11/F134
+ * </code>
+ * <p>
+ * S3 scales request rates per key prefix, so spreading consecutive frames over
+ * many shards lets massively parallel readers and writers exceed the limit of a
+ * single prefix.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public enum KeyScheme {
+  SEQUENTIAL,
+  HASHED;
+
+  /** Number of shards used by HASHED keys when none is specified */
+  public static final int DEFAULT_SHARDS = 256;
+}
@@ -0,0 +1,17 @@
+package org.momacmo.aws.s3.jscio.properties;
+
+/**
+ * Method used to reduce blocks of samples when building the downsampled
+ * pyramid levels of a JavaSeis Cloud dataset.
+ * <p>
+ * AVERAGE applies a box filter over each block, which suppresses aliasing of
+ * high frequencies. MAX_ABS keeps the sample with the largest absolute value
+ * (with its sign), an envelope that keeps isolated strong events visible in
+ * previews.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public enum PyramidMode {
+  AVERAGE,
+  MAX_ABS
+}
@@ -17,7 +17,30 @@ public class TracePropertiesImpl extends TraceProperties {
   }
   
   public TracePropertiesImpl( TraceProperties tp ) {
-    
+    super(tp.getNumProperties(), tp.getTraceProperties());
+    // Keep any padding at the end of the input record
+    if (tp.getRecordLength() > super._recordLength)
+      super._recordLength = tp.getRecordLength();
+    if (tp instanceof TracePropertiesImpl)
+      origRecordLength = ((TracePropertiesImpl) tp).origRecordLength;
+  }
+
+  /**
+   * Create trace properties that read headers from a packed buffer
+   * 
+   * @param tp           - trace property definitions
+   * @param buffer       - buffer holding packed headers
+   * @param recordLength - spacing of the headers in the buffer, in bytes
+   * @return - trace properties attached to the buffer
+   */
+  public static TracePropertiesImpl createView(TraceProperties tp, ByteBuffer buffer, int recordLength) {
+    TracePropertiesImpl view = new TracePropertiesImpl();
+    for (PropertyDescription pd : tp.getTraceProperties())
+      view.addTraceProperty(pd);
+    if (recordLength > view._recordLength)
+      view._recordLength = recordLength;
+    view.setBuffer(buffer);
+    return view;
   }
 
   public void setRecordLength(int newRecordLength) {
@@ -0,0 +1,42 @@
+package org.momacmo.aws.s3.jscio.query;
+
+import java.util.Arrays;
+
+import org.javaseis.properties.TraceProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+
+/**
+ * Select traces that satisfy every one of a list of predicates
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class AndPredicate implements HeaderPredicate {
+  final HeaderPredicate[] predicates;
+
+  public AndPredicate(HeaderPredicate... predicates) {
+    this.predicates = predicates.clone();
+  }
+
+  @Override
+  public boolean test(TraceProperties tp) {
+    for (HeaderPredicate p : predicates) {
+      if (!p.test(tp))
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean mayMatch(JscHeaderSummary hs, int frame) {
+    for (HeaderPredicate p : predicates) {
+      if (!p.mayMatch(hs, frame))
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(predicates);
+  }
+}
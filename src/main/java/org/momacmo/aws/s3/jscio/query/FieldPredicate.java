@@ -0,0 +1,30 @@
+package org.momacmo.aws.s3.jscio.query;
+
+import org.javaseis.properties.PropertyDescription;
+import org.javaseis.properties.TraceProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+
+/**
+ * Base class for predicates on a single numeric trace property
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+abstract class FieldPredicate implements HeaderPredicate {
+  final String label;
+
+  FieldPredicate(String label) {
+    this.label = label;
+  }
+
+  /** Return the value of the field for the current trace */
+  double getValue(TraceProperties tp) {
+    PropertyDescription pd = tp.getTraceProperty(label);
+    if (pd == null)
+      throw new IllegalArgumentException("Unknown trace property: " + label);
+    return JscHeaderSummary.getValue(tp, label, pd.getFormat());
+  }
+
+  public String getLabel() {
+    return label;
+  }
+}
@@ -0,0 +1,49 @@
+package org.momacmo.aws.s3.jscio.query;
+
+import org.javaseis.properties.TraceProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+
+/**
+ * Selection condition on the trace header values of a JavaSeis Cloud dataset.
+ * <p>
+ * A predicate is evaluated in two steps: mayMatch is used with the per-volume
+ * header summaries to skip frames that cannot contain a match, and test is
+ * evaluated for every trace of the remaining frames. Predicates must be
+ * stateless so they can be shared by many threads.
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public interface HeaderPredicate {
+
+  /**
+   * Return true if the current trace satisfies the predicate
+   *
+   * @param tp - trace properties positioned at a trace
+   * @return - true if the trace is selected
+   */
+  boolean test(TraceProperties tp);
+
+  /**
+   * Return false only if no trace in a frame can satisfy the predicate
+   *
+   * @param hs    - header summary for the volume containing the frame
+   * @param frame - frame index
+   * @return - true if the frame must be read
+   */
+  boolean mayMatch(JscHeaderSummary hs, int frame);
+
+  /** Select traces with a header value inside a closed range */
+  static HeaderPredicate range(String label, double lo, double hi) {
+    return new RangePredicate(label, lo, hi);
+  }
+
+  /** Select traces with a header value equal to one of a list of values */
+  static HeaderPredicate in(String label, double... values) {
+    return new InListPredicate(label, values);
+  }
+
+  /** Select traces that satisfy every one of a list of predicates */
+  static HeaderPredicate and(HeaderPredicate... predicates) {
+    return new AndPredicate(predicates);
+  }
+}
@@ -0,0 +1,43 @@
+package org.momacmo.aws.s3.jscio.query;
+
+import java.util.Arrays;
+
+import org.javaseis.properties.TraceProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+
+/**
+ * Select traces with a header value equal to one of a list of values, for
+ * example a list of channels
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class InListPredicate extends FieldPredicate {
+  final double[] values;
+
+  public InListPredicate(String label, double... values) {
+    super(label);
+    this.values = values.clone();
+    Arrays.sort(this.values);
+  }
+
+  @Override
+  public boolean test(TraceProperties tp) {
+    return Arrays.binarySearch(values, getValue(tp)) >= 0;
+  }
+
+  @Override
+  public boolean mayMatch(JscHeaderSummary hs, int frame) {
+    if (hs == null)
+      return true;
+    for (double value : values) {
+      if (hs.mayMatch(frame, label, value, value))
+        return true;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return label + " in " + Arrays.toString(values);
+  }
+}
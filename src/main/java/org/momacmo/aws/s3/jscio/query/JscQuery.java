@@ -0,0 +1,238 @@
+package org.momacmo.aws.s3.jscio.query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.javaseis.properties.TraceProperties;
+import org.javaseis.util.SeisException;
+import org.momacmo.aws.s3.jscio.JsAwsS3;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+
+/**
+ * Trace level selection from a JavaSeis Cloud dataset using predicates on
+ * trace header values.
+ * <p>
+ * Frames are first pruned with the per-volume header summaries. The header
+ * objects of the remaining frames are read and evaluated by a pool of threads,
+ * and trace data is retrieved only for frames that contain selected traces.
+ * Selected traces are delivered in dataset order, compacted into full output
+ * frames, together with the frame, volume and trace index of each source
+ * trace.
+ * <p>
+ * Example, offsets from 100 to 500 on channels 1, 2 and 3:
+ * <p>
+ * <code>
+ * HeaderPredicate p = HeaderPredicate.and(HeaderPredicate.range("OFFSET", 100, 500),<br>
+ * &nbsp;&nbsp;HeaderPredicate.in("CHAN", 1, 2, 3));<br>
+ * new JscQuery(jsc).select(p, (frame, source) -&gt; process(frame));
+ * </code>
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class JscQuery {
+
+  /** Receives output frames of selected traces */
+  public interface FrameConsumer {
+    /**
+     * @param out    - frame buffer holding the selected traces and unpacked
+     *               headers, traceCount traces long; frame is the output frame
+     *               ordinal. The buffer is reused after the call returns.
+     * @param source - {frame, volume, trace} index of each selected trace
+     * @throws SeisException - to abort the query
+     */
+    void accept(JscFrameBuffer out, int[][] source) throws SeisException;
+  }
+
+  /** Selected traces from one source frame */
+  static class FrameMatch {
+    int frame, volume;
+    int[] traces;
+    float[][] trcs;
+    byte[] hdrs;
+  }
+
+  JsAwsS3 jsc;
+  int threads = 32;
+  // Counters for the last query
+  int framesScanned, framesPruned, framesRead, tracesSelected;
+
+  /**
+   * Prepare queries on an open JavaSeis Cloud dataset
+   *
+   * @param jsc - JsAwsS3 instance with the dataset open
+   */
+  public JscQuery(JsAwsS3 jsc) {
+    this.jsc = jsc;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Find the traces that satisfy a predicate without retrieving trace data
+   *
+   * @param predicate - header selection
+   * @return - list of {frame, volume, trace} indexes in dataset order
+   * @throws SeisException - on AWS errors, or if the dataset has no headers
+   */
+  public List<int[]> findTraces(HeaderPredicate predicate) throws SeisException {
+    List<int[]> result = new ArrayList<int[]>();
+    run(predicate, false, fm -> {
+      for (int j : fm.traces)
+        result.add(new int[] { fm.frame, fm.volume, j });
+    });
+    return result;
+  }
+
+  /**
+   * Select the traces that satisfy a predicate and deliver them compacted into
+   * output frames
+   *
+   * @param predicate - header selection
+   * @param consumer  - receives each full output frame, and the final partial
+   *                  frame
+   * @return - number of traces selected
+   * @throws SeisException - on AWS errors, or if the dataset has no headers
+   */
+  public int select(HeaderPredicate predicate, FrameConsumer consumer) throws SeisException {
+    JscFrameBuffer out = new JscFrameBuffer(jsc.getFileProperties());
+    int maxTraces = out.getMaxTraces();
+    int nsamp = out.getSamplesPerTrace();
+    int hdrLength = out.getHeaderLength();
+    int[][] source = new int[maxTraces][];
+    int[] counts = new int[2];
+    run(predicate, true, fm -> {
+      for (int i = 0; i < fm.traces.length; i++) {
+        int n = counts[0];
+        System.arraycopy(fm.trcs[i], 0, out.traces[n], 0, nsamp);
+        System.arraycopy(fm.hdrs, i * hdrLength, out.hdrBytes, n * hdrLength, hdrLength);
+        source[n] = new int[] { fm.frame, fm.volume, fm.traces[i] };
+        counts[0]++;
+        if (counts[0] == maxTraces)
+          emit(out, source, counts, consumer);
+      }
+    });
+    if (counts[0] > 0)
+      emit(out, source, counts, consumer);
+    return tracesSelected;
+  }
+
+  void emit(JscFrameBuffer out, int[][] source, int[] counts, FrameConsumer consumer) throws SeisException {
+    out.setFrame(counts[1], 0, counts[0]);
+    out.unpackHeaders();
+    consumer.accept(out, counts[0] < source.length ? Arrays.copyOf(source, counts[0]) : source);
+    counts[1]++;
+    counts[0] = 0;
+  }
+
+  interface MatchHandler {
+    void handle(FrameMatch fm) throws SeisException;
+  }
+
+  /**
+   * Evaluate a predicate over every candidate frame, handing frames with
+   * selected traces to the handler in dataset order
+   */
+  void run(HeaderPredicate predicate, boolean withTraces, MatchHandler handler) throws SeisException {
+    JscFileProperties props = jsc.getFileProperties();
+    if (!props.usesTraceProperties)
+      throw new SeisException("JscQuery failed, dataset does not store trace headers");
+    framesScanned = framesPruned = framesRead = tracesSelected = 0;
+    int[] vrange = jsc.getVolumeRange();
+    int[] frange = jsc.getFrameRange();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ThreadLocal<JscFrameBuffer> buffers = new ThreadLocal<JscFrameBuffer>();
+    // Bound the number of frames in flight so selected traces cannot pile up
+    int window = 4 * threads;
+    Deque<Future<FrameMatch>> inFlight = new ArrayDeque<Future<FrameMatch>>();
+    try {
+      for (int volume = vrange[0]; volume <= vrange[1]; volume += vrange[2]) {
+        JscHeaderSummary hs = jsc.getHeaderSummary(volume);
+        for (int frame = frange[0]; frame <= frange[1]; frame += frange[2]) {
+          framesScanned++;
+          if (!predicate.mayMatch(hs, frame)) {
+            framesPruned++;
+            continue;
+          }
+          int f = frame;
+          int v = volume;
+          inFlight.add(pool.submit(() -> evaluate(props, buffers, predicate, f, v, withTraces)));
+          if (inFlight.size() >= window)
+            handle(inFlight.removeFirst().get(), handler);
+        }
+      }
+      while (!inFlight.isEmpty())
+        handle(inFlight.removeFirst().get(), handler);
+    } catch (SeisException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SeisException("JscQuery failed for " + predicate, e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  void handle(FrameMatch fm, MatchHandler handler) throws SeisException {
+    framesRead++;
+    if (fm == null)
+      return;
+    tracesSelected += fm.traces.length;
+    handler.handle(fm);
+  }
+
+  /**
+   * Read and test the headers of one frame, and retrieve the selected traces
+   */
+  FrameMatch evaluate(JscFileProperties props, ThreadLocal<JscFrameBuffer> buffers, HeaderPredicate predicate,
+      int frame, int volume, boolean withTraces) throws SeisException {
+    JscFrameBuffer buf = buffers.get();
+    if (buf == null) {
+      buf = new JscFrameBuffer(props);
+      buffers.set(buf);
+    }
+    int ntrc = jsc.getFrameHeaderBuffer(buf, frame, volume);
+    if (ntrc < 1)
+      return null;
+    TraceProperties tp = buf.getHeaderProperties();
+    int[] selected = new int[ntrc];
+    int nsel = 0;
+    for (int j = 0; j < ntrc; j++) {
+      tp.setTraceIndex(j);
+      if (predicate.test(tp))
+        selected[nsel++] = j;
+    }
+    if (nsel == 0)
+      return null;
+    FrameMatch fm = new FrameMatch();
+    fm.frame = frame;
+    fm.volume = volume;
+    fm.traces = Arrays.copyOf(selected, nsel);
+    if (!withTraces)
+      return fm;
+    int hdrLength = buf.getHeaderLength();
+    fm.hdrs = new byte[nsel * hdrLength];
+    for (int i = 0; i < nsel; i++)
+      System.arraycopy(buf.hdrBytes, fm.traces[i] * hdrLength, fm.hdrs, i * hdrLength, hdrLength);
+    jsc.getFrameTraceBuffer(buf, frame, volume);
+    buf.unpackTraces();
+    fm.trcs = new float[nsel][];
+    for (int i = 0; i < nsel; i++)
+      fm.trcs[i] = buf.traces[fm.traces[i]].clone();
+    return fm;
+  }
+
+  /** @return - counters for the last query */
+  public String getStatistics() {
+    return "scanned " + framesScanned + " frames, pruned " + framesPruned + ", read " + framesRead
+        + ", selected " + tracesSelected + " traces";
+  }
+}
@@ -0,0 +1,35 @@
+package org.momacmo.aws.s3.jscio.query;
+
+import org.javaseis.properties.TraceProperties;
+import org.momacmo.aws.s3.jscio.properties.JscHeaderSummary;
+
+/**
+ * Select traces with a header value inside the closed range [lo, hi]
+ *
+ * @author Chuck Mosher for MoMacMo.org
+ */
+public class RangePredicate extends FieldPredicate {
+  final double lo, hi;
+
+  public RangePredicate(String label, double lo, double hi) {
+    super(label);
+    this.lo = lo;
+    this.hi = hi;
+  }
+
+  @Override
+  public boolean test(TraceProperties tp) {
+    double value = getValue(tp);
+    return value >= lo && value <= hi;
+  }
+
+  @Override
+  public boolean mayMatch(JscHeaderSummary hs, int frame) {
+    return hs == null || hs.mayMatch(frame, label, lo, hi);
+  }
+
+  @Override
+  public String toString() {
+    return lo + " <= " + label + " <= " + hi;
+  }
+}
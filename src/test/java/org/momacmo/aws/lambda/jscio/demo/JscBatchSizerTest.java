@@ -0,0 +1,35 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class JscBatchSizerTest {
+  // 60 second workers using half their time, at most 1000 invocations
+  JscBatchSizer sizer = new JscBatchSizer(60000, 1000, 0.5);
+
+  @Test
+  public void smallJobsUseTheMinimumBatchTime() {
+    // 0.1 s per frame needs 10 frames to fill MIN_BATCH_SECONDS
+    assertEquals(10, sizer.getBatchSize(500, 0.1, 1000));
+  }
+
+  @Test
+  public void largeJobsStayWithinTheConcurrencyLimit() {
+    // 100000 frames over 1000 invocations
+    assertEquals(100, sizer.getBatchSize(100000, 0.1, 1000));
+  }
+
+  @Test
+  public void timeBudgetTakesPrecedence() {
+    // 30 s budget at 0.1 s per frame allows 300 frames, fewer than 1000 needed
+    assertEquals(300, sizer.getBatchSize(1000000, 0.1, 1000));
+    assertEquals(1, sizer.getBatchSize(1000000, 100, 1000));
+  }
+
+  @Test
+  public void maxBatchLimitsUnknownCost() {
+    assertEquals(5, sizer.getBatchSize(5000, 0, 1000));
+    assertEquals(50, sizer.getBatchSize(1000000, 0, 50));
+  }
+}
@@ -0,0 +1,81 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class JscLambdaOutputCodecTest {
+
+  static JscLambdaInput input(boolean summaryOnly) {
+    JscLambdaInput input = new JscLambdaInput();
+    input.setBucket("bucket");
+    input.setPrefix("prefix");
+    input.setRange(100, 109, 1, 3, 4, 1);
+    input.summaryOnly = summaryOnly;
+    return input;
+  }
+
+  static JscLambdaOutput output(int frame, int volume, String status, int traces) {
+    JscLambdaOutput output = new JscLambdaOutput(frame, volume);
+    output.setStatus(status);
+    output.traceCount = traces;
+    output.iobytes = 1000 * traces;
+    output.iotime = 0.01f * traces;
+    return output;
+  }
+
+  @Test
+  public void roundTripKeepsEveryRecord() {
+    JscLambdaOutputList list = new JscLambdaOutputList(input(false));
+    list.add(output(100, 3, "Success", 5));
+    list.add(output(101, 3, "Success", 7));
+    list.add(output(95, 4, "Failure: Object not found", 0));
+    list.add(output(102, 3, "Success", 2));
+    JscLambdaOutputList decoded = JscLambdaOutputCodec.decode(list.encode());
+    assertNull(decoded.getSummary());
+    assertEquals(list.size(), decoded.size());
+    assertEquals(1, decoded.getFailureCount());
+    for (int i = 0; i < list.size(); i++) {
+      JscLambdaOutput a = list.outputList.get(i);
+      JscLambdaOutput b = decoded.outputList.get(i);
+      assertEquals(a.frame, b.frame);
+      assertEquals(a.volume, b.volume);
+      assertEquals(a.traceCount, b.traceCount);
+      assertEquals(a.iobytes, b.iobytes);
+      assertEquals(a.iotime, b.iotime, 0f);
+      assertEquals(a.status, b.status);
+    }
+    assertEquals("prefix", decoded.input.prefix);
+    assertEquals(109, decoded.input.frmn);
+  }
+
+  @Test
+  public void roundTripKeepsTheSummary() {
+    JscLambdaOutputList list = new JscLambdaOutputList(input(true));
+    for (int frame = 100; frame < 110; frame++)
+      list.add(output(frame, 3, frame == 104 ? "Timeout" : "Success", 4));
+    JscLambdaOutputList decoded = JscLambdaOutputCodec.decode(list.encode());
+    JscLambdaSummary summary = decoded.getSummary();
+    assertNotNull(summary);
+    assertEquals(10, summary.frames);
+    assertEquals(1, summary.failures);
+    assertEquals(36, summary.traces);
+    assertEquals(list.getSummary().latency.count, summary.latency.count);
+    assertEquals(list.getSummary().latency.getValueAtPercentile(50), summary.latency.getValueAtPercentile(50));
+    // Only the failure is listed individually
+    assertEquals(1, decoded.outputList.size());
+    assertEquals(104, decoded.outputList.get(0).frame);
+  }
+
+  @Test
+  public void resultStringAcceptsAQuotedEncoding() {
+    JscLambdaOutputList list = new JscLambdaOutputList(input(false));
+    list.add(output(100, 3, "Success", 5));
+    JscLambdaOutputList decoded = JscLambdaOutputList.fromResultString("\"" + list.encode() + "\"");
+    assertEquals(1, decoded.size());
+    assertTrue(JscLambdaOutputCodec.isEncoded(list.encode()));
+  }
+}
@@ -0,0 +1,23 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class JscLambdaOutputListTest {
+
+  @Test
+  public void addFromInputReportsFrameAndVolumeNumbers() {
+    JscLambdaInput batch = new JscLambdaInput();
+    batch.setRange(200, 204, 2, 7, 8, 1);
+    JscLambdaOutputList list = new JscLambdaOutputList(batch);
+    list.addFromInput(batch, "Timeout");
+    assertEquals(6, list.size());
+    assertEquals(6, list.getFailureCount());
+    assertEquals(200, list.outputList.get(0).frame);
+    assertEquals(7, list.outputList.get(0).volume);
+    assertEquals(204, list.outputList.get(5).frame);
+    assertEquals(8, list.outputList.get(5).volume);
+    assertEquals("Timeout", list.outputList.get(5).status);
+  }
+}
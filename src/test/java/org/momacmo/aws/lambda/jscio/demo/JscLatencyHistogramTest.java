@@ -0,0 +1,82 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class JscLatencyHistogramTest {
+
+  static JscLambdaOutput output(int frame, int volume, String status, int traces) {
+    JscLambdaOutput output = new JscLambdaOutput(frame, volume);
+    output.setStatus(status);
+    output.traceCount = traces;
+    output.iobytes = 1000 * traces;
+    output.iotime = 0.01f * traces;
+    return output;
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    JscLatencyHistogram h = new JscLatencyHistogram();
+    for (int v = 1; v <= 10; v++)
+      h.record(v);
+    assertEquals(10, h.count);
+    assertEquals(1, h.min);
+    assertEquals(10, h.max);
+    assertEquals(5, h.getValueAtPercentile(50));
+    assertEquals(10, h.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void largeValuesAreWithinBucketPrecision() {
+    for (long v : new long[] { 33, 1000, 123457, 98765432L }) {
+      JscLatencyHistogram h = new JscLatencyHistogram();
+      h.record(v);
+      h.record(2 * v);
+      long p = h.getValueAtPercentile(50);
+      assertEquals(v, p, 0.04 * v);
+    }
+  }
+
+  @Test
+  public void mergeEqualsRecordingEverything() {
+    JscLatencyHistogram all = new JscLatencyHistogram();
+    JscLatencyHistogram a = new JscLatencyHistogram();
+    JscLatencyHistogram b = new JscLatencyHistogram();
+    for (int i = 0; i < 1000; i++) {
+      long v = (i * 7919L) % 500000;
+      all.record(v);
+      (i % 3 == 0 ? a : b).record(v);
+    }
+    a.merge(b);
+    a.merge(new JscLatencyHistogram());
+    a.merge(null);
+    assertEquals(all.count, a.count);
+    assertEquals(all.min, a.min);
+    assertEquals(all.max, a.max);
+    assertArrayEquals(all.counts, a.counts);
+    assertEquals(all.getValueAtPercentile(99), a.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void summaryMergeAddsCountersAndLatency() {
+    JscLambdaSummary a = new JscLambdaSummary();
+    JscLambdaSummary b = new JscLambdaSummary();
+    JscLambdaOutput ok = output(1, 1, "Success", 10);
+    JscLambdaOutput failed = output(2, 1, "Failure: x", 0);
+    a.add(ok);
+    a.add(failed);
+    b.add(ok);
+    b.exceptionsDropped = 3;
+    a.merge(b);
+    assertEquals(3, a.frames);
+    assertEquals(1, a.failures);
+    assertEquals(20, a.traces);
+    assertEquals(2 * ok.iobytes, a.bytes);
+    assertEquals(3, a.exceptionsDropped);
+    // Failed frames are counted but not timed
+    assertEquals(2, a.latency.count);
+    assertEquals(a.bytes / a.ioSeconds, a.getIoRate(), 1e-6);
+  }
+}
@@ -0,0 +1,55 @@
+package org.momacmo.aws.lambda.jscio.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.javaseis.util.SeisException;
+import org.junit.Test;
+import org.momacmo.aws.s3.jscio.operator.RmsAggregate;
+
+import com.amazonaws.services.lambda.model.InvokeResult;
+import com.google.gson.Gson;
+
+public class JscReductionResultTest {
+
+  static InvokeResult payload(String resultString) {
+    // A String handler result arrives as a json string literal
+    String json = new Gson().toJson(resultString);
+    return new InvokeResult().withPayload(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void inlineRoundTrip() throws SeisException {
+    RmsAggregate rms = new RmsAggregate();
+    rms.samples = 100;
+    rms.sumSquares = 25;
+    rms.maxAbs = 3;
+    JscReductionResult result = JscReductionResult.create(rms, 4, 1, 2);
+    result.spill(null, "bucket", "key");
+    assertFalse(result.isSpilled());
+    JscReductionResult decoded = JscReductionResult.fromPayload(payload(result.toResultString()));
+    assertEquals(4, decoded.frames);
+    assertEquals(1, decoded.missing);
+    assertEquals(2, decoded.failures);
+    RmsAggregate copy = (RmsAggregate) decoded.getAggregate(null, true);
+    assertEquals(100, copy.samples);
+    assertEquals(25, copy.sumSquares, 0);
+    assertEquals(3, copy.maxAbs, 0f);
+  }
+
+  @Test
+  public void nonFiniteValuesRoundTrip() throws SeisException {
+    RmsAggregate rms = new RmsAggregate();
+    rms.sumSquares = Double.POSITIVE_INFINITY;
+    rms.maxAbs = Float.NaN;
+    JscReductionResult decoded = JscReductionResult.fromPayload(payload(JscReductionResult.create(rms, 1, 0, 0)
+        .toResultString()));
+    RmsAggregate copy = (RmsAggregate) decoded.getAggregate(null, true);
+    assertTrue(Double.isInfinite(copy.sumSquares));
+    assertTrue(Float.isNaN(copy.maxAbs));
+  }
+}
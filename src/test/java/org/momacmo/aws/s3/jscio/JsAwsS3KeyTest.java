@@ -0,0 +1,52 @@
+package org.momacmo.aws.s3.jscio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+import org.momacmo.aws.s3.jscio.properties.KeyScheme;
+
+public class JsAwsS3KeyTest {
+
+  @Test
+  public void sequentialKeysHaveNoShard() {
+    JscFileProperties props = new JscFileProperties();
+    assertEquals("data/Traces/V11/F134", JsAwsS3.getFrameKey(props, "data", "Traces", 134, 11));
+    assertEquals("data/Traces/V11/F134", JsAwsS3.getFrameKey(null, "data", "Traces", 134, 11));
+  }
+
+  @Test
+  public void hashedKeysInsertTheShardAfterThePrefix() {
+    JscFileProperties props = new JscFileProperties();
+    props.keyScheme = KeyScheme.HASHED;
+    String shard = JsAwsS3.getShard(0, 134, 11);
+    assertEquals("data/" + shard + "/Traces/V11/F134", JsAwsS3.getFrameKey(props, "data", "Traces", 134, 11));
+    // Every folder of a frame lands in the same shard
+    assertEquals("data/" + shard + "/Headers/V11/F134", JsAwsS3.getFrameKey(props, "data", "Headers", 134, 11));
+  }
+
+  @Test
+  public void shardWidthFollowsShardCount() {
+    assertEquals(2, JsAwsS3.getShard(0, 1, 1).length());
+    assertEquals(2, JsAwsS3.getShard(256, 1, 1).length());
+    assertEquals(1, JsAwsS3.getShard(16, 1, 1).length());
+    assertEquals(3, JsAwsS3.getShard(4096, 1, 1).length());
+    assertEquals("0", JsAwsS3.getShard(1, 7, 3));
+  }
+
+  @Test
+  public void shardsAreStableAndSpreadConsecutiveFrames() {
+    int shards = 64;
+    int[] counts = new int[shards];
+    int nframe = 64 * 200;
+    for (int frame = 0; frame < nframe; frame++) {
+      String shard = JsAwsS3.getShard(shards, frame, 1);
+      assertEquals(shard, JsAwsS3.getShard(shards, frame, 1));
+      counts[Integer.parseInt(shard, 16)]++;
+    }
+    int mean = nframe / shards;
+    for (int count : counts)
+      assertTrue("shard count " + count, count > mean / 2 && count < 2 * mean);
+  }
+}
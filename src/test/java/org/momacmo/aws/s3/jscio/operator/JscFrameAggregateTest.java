@@ -0,0 +1,138 @@
+package org.momacmo.aws.s3.jscio.operator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.javaseis.grid.GridDefinition;
+import org.javaseis.properties.DataFormat;
+import org.javaseis.util.SeisException;
+import org.junit.Test;
+import org.momacmo.aws.s3.jscio.JscFrameBuffer;
+import org.momacmo.aws.s3.jscio.properties.JscFileProperties;
+
+/**
+ * Every aggregate must give the same result for the same frames however they
+ * are split between partial aggregates
+ */
+public class JscFrameAggregateTest {
+  static final int NSAMP = 50;
+  static final int NTRC = 8;
+  static final int NFRM = 6;
+  static final int NVOL = 2;
+
+  static JscFileProperties props() {
+    JscFileProperties props = new JscFileProperties();
+    props.gridDefinition = GridDefinition.getDefault(4, new int[] { NSAMP, NTRC, NFRM, NVOL });
+    props.traceFormat = DataFormat.FLOAT;
+    props.traceStatistics = false;
+    return props;
+  }
+
+  /** @return - a frame with a different amplitude range for every frame */
+  static JscFrameBuffer frame(JscFileProperties props, int frame, int volume) throws SeisException {
+    JscFrameBuffer buf = new JscFrameBuffer(props);
+    int ntrc = NTRC - frame % 3;
+    buf.setFrame(frame, volume, ntrc);
+    for (int j = 0; j < ntrc; j++)
+      for (int i = 0; i < NSAMP; i++)
+        buf.traces[j][i] = (float) (Math.pow(10, frame - 3) * Math.sin(0.3 * i + j + volume));
+    return buf;
+  }
+
+  /** Accumulate all frames in one aggregate, and alternate frames in two merged ones */
+  static JscFrameAggregate[] reduce(String className, Map<String, String> parameters) throws SeisException {
+    JscFileProperties props = props();
+    JscFrameAggregate whole = JscFrameReducer.createAggregate(className, props, parameters);
+    JscFrameAggregate a = JscFrameReducer.createAggregate(className, props, parameters);
+    JscFrameAggregate b = JscFrameReducer.createAggregate(className, props, parameters);
+    for (int volume = 0; volume < NVOL; volume++) {
+      for (int frame = 0; frame < NFRM; frame++) {
+        JscFrameBuffer buf = frame(props, frame, volume);
+        whole.add(buf);
+        (frame % 2 == 0 ? a : b).add(buf);
+      }
+    }
+    a.merge(b);
+    a.merge(JscFrameReducer.createAggregate(className, props, parameters));
+    return new JscFrameAggregate[] { whole, a };
+  }
+
+  @Test
+  public void rmsMerge() throws SeisException {
+    JscFrameAggregate[] r = reduce(RmsAggregate.class.getName(), Collections.<String, String>emptyMap());
+    RmsAggregate whole = (RmsAggregate) r[0];
+    RmsAggregate merged = (RmsAggregate) r[1];
+    assertEquals(whole.samples, merged.samples);
+    assertEquals(whole.sumSquares, merged.sumSquares, 1e-9 * whole.sumSquares);
+    assertEquals(whole.maxAbs, merged.maxAbs, 0f);
+  }
+
+  @Test
+  public void amplitudeHistogramMerge() throws SeisException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("binsPerDecade", "5");
+    parameters.put("minExponent", "-3");
+    parameters.put("maxExponent", "2");
+    JscFrameAggregate[] r = reduce(AmplitudeHistogramAggregate.class.getName(), parameters);
+    AmplitudeHistogramAggregate whole = (AmplitudeHistogramAggregate) r[0];
+    AmplitudeHistogramAggregate merged = (AmplitudeHistogramAggregate) r[1];
+    assertArrayEquals(whole.counts, merged.counts);
+    assertEquals(whole.underflow, merged.underflow);
+    assertEquals(whole.overflow, merged.overflow);
+    assertEquals(whole.getCount(), merged.getCount());
+    assertEquals(whole.getAmplitudeAtPercentile(90), merged.getAmplitudeAtPercentile(90), 0);
+  }
+
+  @Test
+  public void amplitudeHistogramLowerEdge() throws SeisException {
+    JscFileProperties props = props();
+    JscFrameAggregate h = JscFrameReducer.createAggregate(AmplitudeHistogramAggregate.class.getName(), props,
+        Collections.<String, String>emptyMap());
+    JscFrameBuffer buf = new JscFrameBuffer(props);
+    buf.setFrame(0, 0, 1);
+    float edge = (float) 1e-6;
+    float[] values = { edge, Math.nextDown(edge), Math.nextUp(edge), -Math.nextUp(edge) };
+    Arrays.fill(buf.traces[0], 0f);
+    System.arraycopy(values, 0, buf.traces[0], 0, values.length);
+    h.add(buf);
+    AmplitudeHistogramAggregate histogram = (AmplitudeHistogramAggregate) h;
+    assertEquals(NSAMP, histogram.getCount());
+    assertEquals(2, histogram.counts[0]);
+    assertEquals(NSAMP - 2, histogram.underflow);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void amplitudeHistogramRejectsDifferentBins() throws SeisException {
+    JscFileProperties props = props();
+    Map<String, String> parameters = new HashMap<String, String>();
+    JscFrameAggregate a = JscFrameReducer.createAggregate(AmplitudeHistogramAggregate.class.getName(), props,
+        parameters);
+    parameters.put("binsPerDecade", "20");
+    a.merge(JscFrameReducer.createAggregate(AmplitudeHistogramAggregate.class.getName(), props, parameters));
+  }
+
+  @Test
+  public void channelEnergyMerge() throws SeisException {
+    JscFrameAggregate[] r = reduce(ChannelEnergyAggregate.class.getName(), Collections.<String, String>emptyMap());
+    ChannelEnergyAggregate whole = (ChannelEnergyAggregate) r[0];
+    ChannelEnergyAggregate merged = (ChannelEnergyAggregate) r[1];
+    assertEquals(NTRC, merged.channels);
+    assertArrayEquals(whole.getTotalEnergy(), merged.getTotalEnergy(), 1e-9);
+  }
+
+  @Test
+  public void channelEnergyPerVolumeMerge() throws SeisException {
+    Map<String, String> parameters = Collections.singletonMap("perVolume", "true");
+    JscFrameAggregate[] r = reduce(ChannelEnergyAggregate.class.getName(), parameters);
+    ChannelEnergyAggregate whole = (ChannelEnergyAggregate) r[0];
+    ChannelEnergyAggregate merged = (ChannelEnergyAggregate) r[1];
+    assertEquals(NVOL, merged.energy.size());
+    for (int volume = 0; volume < NVOL; volume++)
+      assertArrayEquals(whole.energy.get(volume), merged.energy.get(volume), 1e-9);
+  }
+}